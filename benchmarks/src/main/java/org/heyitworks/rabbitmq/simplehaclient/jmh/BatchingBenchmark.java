@@ -0,0 +1,90 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import org.heyitworks.rabbitmq.simplehaclient.BatchingPublisher;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a stream of small events from 4 threads, published one AMQP message each and through a {@link BatchingPublisher}.
+ * The stub broker holds the connection for publishNanos per AMQP message, like its single socket would. Next to the
+ * throughput the bytes the messages took on the wire (frames as the client would write them) are printed at the end
+ * of each trial.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class BatchingBenchmark {
+
+    private static final AMQP.BasicProperties PROPS = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").deliveryMode(2).build();
+
+    @Param({"2000"})
+    public long publishNanos;
+
+    @Param({"100"})
+    public int size;
+
+    private byte[] body;
+    private StubConnectionFactory directBroker;
+    private StubConnectionFactory batchedBroker;
+    private RabbitHAClient directClient;
+    private RabbitHAClient batchedClient;
+    private BatchingPublisher publisher;
+
+    @Setup
+    public void setUp() {
+        body = new byte[size];
+        directBroker = broker();
+        batchedBroker = broker();
+        directClient = new RabbitHAClient(new Address[]{new Address("localhost")}, directBroker);
+        batchedClient = new RabbitHAClient(new Address[]{new Address("localhost")}, batchedBroker);
+        publisher = new BatchingPublisher(batchedClient, "benchmark", PROPS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        publisher.close();
+        report("direct", directBroker, directBroker.publishedCount());
+        report("batched (" + Math.round(publisher.getMeanBatchSize()) + "/batch)", batchedBroker,
+                publisher.getMessageCount());
+        directClient.shutdown();
+        batchedClient.shutdown();
+    }
+
+    @Benchmark
+    public void direct() {
+        directClient.publish("events", "benchmark", PROPS, body);
+    }
+
+    @Benchmark
+    public void batched() {
+        publisher.publish("events", "benchmark", body);
+    }
+
+    private StubConnectionFactory broker() {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        broker.setPublishNanos(publishNanos);
+        broker.setMeasureWireBytes(true);
+        return broker;
+    }
+
+    private static void report(String name, StubConnectionFactory broker, long messages) {
+        if (messages == 0)
+            return;
+        long wireBytes = broker.publishedWireBytes();
+        System.out.printf("%n%s: %d AMQP messages, %.1f wire bytes/msg (%d KB)%n", name, broker.publishedCount(),
+                (double) wireBytes / messages, wireBytes / 1024);
+    }
+}
@@ -0,0 +1,65 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StripedRabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * publish throughput of 16 threads sharing one client, striped over a growing number of connections. The stub
+ * broker holds a connection for publishMicros per publish, like its single socket would.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class ContendedThroughputBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int stripes;
+
+    @Param({"20"})
+    public long publishMicros;
+
+    private StripedRabbitHAClient haClient;
+    private final byte[] body = new byte[100];
+
+    private final RabbitHAClient.ChannelOperation publish = new RabbitHAClient.ChannelOperation() {
+        @Override
+        public void execute(Channel channel) throws IOException {
+            channel.basicPublish("", "benchmark", null, body);
+        }
+
+        @Override
+        public String operationId() {
+            return "CONTENDED-PUBLISHER";
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        broker.setPublishNanos(TimeUnit.MICROSECONDS.toNanos(publishMicros));
+        haClient = new StripedRabbitHAClient(new Address[]{new Address("localhost")}, broker, stripes, false);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public void publish() {
+        haClient.doInRabbit(publish);
+    }
+}
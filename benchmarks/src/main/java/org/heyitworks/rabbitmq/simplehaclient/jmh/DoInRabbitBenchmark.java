@@ -0,0 +1,83 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * what {@link RabbitHAClient#doInRabbit} costs on top of the operation itself, on a healthy connection: a no-op
+ * operation called directly, through doInRabbit and as a pooled channel operation.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DoInRabbitBenchmark {
+
+    private RabbitHAClient haClient;
+    private Connection connection;
+    private Blackhole blackhole;
+
+    private final RabbitHAClient.RabbitOperation noop = new RabbitHAClient.RabbitOperation() {
+        @Override
+        public void execute(Connection connection) {
+            blackhole.consume(connection);
+        }
+
+        @Override
+        public String operationId() {
+            return "NOOP";
+        }
+    };
+
+    private final RabbitHAClient.ChannelOperation channelNoop = new RabbitHAClient.ChannelOperation() {
+        @Override
+        public void execute(Channel channel) {
+            blackhole.consume(channel);
+        }
+
+        @Override
+        public String operationId() {
+            return "CHANNEL-NOOP";
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        connection = broker.newConnection(new Address[]{new Address("localhost")});
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public void direct() throws IOException {
+        noop.execute(connection);
+    }
+
+    @Benchmark
+    public void doInRabbit() {
+        haClient.doInRabbit(noop);
+    }
+
+    @Benchmark
+    public void doInRabbitPooledChannel() {
+        haClient.doInRabbit(channelNoop);
+    }
+}
@@ -0,0 +1,150 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import org.heyitworks.rabbitmq.simplehaclient.FaultInjectingProxy;
+import org.heyitworks.rabbitmq.simplehaclient.TcpProxy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * bulk echo of megabytes through {@link TcpProxy} and {@link FaultInjectingProxy}, over a single connection and (for
+ * the NIO proxy, TcpProxy serves one connection at a time) split across concurrent ones, to make sure the proxy
+ * isn't what limits a load test. Throughput in MB/s is megabytes divided by the score.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(1)
+public class ProxyThroughputBenchmark {
+
+    private static final int TCP_PROXY_PORT = 5674;
+    private static final int CHUNK = 64 * 1024;
+
+    @Param({"256"})
+    public int megabytes;
+
+    private ServerSocket echoServer;
+    private FaultInjectingProxy proxy;
+
+    @State(Scope.Benchmark)
+    public static class Connections {
+        @Param({"1", "32"})
+        public int count;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        echoServer = startEchoServer();
+        TcpProxy.runProxy("localhost", echoServer.getLocalPort(), TCP_PROXY_PORT);
+        proxy = new FaultInjectingProxy(0, "localhost", echoServer.getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TcpProxy.shutdownProxy();
+        proxy.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public void tcpProxy() throws Exception {
+        pump(TCP_PROXY_PORT, 1);
+    }
+
+    @Benchmark
+    public void faultInjectingProxy(Connections connections) throws Exception {
+        pump(proxy.getLocalPort(), connections.count);
+    }
+
+    /**
+     * echoes megabytes in total, split across the connections
+     */
+    private void pump(final int port, int connections) throws Exception {
+        final int perConnection = megabytes * 1024 * 1024 / connections;
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        for (int i = 0; i < connections; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Socket socket = new Socket("localhost", port);
+                        Thread writer = new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    OutputStream out = socket.getOutputStream();
+                                    byte[] chunk = new byte[CHUNK];
+                                    for (int sent = 0; sent < perConnection; sent += chunk.length)
+                                        out.write(chunk, 0, Math.min(chunk.length, perConnection - sent));
+                                } catch (IOException e) {
+                                }
+                            }
+                        };
+                        writer.start();
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] chunk = new byte[CHUNK];
+                        for (int received = 0; received < perConnection; received += chunk.length)
+                            in.readFully(chunk, 0, Math.min(chunk.length, perConnection - received));
+                        writer.join();
+                        socket.close();
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    private static ServerSocket startEchoServer() throws IOException {
+        final ServerSocket echoServer = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = echoServer.accept();
+                        Thread echo = new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    InputStream in = socket.getInputStream();
+                                    OutputStream out = socket.getOutputStream();
+                                    byte[] buffer = new byte[CHUNK];
+                                    int read;
+                                    while ((read = in.read(buffer)) != -1)
+                                        out.write(buffer, 0, read);
+                                    socket.close();
+                                } catch (IOException e) {
+                                }
+                            }
+                        };
+                        echo.setDaemon(true);
+                        echo.start();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return echoServer;
+    }
+}
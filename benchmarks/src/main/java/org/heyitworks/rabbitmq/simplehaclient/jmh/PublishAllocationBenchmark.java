@@ -0,0 +1,81 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import org.heyitworks.rabbitmq.simplehaclient.PublishRoute;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * what a publish allocates: straight on a channel (what the channel itself costs), through
+ * {@link RabbitHAClient#publish(String, String, AMQP.BasicProperties, byte[])}, through a {@link PublishRoute} and
+ * through a {@link RabbitHAClient.ChannelOperation} allocated per message. Run with the gc profiler and compare
+ * gc.alloc.rate.norm; a route should allocate no more than the channel:
+ * <p/>
+ * java -jar target/benchmarks.jar PublishAllocationBenchmark -prof gc
+ *
+ * @author maciekr
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishAllocationBenchmark {
+
+    private static final AMQP.BasicProperties PROPS = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").deliveryMode(2).build();
+
+    private final byte[] body = new byte[100];
+    private final PublishRoute route = new PublishRoute("events", "benchmark", PROPS);
+    private RabbitHAClient haClient;
+    private Channel channel;
+
+    @Setup
+    public void setUp() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public void channel() throws IOException {
+        channel.basicPublish("events", "benchmark", PROPS, body);
+    }
+
+    @Benchmark
+    public void publish() {
+        haClient.publish("events", "benchmark", PROPS, body);
+    }
+
+    @Benchmark
+    public void publishRoute() {
+        haClient.publish(route, body);
+    }
+
+    @Benchmark
+    public void channelOperation() {
+        haClient.doInRabbit(new RabbitHAClient.ChannelOperation() {
+            @Override
+            public void execute(Channel channel) throws IOException {
+                channel.basicPublish("events", "benchmark", PROPS, body);
+            }
+
+            @Override
+            public String operationId() {
+                return "PUBLISHER";
+            }
+        });
+    }
+}
@@ -0,0 +1,89 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.heyitworks.rabbitmq.simplehaclient.PublishOutbox;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * single-threaded publish throughput for the ways of getting a channel: a new channel per publish (the pattern
+ * RabbitOperations tend to use), a pooled channel, and {@link RabbitHAClient#publish} with and without an outbox.
+ * The stub broker charges roundTripMicros for every synchronous AMQP method such as channel.open.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishThroughputBenchmark {
+
+    @Param({"0", "50"})
+    public long roundTripMicros;
+
+    @Param({"channelPerOperation", "pooledChannel", "publish", "publishWithOutbox"})
+    public String strategy;
+
+    private RabbitHAClient haClient;
+    private final byte[] body = new byte[100];
+
+    private final RabbitHAClient.RabbitOperation channelPerOperation = new RabbitHAClient.RabbitOperation() {
+        @Override
+        public void execute(Connection connection) throws IOException {
+            Channel channel = connection.createChannel();
+            try {
+                channel.basicPublish("", "benchmark", null, body);
+            } finally {
+                channel.close();
+            }
+        }
+
+        @Override
+        public String operationId() {
+            return "CHANNEL-PER-OPERATION";
+        }
+    };
+
+    private final RabbitHAClient.ChannelOperation pooledChannel = new RabbitHAClient.ChannelOperation() {
+        @Override
+        public void execute(Channel channel) throws IOException {
+            channel.basicPublish("", "benchmark", null, body);
+        }
+
+        @Override
+        public String operationId() {
+            return "POOLED-CHANNEL";
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")},
+                new StubConnectionFactory(TimeUnit.MICROSECONDS.toNanos(roundTripMicros)));
+        if (strategy.equals("publishWithOutbox"))
+            haClient.enableOutbox(10000, PublishOutbox.OverflowPolicy.BLOCK);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public void publish() {
+        if (strategy.equals("channelPerOperation"))
+            haClient.doInRabbit(channelPerOperation);
+        else if (strategy.equals("pooledChannel"))
+            haClient.doInRabbit(pooledChannel);
+        else
+            haClient.publish("", "benchmark", null, body);
+    }
+}
@@ -0,0 +1,69 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.Address;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time from killing the node a client is connected to until the first message published after the kill reaches
+ * the broker, with and without a standby connection. Every connect costs connectMillis, standing in for the TCP,
+ * TLS and AMQP handshakes.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(1)
+public class RecoveryLatencyBenchmark {
+
+    @Param({"false", "true"})
+    public boolean standby;
+
+    @Param({"50"})
+    public long connectMillis;
+
+    private final Address[] addresses = {new Address("localhost", 5672), new Address("localhost", 5673)};
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+    private final byte[] body = new byte[100];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        for (Address address : addresses)
+            broker.setAddressLatency(address, TimeUnit.MILLISECONDS.toNanos(connectMillis));
+        haClient = new RabbitHAClient(addresses, broker);
+        if (standby)
+            haClient.enableStandby();
+    }
+
+    @Setup(Level.Invocation)
+    public void connected() throws InterruptedException {
+        haClient.publish("", "benchmark", null, body);
+        // give the standby (if any) time to come up again after the previous kill
+        Thread.sleep(connectMillis * 3);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public long killAndPublish() {
+        Address current = broker.publishedCount(addresses[0]) > 0 ? addresses[0] : addresses[1];
+        long published = broker.publishedCount();
+        broker.killConnections(current);
+        haClient.publish("", "benchmark", null, body);
+        while (broker.publishedCount() == published)
+            Thread.yield();
+        return broker.publishedCount();
+    }
+}
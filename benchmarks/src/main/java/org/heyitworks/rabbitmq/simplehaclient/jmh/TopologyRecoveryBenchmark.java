@@ -0,0 +1,90 @@
+package org.heyitworks.rabbitmq.simplehaclient.jmh;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.heyitworks.rabbitmq.simplehaclient.RabbitHAClient;
+import org.heyitworks.rabbitmq.simplehaclient.StubConnectionFactory;
+import org.heyitworks.rabbitmq.simplehaclient.TopologyRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time from killing the connection until every callback was replayed, with one consuming callback per queue. The
+ * callbacks declare their exchange, queue and binding either directly on the channel or through the client's
+ * {@link TopologyRegistry}. Every synchronous method costs the stub broker roundTripMicros.
+ *
+ * @author maciekr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(1)
+public class TopologyRecoveryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int queues;
+
+    @Param({"false", "true"})
+    public boolean registry;
+
+    @Param({"500"})
+    public long roundTripMicros;
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        broker = new StubConnectionFactory(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        for (int i = 0; i < queues; i++)
+            haClient.doInRabbit(new ConsumingCallback("benchmark-" + i), true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Benchmark
+    public long killAndRecover() throws InterruptedException {
+        broker.killConnections();
+        while (haClient.getMetrics().getRecoveryCount() == 0)
+            Thread.sleep(1);
+        return haClient.getMetrics().getLastOutageMillis();
+    }
+
+    private class ConsumingCallback implements RabbitHAClient.RabbitOperation {
+        private final String queue;
+
+        ConsumingCallback(String queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void execute(Connection connection) throws IOException {
+            Channel channel = connection.createChannel();
+            if (registry) {
+                TopologyRegistry topology = haClient.getTopology();
+                topology.exchangeDeclare(channel, "benchmark", "topic", true, false, null);
+                topology.queueDeclare(channel, queue, true, false, false, null);
+                topology.queueBind(channel, queue, "benchmark", queue, null);
+            } else {
+                channel.exchangeDeclare("benchmark", "topic", true, false, null);
+                channel.queueDeclare(queue, true, false, false, null);
+                channel.queueBind(queue, "benchmark", queue, null);
+            }
+            channel.basicConsume(queue, null);
+        }
+
+        @Override
+        public String operationId() {
+            return queue;
+        }
+    }
+}
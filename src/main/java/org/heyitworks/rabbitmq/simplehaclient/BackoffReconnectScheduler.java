@@ -0,0 +1,179 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * the default {@link ReconnectScheduler}. Failing over from a lost connection happens immediately once, so a healthy
+ * second address is failed over to without waiting; every further attempt backs off exponentially with decorrelated
+ * jitter (a random delay between the base delay and three times the previous one, capped), which keeps a fleet of
+ * clients from reconnecting in lock-step. The backoff carries over from one recovery to the next and only starts
+ * over once a connection stayed up for the max delay (or a standby took over a lost one), so a connection that keeps
+ * failing right after it was established (or an operation that keeps failing on an open one) can't make the client
+ * reconnect in a tight loop.
+ * Addresses are tried healthiest first: fewest consecutive failures, then the order they were given in.
+ *
+ * @author maciekr
+ */
+public class BackoffReconnectScheduler implements ReconnectScheduler {
+
+    public static final long DEFAULT_BASE_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private final Address[] addresses;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Map<Address, AddressHealth> health = new LinkedHashMap<Address, AddressHealth>();
+    private long lastDelay;
+    private boolean failedOver;
+    private long connectedAt;
+
+    public BackoffReconnectScheduler(Address[] addresses) {
+        this(addresses, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public BackoffReconnectScheduler(Address[] addresses, long baseDelayMillis, long maxDelayMillis) {
+        this.addresses = addresses.clone();
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        for (Address address : addresses)
+            health.put(address, new AddressHealth(address));
+    }
+
+    @Override
+    public synchronized Address[] addresses() {
+        List<AddressHealth> ordered = new ArrayList<AddressHealth>(health.values());
+        Collections.sort(ordered, order());
+        Address[] result = new Address[ordered.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ordered.get(i).address;
+        return result;
+    }
+
+    @Override
+    public synchronized long nextDelayMillis(int attempt, boolean connectionLost) {
+        long connectedAt = this.connectedAt;
+        this.connectedAt = 0;
+        if (connectedAt != 0 && System.currentTimeMillis() - connectedAt >= maxDelayMillis) {
+            lastDelay = 0;
+            failedOver = false;
+        }
+        if (attempt <= 1 && connectionLost && !failedOver) {
+            failedOver = true;
+            return 0;
+        }
+        long upper = Math.max(baseDelayMillis, lastDelay * 3);
+        lastDelay = Math.min(maxDelayMillis, baseDelayMillis + ThreadLocalRandom.current().nextLong(upper - baseDelayMillis + 1));
+        return lastDelay;
+    }
+
+    @Override
+    public synchronized void connected(Address address, long connectNanos) {
+        AddressHealth addressHealth = health(address);
+        addressHealth.consecutiveFailures = 0;
+        addressHealth.lastConnected = System.currentTimeMillis();
+        connectedAt = addressHealth.lastConnected;
+    }
+
+    @Override
+    public synchronized void failed(Address address) {
+        AddressHealth addressHealth = health(address);
+        addressHealth.consecutiveFailures++;
+        addressHealth.failures++;
+        addressHealth.lastFailed = System.currentTimeMillis();
+    }
+
+    /**
+     * the standby took over right away, so there is no outage to back off from any more
+     */
+    @Override
+    public synchronized void promoted(Address address) {
+        lastDelay = 0;
+        failedOver = false;
+        connectedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a snapshot of the health of every address, in the order they will be tried
+     */
+    public synchronized List<AddressHealth> getAddressHealth() {
+        List<AddressHealth> snapshot = new ArrayList<AddressHealth>();
+        for (AddressHealth addressHealth : health.values())
+            snapshot.add(addressHealth.copy());
+        Collections.sort(snapshot, order());
+        return snapshot;
+    }
+
+    /**
+     * orders addresses for the next connect; called with the scheduler's lock held
+     */
+    protected Comparator<AddressHealth> order() {
+        return BY_FAILURES;
+    }
+
+    protected AddressHealth health(Address address) {
+        AddressHealth addressHealth = health.get(address);
+        if (addressHealth == null)
+            health.put(address, addressHealth = new AddressHealth(address));
+        return addressHealth;
+    }
+
+    private static final Comparator<AddressHealth> BY_FAILURES = new Comparator<AddressHealth>() {
+        @Override
+        public int compare(AddressHealth a, AddressHealth b) {
+            return a.consecutiveFailures < b.consecutiveFailures ? -1 : a.consecutiveFailures == b.consecutiveFailures ? 0 : 1;
+        }
+    };
+
+    public static class AddressHealth {
+        final Address address;
+        int consecutiveFailures;
+        long failures;
+        long lastConnected;
+        long lastFailed;
+
+        AddressHealth(Address address) {
+            this.address = address;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getLastConnected() {
+            return lastConnected;
+        }
+
+        public long getLastFailed() {
+            return lastFailed;
+        }
+
+        public boolean isHealthy() {
+            return consecutiveFailures == 0;
+        }
+
+        AddressHealth copy() {
+            AddressHealth copy = new AddressHealth(address);
+            copy.consecutiveFailures = consecutiveFailures;
+            copy.failures = failures;
+            copy.lastConnected = lastConnected;
+            copy.lastFailed = lastFailed;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return address + (isHealthy() ? " healthy" : " failed " + consecutiveFailures + " times in a row");
+        }
+    }
+}
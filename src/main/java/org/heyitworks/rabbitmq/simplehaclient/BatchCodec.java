@@ -0,0 +1,233 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * packs many small messages into the body of one AMQP message, so that a stream of tiny payloads pays the frame
+ * overhead (method, content header and body frame) once per batch instead of once per message. A batch is a version
+ * byte followed by each message as its length (unsigned varint, a single byte below 128) and its bytes. Batches are
+ * marked by the {@link #CONTENT_TYPE} content type, the content type of the messages themselves travels in the
+ * {@link #CONTENT_TYPE_HEADER} header.
+ * <p/>
+ * Written by {@link BatchingPublisher}, split back into messages by {@link #unbatching(Consumer)} and
+ * {@link #unbatching(DispatchingConsumer.Handler)}.
+ *
+ * @author maciekr
+ */
+public final class BatchCodec {
+
+    public static final String CONTENT_TYPE = "application/x-simplehaclient-batch";
+    public static final String CONTENT_TYPE_HEADER = "x-batched-content-type";
+
+    private static final byte VERSION = 1;
+
+    private BatchCodec() {
+    }
+
+    public static boolean isBatch(AMQP.BasicProperties properties) {
+        return properties != null && CONTENT_TYPE.equals(properties.getContentType());
+    }
+
+    /**
+     * @return properties for a batch of messages published with the given ones
+     */
+    public static AMQP.BasicProperties batchProperties(AMQP.BasicProperties properties) {
+        if (properties == null)
+            return new AMQP.BasicProperties.Builder().contentType(CONTENT_TYPE).build();
+        Map<String, Object> headers = properties.getHeaders() != null
+                ? new HashMap<String, Object>(properties.getHeaders()) : new HashMap<String, Object>();
+        if (properties.getContentType() != null)
+            headers.put(CONTENT_TYPE_HEADER, properties.getContentType());
+        return properties.builder().contentType(CONTENT_TYPE).headers(headers).build();
+    }
+
+    /**
+     * @return the properties the messages of a batch were published with
+     */
+    public static AMQP.BasicProperties messageProperties(AMQP.BasicProperties batchProperties) {
+        Map<String, Object> headers = batchProperties.getHeaders();
+        Object contentType = headers != null ? headers.get(CONTENT_TYPE_HEADER) : null;
+        if (headers != null) {
+            headers = new HashMap<String, Object>(headers);
+            headers.remove(CONTENT_TYPE_HEADER);
+            if (headers.isEmpty())
+                headers = null;
+        }
+        return batchProperties.builder()
+                .contentType(contentType != null ? contentType.toString() : null)
+                .headers(headers)
+                .build();
+    }
+
+    /**
+     * @return the messages of a batch, in the order they were added
+     * @throws IllegalArgumentException if the body isn't a batch this codec can read
+     */
+    public static List<byte[]> decode(byte[] batch) {
+        if (batch.length == 0 || batch[0] != VERSION)
+            throw new IllegalArgumentException("Not a batch of version " + VERSION);
+        List<byte[]> messages = new ArrayList<byte[]>();
+        int position = 1;
+        while (position < batch.length) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position == batch.length || shift > 28)
+                    throw new IllegalArgumentException("Malformed message length at " + position);
+                b = batch[position++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (length < 0 || length > batch.length - position)
+                throw new IllegalArgumentException("Message of " + length + " bytes at " + position
+                        + " overruns the batch of " + batch.length);
+            messages.add(Arrays.copyOfRange(batch, position, position + length));
+            position += length;
+        }
+        return messages;
+    }
+
+    /**
+     * @return bytes a message of the given size adds to a batch
+     */
+    public static int encodedSize(int length) {
+        int size = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7)
+            size++;
+        return size + length;
+    }
+
+    /**
+     * wraps a consumer so that it gets the messages of a batch one by one, each with the batch's envelope; other
+     * messages pass through. Meant for auto-ack consumers: acking the envelope acks the whole batch.
+     */
+    public static Consumer unbatching(final Consumer delegate) {
+        return new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                if (!isBatch(properties)) {
+                    delegate.handleDelivery(consumerTag, envelope, properties, body);
+                    return;
+                }
+                AMQP.BasicProperties messageProperties = messageProperties(properties);
+                for (byte[] message : decode(body))
+                    delegate.handleDelivery(consumerTag, envelope, messageProperties, message);
+            }
+
+            @Override
+            public void handleConsumeOk(String consumerTag) {
+                delegate.handleConsumeOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancelOk(String consumerTag) {
+                delegate.handleCancelOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancel(String consumerTag) throws IOException {
+                delegate.handleCancel(consumerTag);
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                delegate.handleShutdownSignal(consumerTag, sig);
+            }
+
+            @Override
+            public void handleRecoverOk(String consumerTag) {
+                delegate.handleRecoverOk(consumerTag);
+            }
+        };
+    }
+
+    /**
+     * wraps a {@link DispatchingConsumer} handler so that it gets the messages of a batch one by one. The batch is
+     * acked once all of them were handled; a failing one fails the whole batch, so with requeueing the messages
+     * handled before it come again.
+     */
+    public static DispatchingConsumer.Handler unbatching(final DispatchingConsumer.Handler delegate) {
+        return new DispatchingConsumer.Handler() {
+            @Override
+            public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                if (!isBatch(properties)) {
+                    delegate.handle(envelope, properties, body);
+                    return;
+                }
+                AMQP.BasicProperties messageProperties = messageProperties(properties);
+                for (byte[] message : decode(body))
+                    delegate.handle(envelope, messageProperties, message);
+            }
+        };
+    }
+
+    /**
+     * growing buffer a batch is written into; not thread safe
+     */
+    public static class Writer {
+
+        private byte[] buffer;
+        private int size;
+        private int count;
+
+        public Writer(int initialCapacity) {
+            buffer = new byte[Math.max(initialCapacity, 16)];
+            reset();
+        }
+
+        public Writer add(byte[] message) {
+            ensureCapacity(size + encodedSize(message.length));
+            int length = message.length;
+            while ((length & ~0x7f) != 0) {
+                buffer[size++] = (byte) ((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            buffer[size++] = (byte) length;
+            System.arraycopy(message, 0, buffer, size, message.length);
+            size += message.length;
+            count++;
+            return this;
+        }
+
+        /**
+         * @return bytes of the batch written so far
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return messages added since the last reset
+         */
+        public int count() {
+            return count;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        public void reset() {
+            buffer[0] = VERSION;
+            size = 1;
+            count = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
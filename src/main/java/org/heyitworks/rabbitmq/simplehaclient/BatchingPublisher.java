@@ -0,0 +1,264 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * publisher for high-rate streams of small messages: messages to the same exchange and routing key are collected
+ * into a batch (see {@link BatchCodec}) published through {@link RabbitHAClient#publish} as one AMQP message once it
+ * reaches maxBatchBytes or maxBatchMessages, or once its first message waited lingerMillis (give or take half of
+ * it). Consumers split batches back with {@link BatchCodec#unbatching}.
+ * <p/>
+ * All messages share the properties the publisher was created with; messages needing their own properties should be
+ * published directly. Batches are published in the order they were completed, so the order of messages to one
+ * destination is kept. Publishing happens outside the lock messages are added under: a publish blocked on the client
+ * (recovery, flow control) holds up the threads completing batches, not those adding to them. A batch is only as
+ * safe as {@link RabbitHAClient#publish}, and messages still lingering when the process dies are lost: call
+ * {@link #flush()} when that matters.
+ *
+ * @author maciekr
+ */
+public class BatchingPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchingPublisher.class);
+
+    private static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    private static final int DEFAULT_MAX_BATCH_MESSAGES = 1000;
+    private static final long DEFAULT_LINGER = 5;
+
+    private final RabbitHAClient haClient;
+    private final String publisherId;
+    private final AMQP.BasicProperties batchProperties;
+    private final int maxBatchBytes;
+    private final int maxBatchMessages;
+    private final long lingerNanos;
+    private final Map<String, Map<String, Batch>> batches = new HashMap<String, Map<String, Batch>>();
+    private final Queue<Completed> completed = new ArrayDeque<Completed>();
+    private final Object publishLock = new Object();
+    private final ScheduledExecutorService lingerFlusher;
+    private volatile boolean closed;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BatchingPublisher(RabbitHAClient haClient, String publisherId, AMQP.BasicProperties props) {
+        this(haClient, publisherId, props, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_BATCH_MESSAGES, DEFAULT_LINGER);
+    }
+
+    /**
+     * @param props            properties of every message published
+     * @param maxBatchBytes    a batch is published before it grows beyond this size
+     * @param maxBatchMessages a batch is published once it holds this many messages
+     * @param lingerMillis     how long a message may wait for others to join its batch
+     */
+    public BatchingPublisher(RabbitHAClient haClient, String publisherId, AMQP.BasicProperties props,
+                             int maxBatchBytes, int maxBatchMessages, long lingerMillis) {
+        if (maxBatchBytes < 1 || maxBatchMessages < 1 || lingerMillis < 1)
+            throw new IllegalArgumentException("Batch limits and linger must be positive");
+        this.haClient = haClient;
+        this.publisherId = publisherId;
+        this.batchProperties = BatchCodec.batchProperties(props);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchMessages = maxBatchMessages;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.lingerFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AMQPBatchFlusher-" + BatchingPublisher.this.publisherId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, lingerMillis / 2);
+        lingerFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushLingering(System.nanoTime());
+                } catch (RuntimeException e) {
+                    LOGGER.error("Flushing lingering batches of " + BatchingPublisher.this.publisherId + " failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * adds a message to the batch of its destination, publishing the batch if that fills it up
+     */
+    public void publish(String exchange, String routingKey, byte[] body) {
+        boolean full;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Publisher " + publisherId + " is closed");
+            Map<String, Batch> byRoutingKey = batches.get(exchange);
+            if (byRoutingKey == null) {
+                byRoutingKey = new HashMap<String, Batch>();
+                batches.put(exchange, byRoutingKey);
+            }
+            Batch batch = byRoutingKey.get(routingKey);
+            if (batch == null) {
+                batch = new Batch(exchange, routingKey);
+                byRoutingKey.put(routingKey, batch);
+            }
+            full = batch.writer.count() > 0 && batch.writer.size() + BatchCodec.encodedSize(body.length) > maxBatchBytes;
+            if (full)
+                complete(batch);
+            if (batch.writer.count() == 0)
+                batch.started = System.nanoTime();
+            batch.writer.add(body);
+            messages.incrementAndGet();
+            if (batch.writer.count() >= maxBatchMessages || batch.writer.size() >= maxBatchBytes) {
+                complete(batch);
+                full = true;
+            }
+        }
+        if (full)
+            publishCompleted();
+    }
+
+    /**
+     * publishes every batch right away, however small
+     */
+    public void flush() {
+        synchronized (this) {
+            for (Map<String, Batch> byRoutingKey : batches.values())
+                for (Batch batch : byRoutingKey.values())
+                    if (batch.writer.count() > 0)
+                        complete(batch);
+        }
+        publishCompleted();
+    }
+
+    /**
+     * flushes what is left and stops the linger timer
+     */
+    public void close() {
+        lingerFlusher.shutdown();
+        synchronized (this) {
+            for (Map<String, Batch> byRoutingKey : batches.values())
+                for (Batch batch : byRoutingKey.values())
+                    if (batch.writer.count() > 0)
+                        complete(batch);
+            closed = true;
+        }
+        publishCompleted();
+    }
+
+    /**
+     * @return messages handed to the publisher
+     */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * @return AMQP messages (batches) published
+     */
+    public long getBatchCount() {
+        return published.get();
+    }
+
+    /**
+     * @return body bytes of the batches published
+     */
+    public long getPublishedBytes() {
+        return publishedBytes.get();
+    }
+
+    /**
+     * @return batches the client didn't accept, see {@link RabbitHAClient#publish}. Only an outbox or spill journal
+     * turns batches away; without either the client parks batches that fail until it recovered, and counts those
+     * it has to drop in {@link RabbitHAClient#getRejectedOperationCount()}.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public double getMeanBatchSize() {
+        long batches = published.get();
+        return batches == 0 ? 0 : (double) messages.get() / batches;
+    }
+
+    void flushLingering(long now) {
+        boolean lingering = false;
+        synchronized (this) {
+            for (Map<String, Batch> byRoutingKey : batches.values())
+                for (Batch batch : byRoutingKey.values())
+                    if (batch.writer.count() > 0 && now - batch.started >= lingerNanos) {
+                        complete(batch);
+                        lingering = true;
+                    }
+        }
+        if (lingering)
+            publishCompleted();
+    }
+
+    /**
+     * takes the batch's messages out for publishing; called with the publisher's lock held
+     */
+    private void complete(Batch batch) {
+        completed.add(new Completed(batch.exchange, batch.routingKey, batch.writer.toByteArray(), batch.writer.count()));
+        batch.writer.reset();
+    }
+
+    private synchronized Completed nextCompleted() {
+        return completed.poll();
+    }
+
+    /**
+     * publishes the completed batches in order; whoever gets the publish lock publishes the ones queued by others too
+     */
+    private void publishCompleted() {
+        synchronized (publishLock) {
+            Completed batch;
+            while ((batch = nextCompleted()) != null) {
+                if (haClient.publish(batch.exchange, batch.routingKey, batchProperties, batch.body)) {
+                    published.incrementAndGet();
+                    publishedBytes.addAndGet(batch.body.length);
+                } else {
+                    rejected.incrementAndGet();
+                    LOGGER.warn("Batch of {} messages to {} not accepted by the client", batch.count, batch.exchange);
+                }
+            }
+        }
+    }
+
+    private class Batch {
+        final String exchange;
+        final String routingKey;
+        final BatchCodec.Writer writer = new BatchCodec.Writer(Math.min(maxBatchBytes, 4096));
+        long started;
+
+        Batch(String exchange, String routingKey) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+    }
+
+    private static class Completed {
+        final String exchange;
+        final String routingKey;
+        final byte[] body;
+        final int count;
+
+        Completed(String exchange, String routingKey, byte[] body, int count) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.body = body;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * replays registered callbacks after a reconnect on a bounded pool of threads. Callbacks are grouped by
+ * {@link RecoveryPriority}, highest first, and the callbacks of a group are replayed in parallel; the next group
+ * starts once the previous one is done. How long each callback took to replay is kept per operation id.
+ *
+ * @author maciekr
+ */
+class CallbackRecovery {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CallbackRecovery.class);
+
+    interface Replay<T> {
+        void replay(T callback);
+
+        String operationId(T callback);
+    }
+
+    private final ExecutorService executor;
+    private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+    CallbackRecovery(int parallelism, final String threadName) {
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * replays all callbacks, returning once every one of them was replayed
+     */
+    <T> void recover(Collection<T> callbacks, final Replay<T> replay) {
+        if (callbacks.isEmpty())
+            return;
+        long start = System.nanoTime();
+        for (List<T> group : byPriority(callbacks)) {
+            final CountDownLatch replayed = new CountDownLatch(group.size());
+            for (final T callback : group) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long callbackStart = System.nanoTime();
+                        try {
+                            replay.replay(callback);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Recovering callback {} failed", replay.operationId(callback), e);
+                        } finally {
+                            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callbackStart);
+                            latencies.put(replay.operationId(callback), millis);
+                            LOGGER.info("Recovered callback {} in {}ms", replay.operationId(callback), millis);
+                            replayed.countDown();
+                        }
+                    }
+                });
+            }
+            try {
+                replayed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        LOGGER.info("Recovered {} callbacks in {}ms", callbacks.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return how long the last replay of each callback took, by operation id
+     */
+    Map<String, Long> latencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    static <T> Collection<List<T>> byPriority(Collection<T> callbacks) {
+        TreeMap<Integer, List<T>> groups = new TreeMap<Integer, List<T>>(Collections.<Integer>reverseOrder());
+        for (T callback : callbacks) {
+            int priority = callback instanceof RecoveryPriority ? ((RecoveryPriority) callback).recoveryPriority() : RecoveryPriority.DEFAULT;
+            List<T> group = groups.get(priority);
+            if (group == null)
+                groups.put(priority, group = new ArrayList<T>());
+            group.add(callback);
+        }
+        return groups.values();
+    }
+}
@@ -0,0 +1,115 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a bounded pool of channels leased out for short-lived operations (publishes, declarations) so they don't pay
+ * for a channel.open/channel.close round trip each. Idle channels are only handed out again for the connection
+ * they were opened on, so channels left over from a dead connection are discarded rather than reused.
+ *
+ * @author maciekr
+ */
+class ChannelPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelPool.class);
+
+    private final Semaphore leases;
+    private final BlockingQueue<Channel> idle;
+    private final long leaseTimeoutMillis;
+    private final FlowControl flowControl;
+
+    ChannelPool(int capacity, long leaseTimeoutMillis) {
+        this(capacity, leaseTimeoutMillis, null);
+    }
+
+    /**
+     * @param flowControl watches every channel opened, may be null
+     */
+    ChannelPool(int capacity, long leaseTimeoutMillis, FlowControl flowControl) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Channel pool capacity must be positive, was " + capacity);
+        this.leases = new Semaphore(capacity);
+        this.idle = new ArrayBlockingQueue<Channel>(capacity);
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+        this.flowControl = flowControl;
+    }
+
+    /**
+     * leases an open channel on the given connection, blocking up to the lease timeout when all channels are out.
+     * Every successful lease must be paired with {@link #release(Channel)}.
+     */
+    Channel lease(Connection connection) throws IOException {
+        try {
+            if (!leases.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new IOException("No pooled channel became available within " + leaseTimeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a pooled channel");
+        }
+        try {
+            Channel channel;
+            while ((channel = idle.poll()) != null) {
+                if (channel.isOpen() && channel.getConnection() == connection)
+                    return channel;
+                discard(channel);
+            }
+            channel = connection.createChannel();
+            if (flowControl != null)
+                flowControl.watch(channel);
+            return channel;
+        } catch (IOException e) {
+            leases.release();
+            throw e;
+        } catch (RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * returns a leased channel. Channels closed by the broker (e.g. after a channel-level error) are dropped.
+     */
+    void release(Channel channel) {
+        try {
+            if (!channel.isOpen() || !idle.offer(channel))
+                discard(channel);
+        } finally {
+            leases.release();
+        }
+    }
+
+    /**
+     * drops every idle channel; called when the underlying connection goes away.
+     */
+    void invalidate() {
+        Channel channel;
+        int count = 0;
+        while ((channel = idle.poll()) != null) {
+            discard(channel);
+            count++;
+        }
+        if (count > 0)
+            LOGGER.info("Invalidated {} pooled channels.", count);
+    }
+
+    int idleCount() {
+        return idle.size();
+    }
+
+    private void discard(Channel channel) {
+        if (channel.isOpen())
+            try {
+                channel.abort();
+            } catch (Exception e) {
+            }
+    }
+}
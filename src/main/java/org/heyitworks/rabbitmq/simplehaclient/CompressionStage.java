@@ -0,0 +1,203 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * compresses message bodies of at least threshold bytes on their way out and decompresses them on the way in.
+ * Installed with {@link RabbitHAClient#setCompression(CompressionStage)} it applies to everything published through
+ * {@link RabbitHAClient#publish}, buffered messages included, so an outbox or spill journal replayed after a failover
+ * holds and sends compressed bodies. Compressed messages are tagged with the codec's content-encoding; messages that
+ * already have one, and bodies that don't get smaller, go out as they are.
+ * <p/>
+ * Consumers see the original bodies through {@link #decompressing(Consumer)} or
+ * {@link #decompressing(DispatchingConsumer.Handler)}, which know the encodings of every codec the stage was given.
+ * With {@link BatchingPublisher} batches get compressed as a whole, so decompress before unbatching:
+ * {@code stage.decompressing(BatchCodec.unbatching(handler))}.
+ *
+ * @author maciekr
+ */
+public class CompressionStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressionStage.class);
+
+    private final PayloadCodec codec;
+    private final int threshold;
+    private final Map<String, PayloadCodec> decoders = new HashMap<String, PayloadCodec>();
+    private final AMQP.BasicProperties encodedProperties;
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+
+    /**
+     * @param threshold smallest body compressed
+     * @param decoders  further codecs consumers should understand, e.g. ones other publishers use
+     */
+    public CompressionStage(PayloadCodec codec, int threshold, PayloadCodec... decoders) {
+        this.codec = codec;
+        this.threshold = threshold;
+        this.decoders.put(codec.contentEncoding(), codec);
+        for (PayloadCodec decoder : decoders)
+            this.decoders.put(decoder.contentEncoding(), decoder);
+        this.encodedProperties = new AMQP.BasicProperties.Builder().contentEncoding(codec.contentEncoding()).build();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the compressed body, or null if the message goes out as it is
+     */
+    byte[] compress(AMQP.BasicProperties props, byte[] body) {
+        if (body == null || body.length < threshold || props != null && props.getContentEncoding() != null)
+            return null;
+        byte[] encoded;
+        try {
+            encoded = codec.encode(body);
+        } catch (IOException e) {
+            LOGGER.warn("Could not {} a body of {} bytes, publishing it as it is: {}", codec.contentEncoding(),
+                    body.length, e.getMessage());
+            return null;
+        }
+        if (encoded.length >= body.length) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(body.length);
+        bytesOut.addAndGet(encoded.length);
+        return encoded;
+    }
+
+    /**
+     * @return the properties of a compressed message
+     */
+    AMQP.BasicProperties tag(AMQP.BasicProperties props) {
+        if (props == null)
+            return encodedProperties;
+        return props.builder().contentEncoding(codec.contentEncoding()).build();
+    }
+
+    /**
+     * @return whether the message is encoded with one of the stage's codecs
+     */
+    public boolean isCompressed(AMQP.BasicProperties properties) {
+        return properties != null && properties.getContentEncoding() != null
+                && decoders.containsKey(properties.getContentEncoding());
+    }
+
+    /**
+     * @return the original body of a message, the body itself if it isn't compressed by one of the stage's codecs
+     */
+    public byte[] decompress(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if (!isCompressed(properties))
+            return body;
+        byte[] decoded = decoders.get(properties.getContentEncoding()).decode(body);
+        decompressed.incrementAndGet();
+        return decoded;
+    }
+
+    /**
+     * wraps a consumer so that it gets the original bodies and properties of compressed messages
+     */
+    public Consumer decompressing(final Consumer delegate) {
+        return new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                if (isCompressed(properties))
+                    delegate.handleDelivery(consumerTag, envelope, untag(properties), decompress(properties, body));
+                else
+                    delegate.handleDelivery(consumerTag, envelope, properties, body);
+            }
+
+            @Override
+            public void handleConsumeOk(String consumerTag) {
+                delegate.handleConsumeOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancelOk(String consumerTag) {
+                delegate.handleCancelOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancel(String consumerTag) throws IOException {
+                delegate.handleCancel(consumerTag);
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                delegate.handleShutdownSignal(consumerTag, sig);
+            }
+
+            @Override
+            public void handleRecoverOk(String consumerTag) {
+                delegate.handleRecoverOk(consumerTag);
+            }
+        };
+    }
+
+    /**
+     * wraps a {@link DispatchingConsumer} handler so that it gets the original bodies and properties of compressed
+     * messages; a body that can't be decompressed fails the delivery
+     */
+    public DispatchingConsumer.Handler decompressing(final DispatchingConsumer.Handler delegate) {
+        return new DispatchingConsumer.Handler() {
+            @Override
+            public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                if (isCompressed(properties))
+                    delegate.handle(envelope, untag(properties), decompress(properties, body));
+                else
+                    delegate.handle(envelope, properties, body);
+            }
+        };
+    }
+
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+
+    /**
+     * @return bodies above the threshold sent uncompressed because compressing didn't make them smaller
+     */
+    public long getIncompressibleCount() {
+        return skipped.get();
+    }
+
+    public long getDecompressedCount() {
+        return decompressed.get();
+    }
+
+    /**
+     * @return compressed size over original size of the bodies compressed so far
+     */
+    public double getCompressionRatio() {
+        long in = bytesIn.get();
+        return in == 0 ? 1 : (double) bytesOut.get() / in;
+    }
+
+    /**
+     * @return bytes kept off the wire by compression
+     */
+    public long getSavedBytes() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    private static AMQP.BasicProperties untag(AMQP.BasicProperties properties) {
+        return properties.builder().contentEncoding(null).build();
+    }
+}
@@ -0,0 +1,261 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * asynchronous publisher on top of {@link RabbitHAClient} using publisher confirms. Publishes are pipelined on one
+ * confirm-mode channel and each returns a future completed when the broker acks (or failed when it nacks) the
+ * message. The channel is opened by a callback operation, so when the client recovers a lost connection it reopens
+ * the channel and republishes everything still unconfirmed, in the original order.
+ * <p/>
+ * A channel closed by the broker for a channel-level error (e.g. publishing to a missing exchange) fails the
+ * outstanding futures instead of republishing them, as the same messages would most likely fail the same way.
+ *
+ * @author maciekr
+ */
+public class ConfirmingPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfirmingPublisher.class);
+
+    private static final int DEFAULT_MAX_UNCONFIRMED = 10000;
+
+    private final RabbitHAClient haClient;
+    private final String publisherId;
+    private final Semaphore inFlight;
+
+    private final Object publishLock = new Object();
+    private final Object confirmLock = new Object();
+    private final OutstandingConfirms<PendingPublish> outstanding = new OutstandingConfirms<PendingPublish>(1024);
+    private final List<PendingPublish> awaitingChannel = new ArrayList<PendingPublish>();
+    private volatile Channel channel;
+    private volatile boolean reopen;
+    private volatile boolean closed;
+
+    private final RabbitHAClient.RabbitOperation openChannel = new RabbitHAClient.RabbitOperation() {
+        @Override
+        public void execute(Connection connection) throws IOException {
+            openChannel(connection);
+        }
+
+        @Override
+        public String operationId() {
+            return publisherId + "-CONFIRM-CHANNEL";
+        }
+    };
+
+    public ConfirmingPublisher(RabbitHAClient haClient, String publisherId) {
+        this(haClient, publisherId, DEFAULT_MAX_UNCONFIRMED);
+    }
+
+    /**
+     * @param maxUnconfirmed publishes block once this many messages wait for a confirm
+     */
+    public ConfirmingPublisher(RabbitHAClient haClient, String publisherId, int maxUnconfirmed) {
+        this.haClient = haClient;
+        this.publisherId = publisherId;
+        this.inFlight = new Semaphore(maxUnconfirmed);
+        haClient.doInRabbit(openChannel, true);
+    }
+
+    /**
+     * publishes a message, blocking only while maxUnconfirmed messages are already in flight.
+     *
+     * @return future completed once the broker confirmed the message
+     */
+    public Future<Void> publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+            throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("Publisher " + publisherId + " is closed");
+        CompressionStage compression = haClient.getCompression();
+        if (compression != null) {
+            byte[] compressed = compression.compress(props, body);
+            if (compressed != null) {
+                props = compression.tag(props);
+                body = compressed;
+            }
+        }
+        inFlight.acquire();
+        PendingPublish publish = new PendingPublish(exchange, routingKey, props, body);
+        synchronized (publishLock) {
+            if (reopen) {
+                reopen = false;
+                haClient.doInRabbit(openChannel);
+            }
+            send(publish);
+        }
+        return publish.future;
+    }
+
+    /**
+     * @return messages published but not yet confirmed, including those waiting for the channel to come back
+     */
+    public int getUnconfirmedCount() {
+        synchronized (confirmLock) {
+            synchronized (awaitingChannel) {
+                return outstanding.size() + awaitingChannel.size();
+            }
+        }
+    }
+
+    /**
+     * closes the confirm channel; messages still unconfirmed fail.
+     */
+    public void close() {
+        closed = true;
+        List<PendingPublish> unconfirmed = new ArrayList<PendingPublish>();
+        synchronized (publishLock) {
+            Channel current = channel;
+            channel = null;
+            if (current != null && current.isOpen())
+                try {
+                    current.close();
+                } catch (Exception e) {
+                }
+            synchronized (confirmLock) {
+                outstanding.removeAll(unconfirmed);
+            }
+            synchronized (awaitingChannel) {
+                unconfirmed.addAll(awaitingChannel);
+                awaitingChannel.clear();
+            }
+        }
+        fail(unconfirmed, new IOException("Publisher " + publisherId + " closed before the broker confirmed the message"));
+    }
+
+    private void openChannel(Connection connection) throws IOException {
+        if (closed)
+            return;
+        final Channel opened = connection.createChannel();
+        opened.confirmSelect();
+        haClient.getFlowControl().watch(opened);
+        opened.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                confirmed(opened, deliveryTag, multiple, null);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                confirmed(opened, deliveryTag, multiple, new IOException("Broker nacked message with delivery tag " + deliveryTag));
+            }
+        });
+        opened.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException e) {
+                if (!e.isHardError() && !e.isInitiatedByApplication())
+                    channelFailed(opened, e);
+            }
+        });
+
+        List<PendingPublish> republish = new ArrayList<PendingPublish>();
+        synchronized (publishLock) {
+            synchronized (confirmLock) {
+                outstanding.removeAll(republish);
+            }
+            synchronized (awaitingChannel) {
+                republish.addAll(awaitingChannel);
+                awaitingChannel.clear();
+            }
+            channel = opened;
+            if (!republish.isEmpty())
+                LOGGER.warn("Republishing {} unconfirmed messages of publisher {} on {}", republish.size(), publisherId, opened);
+            for (PendingPublish publish : republish)
+                send(publish);
+        }
+    }
+
+    /**
+     * called with publishLock held
+     */
+    private void send(PendingPublish publish) {
+        Channel current = channel;
+        if (current != null) {
+            long tag = current.getNextPublishSeqNo();
+            synchronized (confirmLock) {
+                outstanding.add(tag, publish);
+            }
+            try {
+                current.basicPublish(publish.exchange, publish.routingKey, publish.props, publish.body);
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Publisher {} failed to publish, holding the message until the channel is back: {}", publisherId, e.getMessage());
+            } catch (ShutdownSignalException e) {
+                LOGGER.warn("Publisher {} failed to publish, holding the message until the channel is back: {}", publisherId, e.getMessage());
+            }
+            synchronized (confirmLock) {
+                outstanding.remove(tag);
+            }
+        }
+        synchronized (awaitingChannel) {
+            awaitingChannel.add(publish);
+        }
+    }
+
+    private void confirmed(Channel confirmedOn, long deliveryTag, boolean multiple, IOException nack) {
+        List<PendingPublish> confirmed = new ArrayList<PendingPublish>(multiple ? 16 : 1);
+        synchronized (confirmLock) {
+            if (confirmedOn != channel)
+                return;
+            if (multiple) {
+                outstanding.removeUpTo(deliveryTag, confirmed);
+            } else {
+                PendingPublish publish = outstanding.remove(deliveryTag);
+                if (publish != null)
+                    confirmed.add(publish);
+            }
+        }
+        if (nack == null) {
+            for (PendingPublish publish : confirmed) {
+                inFlight.release();
+                publish.future.complete(null);
+            }
+        } else {
+            fail(confirmed, nack);
+        }
+    }
+
+    private void channelFailed(Channel failed, ShutdownSignalException e) {
+        List<PendingPublish> unconfirmed = new ArrayList<PendingPublish>();
+        synchronized (confirmLock) {
+            if (failed != channel)
+                return;
+            outstanding.removeAll(unconfirmed);
+            channel = null;
+            reopen = true;
+        }
+        LOGGER.error("Confirm channel of publisher {} closed by the broker: {}. Failing {} unconfirmed messages, will reopen on next publish.",
+                publisherId, e.getReason(), unconfirmed.size());
+        fail(unconfirmed, new IOException("Confirm channel closed by the broker before the message was confirmed", e));
+    }
+
+    private void fail(List<PendingPublish> publishes, IOException cause) {
+        for (PendingPublish publish : publishes) {
+            inFlight.release();
+            publish.future.completeExceptionally(cause);
+        }
+    }
+
+    private static class PendingPublish {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        PendingPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+}
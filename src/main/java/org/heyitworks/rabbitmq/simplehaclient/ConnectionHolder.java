@@ -0,0 +1,311 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * holds the client's current connection. Reads of a healthy connection are a single volatile read; only
+ * (re)connecting takes a lock, and callers choose how long they are willing to wait for another thread's connection
+ * attempt (0 fails fast). Every connection gets a generation number so a thread that saw generation n fail can
+ * tell whether somebody else already replaced it.
+ * <p/>
+ * With a standby enabled the holder also keeps a second, fully established connection to a different address.
+ * Replacing a failed connection then promotes the standby instead of connecting, and a new standby is opened in the
+ * background.
+ *
+ * @author maciekr
+ */
+class ConnectionHolder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHolder.class);
+
+    interface ConnectionListener {
+        /**
+         * called under the connect lock once a new connection is established, before any caller gets to see it.
+         */
+        void connected(Connection connection, long generation);
+    }
+
+    static final class Generation {
+        final Connection connection;
+        final Address address;
+        final long number;
+
+        Generation(Connection connection, Address address, long number) {
+            this.connection = connection;
+            this.address = address;
+            this.number = number;
+        }
+
+        boolean isOpen() {
+            return connection != null && connection.isOpen();
+        }
+    }
+
+    private static final Generation NONE = new Generation(null, null, 0);
+    private static final long STANDBY_RETRY_DELAY = 5000;
+
+    private volatile ConnectionFactory connectionFactory;
+    private final Address[] addresses;
+    private final ConnectionListener listener;
+    private volatile ReconnectScheduler scheduler;
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private volatile Generation current = NONE;
+    private volatile boolean closed;
+
+    private final AtomicReference<Generation> standby = new AtomicReference<Generation>();
+    private final AtomicBoolean standbyScheduled = new AtomicBoolean();
+    private volatile ScheduledExecutorService standbyOpener;
+
+    ConnectionHolder(ConnectionFactory connectionFactory, Address[] addresses, ConnectionListener listener) {
+        this.connectionFactory = connectionFactory;
+        this.addresses = addresses;
+        this.listener = listener;
+        this.scheduler = new BackoffReconnectScheduler(addresses);
+    }
+
+    ConnectionFactory connectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * connections opened from now on come from the given factory
+     */
+    void setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    ReconnectScheduler scheduler() {
+        return scheduler;
+    }
+
+    void setScheduler(ReconnectScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * starts keeping a standby connection, opened in the background right away if the holder is connected already
+     */
+    synchronized void enableStandby() {
+        if (standbyOpener != null)
+            return;
+        standbyOpener = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AMQPStandbyOpener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (current.isOpen())
+            scheduleStandby(0);
+    }
+
+    /**
+     * @return the standby connection, null if there is none (yet)
+     */
+    Generation standby() {
+        return standby.get();
+    }
+
+    /**
+     * @return the open connection and its generation, connecting if there is none
+     */
+    Generation get(long waitMillis) throws IOException {
+        Generation generation = current;
+        if (generation.isOpen())
+            return generation;
+        return replace(generation.number, waitMillis);
+    }
+
+    /**
+     * @return the last known connection, possibly closed; never connects
+     */
+    Generation current() {
+        return current;
+    }
+
+    /**
+     * closes and replaces the connection if it is still the given (failed) generation, otherwise returns whatever
+     * replaced it in the meantime.
+     */
+    Generation replace(long failedGeneration, long waitMillis) throws IOException {
+        lock(waitMillis);
+        try {
+            Generation generation = current;
+            if (generation.number != failedGeneration && generation.isOpen())
+                return generation;
+            if (closed)
+                throw new IOException("Connection holder for " + Arrays.toString(addresses) + " is closed");
+            boolean lost = generation.connection != null && !generation.connection.isOpen();
+            if (generation.connection != null) {
+                if (lost)
+                    scheduler.failed(generation.address);
+                try {
+                    generation.connection.close();
+                } catch (Exception e) {
+                }
+            }
+
+            Generation next = promoteStandby(generation.number + 1);
+            if (next == null)
+                next = connect(generation.number + 1);
+            else if (lost)
+                scheduler.promoted(next.address);
+            listener.connected(next.connection, next.number);
+            current = next;
+            if (standbyOpener != null)
+                scheduleStandby(0);
+            return next;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private Generation connect(long number) throws IOException {
+        ReconnectScheduler scheduler = this.scheduler;
+        Address[] candidates = scheduler.addresses();
+        LOGGER.info("Attempting to connect to {}", Arrays.toString(candidates));
+        IOException failure = null;
+        for (Address address : candidates) {
+            long start = System.nanoTime();
+            try {
+                Connection connection = connectionFactory.newConnection(new Address[]{address});
+                scheduler.connected(address, System.nanoTime() - start);
+                LOGGER.info("Connected to {}", connection);
+                return new Generation(connection, address, number);
+            } catch (IOException e) {
+                LOGGER.warn("Connecting to {} failed with {}", address, e.getMessage());
+                scheduler.failed(address);
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new IOException("No address to connect to in " + Arrays.toString(addresses));
+    }
+
+    private Generation promoteStandby(long number) {
+        Generation promoted = standby.getAndSet(null);
+        if (promoted == null)
+            return null;
+        if (!promoted.isOpen()) {
+            closeQuietly(promoted.connection);
+            return null;
+        }
+        LOGGER.info("Promoting standby connection {}", promoted.connection);
+        return new Generation(promoted.connection, promoted.address, number);
+    }
+
+    private void scheduleStandby(long delayMillis) {
+        if (closed || !standbyScheduled.compareAndSet(false, true))
+            return;
+        standbyOpener.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // cleared before the standby becomes visible, so promoting it right away schedules the next one;
+                // the opener is single threaded, a task scheduled meanwhile finds the standby open and returns
+                standbyScheduled.set(false);
+                if (!openStandby())
+                    scheduleStandby(STANDBY_RETRY_DELAY);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean openStandby() {
+        Generation existing = standby.get();
+        if (closed || existing != null && existing.isOpen())
+            return true;
+        Address primary = current.address;
+        ReconnectScheduler scheduler = this.scheduler;
+        for (Address address : scheduler.addresses()) {
+            if (address.equals(primary))
+                continue;
+            long start = System.nanoTime();
+            Connection connection;
+            try {
+                connection = connectionFactory.newConnection(new Address[]{address});
+            } catch (IOException e) {
+                LOGGER.warn("Opening standby connection to {} failed with {}", address, e.getMessage());
+                scheduler.failed(address);
+                continue;
+            }
+            scheduler.connected(address, System.nanoTime() - start);
+            if (address.equals(current.address)) {
+                // the previous standby got promoted while we were connecting
+                closeQuietly(connection);
+                continue;
+            }
+            final Generation opened = new Generation(connection, address, 0);
+            connection.addShutdownListener(new ShutdownListener() {
+                @Override
+                public void shutdownCompleted(ShutdownSignalException cause) {
+                    if (standby.compareAndSet(opened, null) && !closed) {
+                        LOGGER.warn("Standby connection {} lost: {}", opened.connection, cause.getReason());
+                        scheduleStandby(0);
+                    }
+                }
+            });
+            if (closed || !standby.compareAndSet(existing, opened)) {
+                closeQuietly(connection);
+                return true;
+            }
+            LOGGER.info("Opened standby connection {}", connection);
+            return true;
+        }
+        LOGGER.warn("No address other than {} to open a standby connection to, retrying in {}ms", primary, STANDBY_RETRY_DELAY);
+        return false;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * closes the current connection; the holder won't connect again.
+     */
+    void close() throws IOException {
+        closed = true;
+        Generation standbyGeneration = standby.getAndSet(null);
+        if (standbyGeneration != null)
+            closeQuietly(standbyGeneration.connection);
+        if (standbyOpener != null)
+            standbyOpener.shutdownNow();
+        Connection connection = current.connection;
+        if (connection != null && connection.isOpen()) {
+            connection.close();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void lock(long waitMillis) throws IOException {
+        try {
+            if (waitMillis <= 0 ? !connectLock.tryLock() : !connectLock.tryLock(waitMillis, TimeUnit.MILLISECONDS))
+                throw new IOException("Connection to " + Arrays.toString(addresses) + " is being established by another thread"
+                        + (waitMillis > 0 ? ", gave up waiting after " + waitMillis + "ms" : ""));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for connection to " + Arrays.toString(addresses));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib deflate ("deflate" content-encoding). Deflaters, inflaters and their scratch buffers are pooled, so a message
+ * costs the returned array only: neither the native zlib state nor a growing output stream is allocated per call.
+ * Scratch buffers beyond {@link #MAX_POOLED_BUFFER} aren't kept, so one huge message doesn't pin its buffer.
+ *
+ * @author maciekr
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    public static final String CONTENT_ENCODING = "deflate";
+
+    private static final int DEFAULT_POOL_SIZE = 16;
+    private static final int DEFAULT_MAX_DECODED_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_BUFFER = 4096;
+    private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+
+    private final int level;
+    private final int maxDecodedBytes;
+    private final BlockingQueue<Worker> pool;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_POOL_SIZE, DEFAULT_MAX_DECODED_BYTES);
+    }
+
+    /**
+     * @param level           deflate level, 1 (fastest) to 9 (smallest)
+     * @param poolSize        idle deflaters/inflaters kept, about the number of threads publishing or consuming
+     * @param maxDecodedBytes decoding fails rather than inflate a body beyond this
+     */
+    public DeflateCodec(int level, int poolSize, int maxDecodedBytes) {
+        this.level = level;
+        this.maxDecodedBytes = maxDecodedBytes;
+        this.pool = new ArrayBlockingQueue<Worker>(poolSize);
+    }
+
+    @Override
+    public String contentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    @Override
+    public byte[] encode(byte[] body) {
+        Worker worker = lease();
+        try {
+            Deflater deflater = worker.deflater;
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] buffer = worker.buffer(body.length / 2 + 64);
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == buffer.length)
+                    buffer = worker.grow(size);
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            return Arrays.copyOf(buffer, size);
+        } finally {
+            release(worker);
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] body) throws IOException {
+        Worker worker = lease();
+        try {
+            Inflater inflater = worker.inflater;
+            inflater.setInput(body);
+            byte[] buffer = worker.buffer((int) Math.min(body.length * 4L, maxDecodedBytes));
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size >= maxDecodedBytes)
+                    throw new IOException("Deflated body inflates beyond " + maxDecodedBytes + " bytes");
+                if (size == buffer.length)
+                    buffer = worker.grow(size);
+                int inflated = inflater.inflate(buffer, size, Math.min(buffer.length, maxDecodedBytes) - size);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated deflated body of " + body.length + " bytes");
+                size += inflated;
+            }
+            return Arrays.copyOf(buffer, size);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflated body: " + e.getMessage());
+        } finally {
+            release(worker);
+        }
+    }
+
+    private Worker lease() {
+        Worker worker = pool.poll();
+        return worker != null ? worker : new Worker(level);
+    }
+
+    private void release(Worker worker) {
+        worker.deflater.reset();
+        worker.inflater.reset();
+        if (worker.scratch.length > MAX_POOLED_BUFFER)
+            worker.scratch = new byte[MIN_BUFFER];
+        if (!pool.offer(worker))
+            worker.end();
+    }
+
+    private static class Worker {
+        final Deflater deflater;
+        final Inflater inflater = new Inflater();
+        byte[] scratch = new byte[MIN_BUFFER];
+
+        Worker(int level) {
+            deflater = new Deflater(level);
+        }
+
+        byte[] buffer(int expected) {
+            if (scratch.length < expected)
+                scratch = new byte[expected];
+            return scratch;
+        }
+
+        byte[] grow(int size) {
+            scratch = Arrays.copyOf(scratch, size * 2);
+            return scratch;
+        }
+
+        void end() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * consumes a queue through {@link RabbitHAClient} and hands deliveries to a striped pool of worker threads instead
+ * of handling them on the connection's dispatch thread, so a slow handler doesn't hold up every other consumer of
+ * the connection. Deliveries with the same key (routing key by default, or a header) go to the same worker and are
+ * handled in the order they arrived.
+ * <p/>
+ * Acks are sent with multiple=true for the longest run of handled deliveries, once ackBatch (or half the prefetch)
+ * of them piled up, and every 100ms for whatever is left. Handlers failing get their delivery rejected on its own.
+ * The consumer owns its channel, which is opened by a callback operation and therefore reopened when the client
+ * recovers. Deliveries of a lost channel still waiting for a worker are dropped, and nothing is acked for them,
+ * since the broker redelivers them on the new channel with new delivery tags.
+ *
+ * @author maciekr
+ */
+public class DispatchingConsumer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DispatchingConsumer.class);
+
+    private static final int DEFAULT_ACK_BATCH = 64;
+    private static final long ACK_FLUSH_INTERVAL = 100;
+
+    public interface Handler {
+        void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception;
+    }
+
+    public interface KeyExtractor {
+        /**
+         * @return the key deliveries are ordered by, null if they don't need ordering
+         */
+        Object key(Envelope envelope, AMQP.BasicProperties properties);
+    }
+
+    public static final KeyExtractor BY_ROUTING_KEY = new KeyExtractor() {
+        @Override
+        public Object key(Envelope envelope, AMQP.BasicProperties properties) {
+            return envelope.getRoutingKey();
+        }
+    };
+
+    /**
+     * orders deliveries by a header, falling back to the routing key for deliveries without it
+     */
+    public static KeyExtractor byHeader(final String header) {
+        return new KeyExtractor() {
+            @Override
+            public Object key(Envelope envelope, AMQP.BasicProperties properties) {
+                Map<String, Object> headers = properties != null ? properties.getHeaders() : null;
+                Object key = headers != null ? headers.get(header) : null;
+                return key != null ? key.toString() : envelope.getRoutingKey();
+            }
+        };
+    }
+
+    private final RabbitHAClient haClient;
+    private final String queue;
+    private final PrefetchController prefetchController;
+    private volatile int prefetch;
+    private final int ackBatch;
+    private final KeyExtractor keys;
+    private final Handler handler;
+    private final ExecutorService[] workers;
+    private final ScheduledExecutorService ackFlusher;
+    private volatile Session session;
+    private volatile boolean requeueOnFailure = true;
+    private volatile DuplicateFilter duplicateFilter;
+    private volatile boolean closed;
+
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+
+    private final RabbitHAClient.RabbitOperation consume = new RabbitHAClient.RabbitOperation() {
+        @Override
+        public void execute(Connection connection) throws IOException {
+            consume(connection);
+        }
+
+        @Override
+        public String operationId() {
+            return queue + "-DISPATCHING-CONSUMER";
+        }
+    };
+
+    public DispatchingConsumer(RabbitHAClient haClient, String queue, int prefetch, int workerCount,
+                               KeyExtractor keys, Handler handler) {
+        this(haClient, queue, prefetch, workerCount, keys, handler, DEFAULT_ACK_BATCH);
+    }
+
+    /**
+     * @param prefetch basicQos of the consumer's channel, bounding the deliveries held by the workers
+     * @param ackBatch how many handled deliveries may pile up before they are acked
+     */
+    public DispatchingConsumer(RabbitHAClient haClient, String queue, int prefetch, int workerCount,
+                               KeyExtractor keys, Handler handler, int ackBatch) {
+        this(haClient, queue, prefetch, null, workerCount, keys, handler, ackBatch);
+    }
+
+    public DispatchingConsumer(RabbitHAClient haClient, String queue, PrefetchController prefetch, int workerCount,
+                               KeyExtractor keys, Handler handler) {
+        this(haClient, queue, prefetch, workerCount, keys, handler, DEFAULT_ACK_BATCH);
+    }
+
+    /**
+     * @param prefetch tunes the basicQos of the consumer's channel while it consumes, see {@link PrefetchController}
+     */
+    public DispatchingConsumer(RabbitHAClient haClient, String queue, PrefetchController prefetch, int workerCount,
+                               KeyExtractor keys, Handler handler, int ackBatch) {
+        this(haClient, queue, prefetch.getPrefetch(), prefetch, workerCount, keys, handler, ackBatch);
+    }
+
+    private DispatchingConsumer(RabbitHAClient haClient, final String queue, int prefetch,
+                                PrefetchController prefetchController, int workerCount, KeyExtractor keys,
+                                Handler handler, int ackBatch) {
+        this.haClient = haClient;
+        this.queue = queue;
+        this.prefetch = prefetch;
+        this.prefetchController = prefetchController;
+        this.ackBatch = ackBatch;
+        this.keys = keys;
+        this.handler = handler;
+        this.workers = new ExecutorService[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            final int index = i;
+            workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AMQPDispatcher-" + queue + "-" + index);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.ackFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AMQPAckFlusher-" + queue);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ackFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Session current = session;
+                if (current != null)
+                    current.flush();
+            }
+        }, ACK_FLUSH_INTERVAL, ACK_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        if (prefetchController != null)
+            ackFlusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    adjustPrefetch();
+                }
+            }, prefetchController.getIntervalMillis(), prefetchController.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        haClient.doInRabbit(consume, true);
+    }
+
+    /**
+     * whether deliveries whose handler failed go back to the queue (the default) or get dropped or dead-lettered
+     */
+    public void setRequeueOnFailure(boolean requeueOnFailure) {
+        this.requeueOnFailure = requeueOnFailure;
+    }
+
+    /**
+     * acks deliveries the filter has seen handled before without handing them to the handler. A delivery is recorded
+     * only once it was handled successfully, so a failed one is still handled when the broker redelivers it.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return deliveries of a lost channel dropped before being handled, to be redelivered by the broker
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return basicAck calls, each acking every handled delivery up to its tag
+     */
+    public long getAckCount() {
+        return acks.get();
+    }
+
+    /**
+     * @return the prefetch the consumer's channel currently uses
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * stops consuming; deliveries still waiting for a worker are dropped and go back to the queue with the channel.
+     */
+    public void close() {
+        closed = true;
+        Session current = session;
+        if (current != null) {
+            current.invalidate();
+            try {
+                current.channel.close();
+            } catch (Exception e) {
+            }
+        }
+        for (ExecutorService worker : workers)
+            worker.shutdown();
+        ackFlusher.shutdown();
+    }
+
+    private void consume(Connection connection) throws IOException {
+        if (closed)
+            return;
+        if (prefetchController != null)
+            prefetch = prefetchController.getPrefetch();
+        Channel channel = connection.createChannel();
+        channel.basicQos(prefetch);
+        Session opened = new Session(channel);
+        Session previous = session;
+        session = opened;
+        if (previous != null)
+            previous.invalidate();
+        channel.basicConsume(queue, false, opened);
+    }
+
+    /**
+     * the current channel gets the new prefetch right away, later ones when they are opened
+     */
+    private void adjustPrefetch() {
+        int previous = prefetch;
+        int next = prefetchController.adjust(System.nanoTime(), workers.length);
+        if (next == previous)
+            return;
+        prefetch = next;
+        haClient.prefetchAdjusted(consume.operationId(), previous, next);
+        Session current = session;
+        if (current == null || !current.valid)
+            return;
+        try {
+            current.channel.basicQos(next);
+        } catch (IOException e) {
+            LOGGER.warn("Changing prefetch of consumer of {} failed with {}", queue, e.getMessage());
+        } catch (ShutdownSignalException e) {
+            LOGGER.warn("Changing prefetch of consumer of {} failed with {}", queue, e.getMessage());
+        }
+    }
+
+    /**
+     * never more than half the prefetch, or the broker would stop delivering before a batch is complete
+     */
+    private int ackBatch() {
+        int prefetch = this.prefetch;
+        return prefetch > 0 ? Math.max(Math.min(ackBatch, prefetch / 2), 1) : ackBatch;
+    }
+
+    private ExecutorService worker(Object key) {
+        return key == null ? workers[0] : workers[(key.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * the consumer on one channel; delivery tags only mean something to the channel they came from.
+     */
+    private class Session implements Consumer {
+        final Channel channel;
+        private volatile boolean valid = true;
+        private final TreeSet<Long> inFlight = new TreeSet<Long>();
+        private final TreeSet<Long> rejected = new TreeSet<Long>();
+        private long lastDelivered;
+        private long ackedUpTo;
+
+        Session(Channel channel) {
+            this.channel = channel;
+        }
+
+        void invalidate() {
+            valid = false;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            if (!valid)
+                return;
+            long tag = envelope.getDeliveryTag();
+            long unacked;
+            synchronized (this) {
+                inFlight.add(tag);
+                lastDelivered = tag;
+                unacked = tag - ackedUpTo;
+            }
+            if (prefetchController != null)
+                prefetchController.unacked((int) unacked);
+            worker(keys.key(envelope, properties)).execute(new Delivery(this, envelope, properties, body));
+        }
+
+        synchronized void completed(long tag, boolean succeeded) {
+            if (!valid)
+                return;
+            inFlight.remove(tag);
+            acknowledge(succeeded ? 0 : tag, ackBatch());
+        }
+
+        synchronized void flush() {
+            if (valid)
+                acknowledge(0, 1);
+        }
+
+        /**
+         * called with the session's lock held, so acks with multiple=true go out in order. A rejected delivery is
+         * settled already: the broker closes the channel for an ack ending on one, so the ack ends on the last
+         * handled delivery below them and the rejected ones on top only count as settled.
+         */
+        private void acknowledge(long reject, int ackAtLeast) {
+            try {
+                if (reject > 0) {
+                    channel.basicReject(reject, requeueOnFailure);
+                    rejected.add(reject);
+                }
+                long settled = inFlight.isEmpty() ? lastDelivered : inFlight.first() - 1;
+                if (settled - ackedUpTo >= ackAtLeast) {
+                    long ackable = settled;
+                    while (ackable > ackedUpTo && rejected.contains(ackable))
+                        ackable--;
+                    if (ackable > ackedUpTo) {
+                        channel.basicAck(ackable, true);
+                        acks.incrementAndGet();
+                    }
+                    ackedUpTo = settled;
+                    rejected.headSet(settled, true).clear();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Acking deliveries from {} failed with {}, leaving them to be redelivered", queue, e.getMessage());
+                invalidate();
+            } catch (ShutdownSignalException e) {
+                LOGGER.warn("Acking deliveries from {} failed with {}, leaving them to be redelivered", queue, e.getMessage());
+                invalidate();
+            }
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            invalidate();
+            if (!closed && !sig.isHardError() && !sig.isInitiatedByApplication()) {
+                // a channel error leaves the connection, and so recovery, alone; not resubscribing from the
+                // connection's thread, which must not wait for the broker
+                LOGGER.error("Channel of consumer of {} closed by the broker: {}. Resubscribing.", queue, sig.getReason());
+                haClient.doInRabbitAsync(consume);
+            }
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            LOGGER.warn("Consumer of {} cancelled by the broker", queue);
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+            LOGGER.info("Consuming {} with {} workers", queue, workers.length);
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleRecoverOk(String consumerTag) {
+        }
+    }
+
+    private class Delivery implements Runnable {
+        final Session session;
+        final Envelope envelope;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final long arrived = System.nanoTime();
+
+        Delivery(Session session, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            this.session = session;
+            this.envelope = envelope;
+            this.properties = properties;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            if (!session.valid) {
+                dropped.incrementAndGet();
+                return;
+            }
+            DuplicateFilter filter = duplicateFilter;
+            long fingerprint = 0;
+            if (filter != null) {
+                fingerprint = filter.fingerprint(properties, body);
+                if (filter.contains(fingerprint)) {
+                    session.completed(envelope.getDeliveryTag(), true);
+                    return;
+                }
+            }
+            boolean succeeded = false;
+            long start = System.nanoTime();
+            try {
+                handler.handle(envelope, properties, body);
+                succeeded = true;
+                handled.incrementAndGet();
+            } catch (Exception e) {
+                LOGGER.error("Handling delivery {} from {} failed", envelope.getDeliveryTag(), queue, e);
+                failed.incrementAndGet();
+            }
+            if (prefetchController != null)
+                prefetchController.handled(start - arrived, System.nanoTime() - start);
+            if (succeeded && filter != null)
+                filter.add(fingerprint);
+            session.completed(envelope.getDeliveryTag(), succeeded);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * remembers the messages a consumer has seen, so that the duplicates at-least-once delivery brings after every
+ * failover (republished operations, redelivered unacked messages) can be dropped. Messages are identified by a 64 bit
+ * fingerprint of their message-id or, if configured, of their body.
+ * <p/>
+ * Fingerprints go into two open-addressing tables allocated off-heap up front, the current and the previous
+ * generation. A check probes both; an add goes to the current one. Generations rotate every ttl, or earlier once
+ * the current one holds capacity fingerprints, so memory is fixed at {@link #getMemoryBytes()} and a message is
+ * remembered for at least ttl unless more than capacity messages arrive in that time. Checks and adds are O(1),
+ * as the tables are never more than half full. Two different messages collide only if their fingerprints do, see
+ * {@link #getFalsePositiveProbability()}.
+ *
+ * @author maciekr
+ */
+public class DuplicateFilter {
+
+    public enum Key {
+        MESSAGE_ID, BODY, MESSAGE_ID_OR_BODY
+    }
+
+    private static final long EMPTY = 0;
+    /**
+     * the largest capacity whose tables a ByteBuffer can hold: 1 << 27 slots of 8 bytes, 1GB per table
+     */
+    static final int MAX_CAPACITY = 1 << 25;
+
+    private final Key key;
+    private final int capacity;
+    private final int mask;
+    private final long ttlNanos;
+    private ByteBuffer current;
+    private ByteBuffer previous;
+    private int currentCount;
+    private int previousCount;
+    private long currentStarted;
+
+    private long checks;
+    private long hits;
+    private long unkeyed;
+    private long rotations;
+
+    /**
+     * @param capacity messages remembered per generation
+     * @param ttl      how long a generation takes messages before it becomes the previous one
+     */
+    public DuplicateFilter(Key key, int capacity, long ttl, TimeUnit unit) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + ", was " + capacity);
+        this.key = key;
+        this.capacity = capacity;
+        int tableBytes = (int) tableBytes(capacity);
+        this.mask = tableBytes / 8 - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.current = ByteBuffer.allocateDirect(tableBytes);
+        this.previous = ByteBuffer.allocateDirect(tableBytes);
+        this.currentStarted = System.nanoTime();
+    }
+
+    /**
+     * @return bytes of one table: highestOneBit(capacity) * 4 slots (at most half full) of 8 bytes
+     */
+    static long tableBytes(int capacity) {
+        return (long) Integer.highestOneBit(capacity) * 4 * 8;
+    }
+
+    /**
+     * @return fingerprint of the message, 0 if it has no message-id and the body isn't used
+     */
+    public long fingerprint(AMQP.BasicProperties properties, byte[] body) {
+        String messageId = properties != null ? properties.getMessageId() : null;
+        if (key != Key.BODY && messageId != null)
+            return fingerprint(messageId);
+        if (key == Key.MESSAGE_ID || body == null)
+            return EMPTY;
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body)
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        return nonEmpty(mix(hash));
+    }
+
+    static long fingerprint(String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++)
+            hash = (hash ^ messageId.charAt(i)) * 0x100000001b3L;
+        return nonEmpty(mix(hash));
+    }
+
+    /**
+     * records the message and tells whether it was seen before; messages without a fingerprint are never
+     * duplicates.
+     */
+    public synchronized boolean isDuplicate(AMQP.BasicProperties properties, byte[] body) {
+        long fingerprint = fingerprint(properties, body);
+        if (contains(fingerprint))
+            return true;
+        add(fingerprint);
+        return false;
+    }
+
+    public boolean contains(long fingerprint) {
+        return contains(fingerprint, System.nanoTime());
+    }
+
+    /**
+     * records a fingerprint, e.g. once its message was handled successfully
+     */
+    public void add(long fingerprint) {
+        add(fingerprint, System.nanoTime());
+    }
+
+    synchronized boolean contains(long fingerprint, long now) {
+        if (fingerprint == EMPTY) {
+            unkeyed++;
+            return false;
+        }
+        rotateIfExpired(now);
+        checks++;
+        if (find(current, fingerprint) || find(previous, fingerprint)) {
+            hits++;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void add(long fingerprint, long now) {
+        if (fingerprint == EMPTY)
+            return;
+        rotateIfExpired(now);
+        if (find(current, fingerprint))
+            return;
+        if (currentCount >= capacity)
+            rotate(now);
+        int slot = (int) fingerprint & mask;
+        while (current.getLong(slot << 3) != EMPTY)
+            slot = (slot + 1) & mask;
+        current.putLong(slot << 3, fingerprint);
+        currentCount++;
+    }
+
+    /**
+     * wraps a consumer so that it never sees a message twice; meant for auto-ack consumers, as the message is
+     * recorded before the delegate handles it.
+     */
+    public Consumer filter(final Consumer delegate) {
+        return new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                if (!isDuplicate(properties, body))
+                    delegate.handleDelivery(consumerTag, envelope, properties, body);
+            }
+
+            @Override
+            public void handleConsumeOk(String consumerTag) {
+                delegate.handleConsumeOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancelOk(String consumerTag) {
+                delegate.handleCancelOk(consumerTag);
+            }
+
+            @Override
+            public void handleCancel(String consumerTag) throws IOException {
+                delegate.handleCancel(consumerTag);
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                delegate.handleShutdownSignal(consumerTag, sig);
+            }
+
+            @Override
+            public void handleRecoverOk(String consumerTag) {
+                delegate.handleRecoverOk(consumerTag);
+            }
+        };
+    }
+
+    public synchronized long getCheckCount() {
+        return checks;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return share of checked messages found to be duplicates
+     */
+    public synchronized double getHitRate() {
+        return checks == 0 ? 0 : (double) hits / checks;
+    }
+
+    /**
+     * @return messages let through unchecked for lack of a message-id
+     */
+    public synchronized long getUnkeyedCount() {
+        return unkeyed;
+    }
+
+    public synchronized long getRotationCount() {
+        return rotations;
+    }
+
+    /**
+     * @return fingerprints currently remembered
+     */
+    public synchronized int size() {
+        return currentCount + previousCount;
+    }
+
+    /**
+     * @return chance that a new message is taken for a duplicate: that its fingerprint matches one of the remembered
+     * ones
+     */
+    public synchronized double getFalsePositiveProbability() {
+        return (currentCount + previousCount) / 18446744073709551616.0;
+    }
+
+    /**
+     * @return off-heap memory held by the two tables, 2 * highestOneBit(capacity) * 4 slots * 8 bytes, fixed for
+     * the filter's lifetime
+     */
+    public long getMemoryBytes() {
+        return 2L * current.capacity();
+    }
+
+    private boolean find(ByteBuffer table, long fingerprint) {
+        int slot = (int) fingerprint & mask;
+        long stored;
+        while ((stored = table.getLong(slot << 3)) != EMPTY) {
+            if (stored == fingerprint)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rotateIfExpired(long now) {
+        long age = now - currentStarted;
+        if (age >= ttlNanos) {
+            rotate(now);
+            // nothing arrived for a whole generation, so the previous one expired as well
+            if (age >= 2 * ttlNanos)
+                rotate(now);
+        }
+    }
+
+    private void rotate(long now) {
+        ByteBuffer recycled = previous;
+        for (int i = 0; i < recycled.capacity(); i += 8)
+            recycled.putLong(i, EMPTY);
+        previous = current;
+        previousCount = currentCount;
+        current = recycled;
+        currentCount = 0;
+        currentStarted = now;
+        rotations++;
+    }
+
+    private static long nonEmpty(long fingerprint) {
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+
+    /**
+     * murmur3's finalizer, spreading FNV's weak low bits over the whole word
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
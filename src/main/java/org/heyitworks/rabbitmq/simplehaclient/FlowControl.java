@@ -0,0 +1,275 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.FlowListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * tracks whether the broker lets the client publish, so producers can back off instead of hanging in basicPublish.
+ * Two ways the broker holds publishers back are told apart:
+ * <ul>
+ * <li>channel.flow: the broker asks channels to stop publishing; seen through a {@link FlowListener} on every
+ * {@link #watch watched} channel. Flow is tracked per channel and forgotten once the channel closes, so a stopped
+ * channel that gets discarded doesn't hold up publishing on the others.</li>
+ * <li>a blocked connection (memory or disk alarm): the broker stops reading from the socket without telling this
+ * version of the protocol client, so publishes just don't return. A publish stuck for blockedAfter counts as blocked
+ * as long as the broker is still heard from; with stall detection enabled its heartbeats keep arriving, while a
+ * dead connection goes silent and is left to stall detection and recovery.</li>
+ * </ul>
+ * Producers either ask ({@link #getState()}, {@link #awaitRunning}) or use the client's tryPublish and timed publish,
+ * which also hold a credit of the optional credit window while publishing, bounding how many threads can pile up
+ * inside a blocked socket.
+ *
+ * @author maciekr
+ */
+public class FlowControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlowControl.class);
+
+    private static final long DEFAULT_BLOCKED_AFTER = 1000;
+    private static final long POLL_INTERVAL = 10;
+
+    public enum State {
+        RUNNING, FLOW_STOPPED, BLOCKED
+    }
+
+    private volatile long blockedAfterNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCKED_AFTER);
+    private volatile StallWatchdog.ProgressProbe inbound;
+    private volatile long inboundStaleNanos;
+    private final Credits credits = new Credits();
+    private volatile int creditLimit;
+
+    private final AtomicInteger publishing = new AtomicInteger();
+    private volatile long lastProgress = System.nanoTime();
+    private final Set<Channel> flowStopped = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+    private final AtomicBoolean blocked = new AtomicBoolean();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong flowStoppedCount = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param blockedAfterMillis how long a publish may take before the connection counts as blocked
+     */
+    public void setBlockedAfter(long blockedAfterMillis) {
+        this.blockedAfterNanos = TimeUnit.MILLISECONDS.toNanos(blockedAfterMillis);
+    }
+
+    /**
+     * bounds the number of publishes taking place at once; 0 (the default) leaves them unbounded. Resizing a window
+     * works any time, switching it on or off should happen before publishing starts.
+     */
+    public synchronized void setCreditWindow(int credits) {
+        if (credits < 0)
+            throw new IllegalArgumentException("Credit window must not be negative, was " + credits);
+        int change = credits - creditLimit;
+        if (change > 0)
+            this.credits.release(change);
+        else if (change < 0)
+            this.credits.reduce(-change);
+        this.creditLimit = credits;
+    }
+
+    public int getCreditWindow() {
+        return creditLimit;
+    }
+
+    /**
+     * @return credits not taken by publishes in progress, Integer.MAX_VALUE without a credit window
+     */
+    public int getAvailableCredits() {
+        return creditLimit > 0 ? credits.availablePermits() : Integer.MAX_VALUE;
+    }
+
+    public State getState() {
+        return state(System.nanoTime());
+    }
+
+    public boolean isRunning() {
+        return getState() == State.RUNNING;
+    }
+
+    /**
+     * waits until the broker lets the client publish
+     *
+     * @return false if it still doesn't after the timeout
+     */
+    public boolean awaitRunning(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isRunning()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, POLL_INTERVAL));
+        }
+        return true;
+    }
+
+    /**
+     * @return times the connection was found blocked
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * @return times the broker stopped publishing with channel.flow
+     */
+    public long getFlowStoppedCount() {
+        return flowStoppedCount.get();
+    }
+
+    /**
+     * @return tryPublish and timed publishes turned away
+     */
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    /**
+     * @return publishes currently inside basicPublish
+     */
+    public int getPublishingCount() {
+        return publishing.get();
+    }
+
+    /**
+     * tracks channel.flow on the channel until it closes
+     */
+    void watch(final Channel channel) {
+        channel.addFlowListener(new FlowListener() {
+            @Override
+            public void handleFlow(boolean active) {
+                flow(channel, active);
+            }
+        });
+        channel.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                if (flowStopped.remove(channel) && flowStopped.isEmpty())
+                    LOGGER.info("Flow stopped channel {} closed, publishing resumed", channel);
+            }
+        });
+    }
+
+    private void flow(Channel channel, boolean active) {
+        if (active) {
+            if (flowStopped.remove(channel) && flowStopped.isEmpty())
+                LOGGER.warn("Broker resumed publishing by channel.flow");
+        } else if (flowStopped.add(channel) && flowStopped.size() == 1) {
+            flowStoppedCount.incrementAndGet();
+            LOGGER.warn("Broker stopped publishing by channel.flow");
+        }
+    }
+
+    /**
+     * judges blocked connections by whether the probe saw inbound traffic within staleAfter
+     */
+    void setInbound(StallWatchdog.ProgressProbe inbound, long staleAfterMillis) {
+        this.inboundStaleNanos = TimeUnit.MILLISECONDS.toNanos(staleAfterMillis);
+        this.inbound = inbound;
+    }
+
+    State state(long now) {
+        if (!flowStopped.isEmpty())
+            return State.FLOW_STOPPED;
+        boolean stuck = publishing.get() > 0 && now - lastProgress > blockedAfterNanos && brokerHeard(now);
+        if (blocked.compareAndSet(!stuck, stuck)) {
+            if (stuck) {
+                blockedCount.incrementAndGet();
+                LOGGER.warn("No publish completed for {}ms while the broker is still heard from, connection is blocked",
+                        TimeUnit.NANOSECONDS.toMillis(now - lastProgress));
+            } else {
+                LOGGER.info("Connection unblocked");
+            }
+        }
+        return stuck ? State.BLOCKED : State.RUNNING;
+    }
+
+    /**
+     * takes a credit if the broker lets the client publish; pair with {@link #release()}
+     */
+    boolean tryAcquire() {
+        if (isRunning() && (creditLimit == 0 || credits.tryAcquire()))
+            return true;
+        refused.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * waits for the broker to let the client publish and for a credit; pair with {@link #release()}
+     */
+    boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (awaitRunning(timeout, unit)
+                && (creditLimit == 0 || credits.tryAcquire(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)))
+            return true;
+        refused.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * takes a credit, waiting as long as it takes; pair with {@link #release()}
+     */
+    void acquire() {
+        if (creditLimit > 0)
+            credits.acquireUninterruptibly();
+    }
+
+    void release() {
+        if (creditLimit > 0)
+            credits.release();
+    }
+
+    void publishing() {
+        if (publishing.getAndIncrement() == 0)
+            lastProgress = System.nanoTime();
+    }
+
+    void published() {
+        lastProgress = System.nanoTime();
+        publishing.decrementAndGet();
+    }
+
+    /**
+     * the connection went away: its channels and any stuck publishes with it
+     */
+    void connectionLost() {
+        for (Channel channel : flowStopped)
+            if (!channel.isOpen())
+                flowStopped.remove(channel);
+        lastProgress = System.nanoTime();
+    }
+
+    private boolean brokerHeard(long now) {
+        StallWatchdog.ProgressProbe inbound = this.inbound;
+        if (inbound == null)
+            return true; // no way to tell a dead connection apart, heartbeats will close it
+        long last = inbound.lastProgressNanos();
+        return last != Long.MIN_VALUE && now - last <= inboundStaleNanos;
+    }
+
+    private static class Credits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Credits() {
+            super(0);
+        }
+
+        void reduce(int permits) {
+            reducePermits(permits);
+        }
+    }
+}
@@ -5,10 +5,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * a simple implementation of a high availability client for RabbitMq
@@ -20,17 +24,33 @@ public class HAClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(HAClient.class);
 
     private static final int MAX_RETRIES = 5;
-    private static final int RETRY_DELAY = 5000;
+    private static final long DEFAULT_CONNECT_WAIT = 30000;
+    private static final int DEFAULT_CALLBACK_RECOVERY_PARALLELISM = 8;
 
-    private ConnectionFactory connectionFactory;
-    private Connection connection;
-    private Address[] addresses;
+    private final ConnectionHolder connectionHolder;
+    private volatile long connectWaitMillis = DEFAULT_CONNECT_WAIT;
 
     private Set<RabbitOperation> callbacks = Collections.newSetFromMap(new ConcurrentHashMap<RabbitOperation, Boolean>());
+    private volatile CallbackRecovery callbackRecovery = new CallbackRecovery(DEFAULT_CALLBACK_RECOVERY_PARALLELISM, "HACallbackRecoverer");
+    private final CallbackRecovery.Replay<RabbitOperation> callbackReplay = new CallbackRecovery.Replay<RabbitOperation>() {
+        @Override
+        public void replay(RabbitOperation operation) {
+            LOGGER.warn("Recovering registered callback RabbitOperation {}", operation);
+            doInRabbit(operation, false); //just peek and keep in the set
+        }
+
+        @Override
+        public String operationId(RabbitOperation operation) {
+            return operation.operationId();
+        }
+    };
+
+    private final HAClientMetrics metrics = new HAClientMetrics();
+    private volatile HAClientListener[] listeners = {metrics};
+    private final DoInRabbit doInRabbit = new DoInRabbit();
 
     public HAClient(Address[] addresses, String vhost, String user, String pass, boolean useSSL) {
-        this.addresses = addresses;
-        this.connectionFactory = new ConnectionFactory();
+        ConnectionFactory connectionFactory = new ConnectionFactory();
         try {
             connectionFactory.setVirtualHost(vhost);
             connectionFactory.setUsername(user);
@@ -40,6 +60,11 @@ public class HAClient {
         } catch (Exception e) {
             throw new RuntimeException("Rabbit ConnectionFactory construction failed!", e);
         }
+        this.connectionHolder = new ConnectionHolder(connectionFactory, addresses, new RecoveringConnectionListener());
+    }
+
+    public HAClient(Address[] addresses, ConnectionFactory connectionFactory) {
+        this.connectionHolder = new ConnectionHolder(connectionFactory, addresses, new RecoveringConnectionListener());
     }
 
     public interface RabbitOperation {
@@ -48,63 +73,129 @@ public class HAClient {
     }
 
     public void doInRabbit(RabbitOperation operation) {
-        new DoInRabbit().doInRabbit(operation);
+        doInRabbit.doInRabbit(operation);
     }
 
     public void doInRabbit(RabbitOperation operation, boolean isCallback) {
-        new DoInRabbit().doInRabbit(operation, isCallback);
+        doInRabbit.doInRabbit(operation, isCallback);
     }
 
     public void doInRabbit(RabbitOperation operation, boolean isCallback, boolean failFast) {
-        new DoInRabbit().doInRabbit(operation, isCallback, failFast);
+        doInRabbit.doInRabbit(operation, isCallback, failFast);
     }
 
     public void shutdown() throws IOException {
+        Connection connection = connectionHolder.current().connection;
         if (connection != null && connection.isOpen()) {
             LOGGER.info("Shutting down HA client and its connection {}.", connection);
-            connection.close();
+            connectionHolder.close();
             callbacks = null;
         }
+        callbackRecovery.shutdown();
+        metrics.unregisterMBean();
     }
 
-    private synchronized Connection getConnection() throws IOException {
+    /**
+     * sets how many callbacks are replayed in parallel after a reconnect, see {@link RecoveryPriority}
+     */
+    public void setCallbackRecoveryParallelism(int parallelism) {
+        CallbackRecovery previous = callbackRecovery;
+        callbackRecovery = new CallbackRecovery(parallelism, "HACallbackRecoverer");
+        previous.shutdown();
+    }
+
+    /**
+     * @return how long the last replay of each registered callback took in ms, by operation id
+     */
+    public Map<String, Long> getCallbackRecoveryLatencies() {
+        return callbackRecovery.latencies();
+    }
+
+    /**
+     * @return the client's built-in metrics, see {@link HAClientMetrics#registerMBean(String)} to expose them over JMX
+     */
+    public HAClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * adds a listener for operation and recovery events, next to the built-in {@link #getMetrics() metrics}
+     */
+    public synchronized void addListener(HAClientListener listener) {
+        HAClientListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
 
-        if (connection == null || !connection.isOpen()) {
-            LOGGER.info("Attempting to connect to {}", Arrays.toString(addresses));
-            connection = connectionFactory.newConnection(addresses);
-            LOGGER.info("Connected to {}", connection);
+    public synchronized void removeListener(HAClientListener listener) {
+        List<HAClientListener> remaining = new ArrayList<HAClientListener>(Arrays.asList(listeners));
+        remaining.remove(listener);
+        listeners = remaining.toArray(new HAClientListener[remaining.size()]);
+    }
+
+    /**
+     * replaces the default {@link BackoffReconnectScheduler}
+     */
+    public void setReconnectScheduler(ReconnectScheduler reconnectScheduler) {
+        connectionHolder.setScheduler(reconnectScheduler);
+    }
+
+    /**
+     * how long a caller waits for a connection another thread is establishing before its operation fails and goes
+     * through recovery; fail-fast operations never wait.
+     */
+    public void setConnectWaitMillis(long connectWaitMillis) {
+        this.connectWaitMillis = connectWaitMillis;
+    }
+
+    private ConnectionHolder.Generation getConnection(boolean failFast) throws IOException {
+        return connectionHolder.get(failFast ? 0 : connectWaitMillis);
+    }
+
+    private class RecoveringConnectionListener implements ConnectionHolder.ConnectionListener {
+        @Override
+        public void connected(Connection connection, final long generation) {
             connection.addShutdownListener(new ShutdownListener() {
                 @Override
                 public void shutdownCompleted(ShutdownSignalException e) {
                     if (!e.isInitiatedByApplication()) {
                         LOGGER.warn("Remote shutdown: {}. Will attempt to recover the connection on remote shutdown.", e.getReason());
-                        if (retryConnection(false)) {
-                            for (RabbitOperation operation : callbacks) {
-                                LOGGER.warn("Recovering registered callback RabbitOperation {}", operation);
-                                doInRabbit(operation, false); //just peek and keep in the set
+                        long lost = System.nanoTime();
+                        for (HAClientListener listener : listeners)
+                            listener.connectionLost(generation);
+                        if (retryConnection(false, generation)) {
+                            long reconnected = System.nanoTime();
+                            callbackRecovery.recover(callbacks, callbackReplay);
+                            long recovered = System.nanoTime();
+                            LOGGER.info("Recovered from an outage of {}ms", TimeUnit.NANOSECONDS.toMillis(recovered - lost));
+                            for (HAClientListener listener : listeners) {
+                                listener.callbacksRecovered(callbacks.size(), recovered - reconnected);
+                                listener.connectionRecovered(reconnected - lost, recovered - lost);
                             }
                         }
                     }
                 }
             });
         }
-        return connection;
     }
 
-    private synchronized boolean recoverConnection(int retry) {
+    private boolean recoverConnection(int retry, long failedGeneration) {
+        ConnectionHolder.Generation current = connectionHolder.current();
+        if (current.number != failedGeneration && current.isOpen())
+            return true;
+        long start = System.nanoTime();
         try {
-            LOGGER.warn("Delaying attempt to recover RabbitMQ connection {}", connection);
-            Thread.sleep(RETRY_DELAY);
-            LOGGER.warn("Attempting to recover RabbitMQ connection {}", connection);
-            if (connection != null)
-                try {
-                    connection.close();
-                    connection = null;
-                } catch (Exception e) {}
-
-            connection = getConnection();
+            long delay = connectionHolder.scheduler().nextDelayMillis(retry, !current.isOpen());
+            if (delay > 0) {
+                LOGGER.warn("Delaying attempt {} to recover RabbitMQ connection {} by {}ms", retry, current.connection, delay);
+                Thread.sleep(delay);
+            }
+            LOGGER.warn("Attempting to recover RabbitMQ connection {}", connectionHolder.current().connection);
+            connectionHolder.replace(failedGeneration, connectWaitMillis);
+            recoveryAttempted(retry, true, start);
             return true;
         } catch (IOException e) {
+            recoveryAttempted(retry, false, start);
             if (retry == MAX_RETRIES)
                 throw new RuntimeException("Can't recover RabbitMQ connection", e);
             else
@@ -114,10 +205,16 @@ public class HAClient {
         return false;
     }
 
-    private synchronized boolean retryConnection(boolean failFast) {
+    private void recoveryAttempted(int retry, boolean succeeded, long start) {
+        long nanos = System.nanoTime() - start;
+        for (HAClientListener listener : listeners)
+            listener.recoveryAttempted(retry, succeeded, nanos);
+    }
+
+    private boolean retryConnection(boolean failFast, long failedGeneration) {
         if (!failFast)
-            for (int i = 1; i <= MAX_RETRIES; i++) {
-                if (recoverConnection(i)) {
+            for (int i = 1; i <= MAX_RETRIES && !connectionHolder.isClosed(); i++) {
+                if (recoverConnection(i, failedGeneration)) {
                     return true;
                 }
             }
@@ -126,15 +223,24 @@ public class HAClient {
 
     private class DoInRabbit {
         void doInRabbit(RabbitOperation operation, boolean isCallback, boolean failFast) {
+            ConnectionHolder.Generation generation = null;
             try {
                 if (isCallback) {
                     LOGGER.info("Flagging RabbitOperation {} as callback and attaching to shutdown hook recovery.", operation.operationId());
                     callbacks.add(operation); //attach to shutdown hook
                 }
-                operation.execute(getConnection());
+                generation = getConnection(failFast);
+                long start = System.nanoTime();
+                operation.execute(generation.connection);
+                long nanos = System.nanoTime() - start;
+                String operationId = operation.operationId();
+                for (HAClientListener listener : listeners)
+                    listener.operationCompleted(operationId, nanos);
             } catch (IOException e) {
                 LOGGER.error("RabbitOperation {} failed with IOException", operation.operationId(), e); ;
-                if (retryConnection(failFast)) {
+                for (HAClientListener listener : listeners)
+                    listener.operationFailed(operation.operationId(), e);
+                if (retryConnection(failFast, generation != null ? generation.number : connectionHolder.current().number)) {
                     doInRabbit(operation, isCallback, failFast);
                 }
             }
@@ -0,0 +1,96 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+/**
+ * receives instrumentation events from {@link HAClient} and {@link RabbitHAClient}. Events are delivered on the
+ * thread that caused them, operation events on the caller's own thread, so implementations must be fast, must not
+ * block and should not allocate on {@link #operationCompleted}.
+ *
+ * @author maciekr
+ */
+public interface HAClientListener {
+
+    /**
+     * an operation executed successfully
+     *
+     * @param nanos time spent executing it, not counting waiting for a connection
+     */
+    void operationCompleted(String operationId, long nanos);
+
+    /**
+     * an operation failed, with an IOException or because its connection was closed under it
+     */
+    void operationFailed(String operationId, Exception cause);
+
+    /**
+     * the connection of the given generation was lost and an outage started
+     */
+    void connectionLost(long generation);
+
+    /**
+     * an attempt to reconnect finished
+     *
+     * @param attempt 1 for the first attempt of a recovery
+     * @param nanos   time the attempt took, backoff delay included
+     */
+    void recoveryAttempted(int attempt, boolean succeeded, long nanos);
+
+    /**
+     * registered callbacks were replayed on a new connection
+     */
+    void callbacksRecovered(int callbacks, long nanos);
+
+    /**
+     * an outage ended
+     *
+     * @param timeToRecoverNanos from losing the connection to having a new one
+     * @param outageNanos        from losing the connection to having callbacks and pending operations re-executed
+     */
+    void connectionRecovered(long timeToRecoverNanos, long outageNanos);
+
+    /**
+     * the number of failed operations waiting for recovery changed
+     */
+    void pendingOperationsChanged(int pending);
+
+    /**
+     * a consumer's {@link PrefetchController} changed its prefetch
+     */
+    void prefetchAdjusted(String consumerId, int previous, int prefetch);
+
+    /**
+     * no-op listener to extend when only some of the events are of interest
+     */
+    class Adapter implements HAClientListener {
+        @Override
+        public void operationCompleted(String operationId, long nanos) {
+        }
+
+        @Override
+        public void operationFailed(String operationId, Exception cause) {
+        }
+
+        @Override
+        public void connectionLost(long generation) {
+        }
+
+        @Override
+        public void recoveryAttempted(int attempt, boolean succeeded, long nanos) {
+        }
+
+        @Override
+        public void callbacksRecovered(int callbacks, long nanos) {
+        }
+
+        @Override
+        public void connectionRecovered(long timeToRecoverNanos, long outageNanos) {
+        }
+
+        @Override
+        public void pendingOperationsChanged(int pending) {
+        }
+
+        @Override
+        public void prefetchAdjusted(String consumerId, int previous, int prefetch) {
+        }
+    }
+}
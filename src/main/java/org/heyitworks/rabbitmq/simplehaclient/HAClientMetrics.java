@@ -0,0 +1,263 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * the built-in {@link HAClientListener} every client keeps: counters and {@link LatencyHistogram}s of operations,
+ * recoveries and outages, readable directly or over JMX once {@link #registerMBean(String) registered}. Recording a
+ * completed operation is a handful of atomic increments and never allocates; only the first failure of each
+ * operation id does.
+ *
+ * @author maciekr
+ */
+public class HAClientMetrics implements HAClientListener, HAClientMetricsMXBean {
+
+    public static final String JMX_DOMAIN = "org.heyitworks.rabbitmq.simplehaclient";
+
+    private final LatencyHistogram operationLatency = new LatencyHistogram();
+    private final AtomicLong operationFailures = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> failuresById = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong connectionLosses = new AtomicLong();
+    private final AtomicLong recoveryAttempts = new AtomicLong();
+    private final AtomicLong failedRecoveryAttempts = new AtomicLong();
+    private final LatencyHistogram timeToRecover = new LatencyHistogram();
+    private final LatencyHistogram outages = new LatencyHistogram();
+    private volatile long lastTimeToRecover;
+    private volatile long lastOutage;
+    private volatile long lastCallbackRecovery;
+
+    private final AtomicInteger pendingOperations = new AtomicInteger();
+    private final AtomicInteger maxPendingOperations = new AtomicInteger();
+
+    private final AtomicLong prefetchAdjustments = new AtomicLong();
+    private final ConcurrentHashMap<String, Integer> prefetchByConsumer = new ConcurrentHashMap<String, Integer>();
+
+    private volatile ObjectName objectName;
+
+    @Override
+    public void operationCompleted(String operationId, long nanos) {
+        operationLatency.record(nanos);
+    }
+
+    @Override
+    public void operationFailed(String operationId, Exception cause) {
+        operationFailures.incrementAndGet();
+        String id = String.valueOf(operationId);
+        AtomicLong failures = failuresById.get(id);
+        if (failures == null) {
+            AtomicLong existing = failuresById.putIfAbsent(id, failures = new AtomicLong());
+            if (existing != null)
+                failures = existing;
+        }
+        failures.incrementAndGet();
+    }
+
+    @Override
+    public void connectionLost(long generation) {
+        connectionLosses.incrementAndGet();
+    }
+
+    @Override
+    public void recoveryAttempted(int attempt, boolean succeeded, long nanos) {
+        recoveryAttempts.incrementAndGet();
+        if (!succeeded)
+            failedRecoveryAttempts.incrementAndGet();
+    }
+
+    @Override
+    public void callbacksRecovered(int callbacks, long nanos) {
+        lastCallbackRecovery = nanos;
+    }
+
+    @Override
+    public void connectionRecovered(long timeToRecoverNanos, long outageNanos) {
+        timeToRecover.record(timeToRecoverNanos);
+        outages.record(outageNanos);
+        lastTimeToRecover = timeToRecoverNanos;
+        lastOutage = outageNanos;
+    }
+
+    @Override
+    public void pendingOperationsChanged(int pending) {
+        pendingOperations.set(pending);
+        int max;
+        while (pending > (max = maxPendingOperations.get()) && !maxPendingOperations.compareAndSet(max, pending)) ;
+    }
+
+    @Override
+    public void prefetchAdjusted(String consumerId, int previous, int prefetch) {
+        prefetchAdjustments.incrementAndGet();
+        prefetchByConsumer.put(consumerId, prefetch);
+    }
+
+    /**
+     * registers these metrics with the platform MBean server as
+     * org.heyitworks.rabbitmq.simplehaclient:type=HAClient,name=&lt;clientName&gt;
+     */
+    public synchronized ObjectName registerMBean(String clientName) {
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=HAClient,name=" + ObjectName.quote(clientName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+            return name;
+        } catch (JMException e) {
+            throw new RuntimeException("Can't register HA client metrics for " + clientName, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new RuntimeException("Can't unregister HA client metrics " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    public LatencyHistogram getOperationLatency() {
+        return operationLatency;
+    }
+
+    public LatencyHistogram getTimeToRecover() {
+        return timeToRecover;
+    }
+
+    public LatencyHistogram getOutages() {
+        return outages;
+    }
+
+    @Override
+    public long getOperationCount() {
+        return operationLatency.getCount();
+    }
+
+    @Override
+    public long getOperationFailureCount() {
+        return operationFailures.get();
+    }
+
+    @Override
+    public Map<String, Long> getOperationFailuresById() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : failuresById.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        return snapshot;
+    }
+
+    @Override
+    public long getOperationLatencyMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(operationLatency.getMeanNanos());
+    }
+
+    @Override
+    public long getOperationLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(operationLatency.getPercentileNanos(50));
+    }
+
+    @Override
+    public long getOperationLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(operationLatency.getPercentileNanos(99));
+    }
+
+    @Override
+    public long getOperationLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(operationLatency.getMaxNanos());
+    }
+
+    @Override
+    public long getConnectionLossCount() {
+        return connectionLosses.get();
+    }
+
+    @Override
+    public long getRecoveryAttemptCount() {
+        return recoveryAttempts.get();
+    }
+
+    @Override
+    public long getFailedRecoveryAttemptCount() {
+        return failedRecoveryAttempts.get();
+    }
+
+    @Override
+    public long getRecoveryCount() {
+        return outages.getCount();
+    }
+
+    @Override
+    public long getLastTimeToRecoverMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastTimeToRecover);
+    }
+
+    @Override
+    public long getMaxTimeToRecoverMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeToRecover.getMaxNanos());
+    }
+
+    @Override
+    public long getLastOutageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastOutage);
+    }
+
+    @Override
+    public long getMaxOutageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(outages.getMaxNanos());
+    }
+
+    @Override
+    public long getLastCallbackRecoveryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastCallbackRecovery);
+    }
+
+    @Override
+    public int getPendingOperations() {
+        return pendingOperations.get();
+    }
+
+    @Override
+    public int getMaxPendingOperations() {
+        return maxPendingOperations.get();
+    }
+
+    @Override
+    public long getPrefetchAdjustmentCount() {
+        return prefetchAdjustments.get();
+    }
+
+    @Override
+    public Map<String, Integer> getPrefetchByConsumer() {
+        return new TreeMap<String, Integer>(prefetchByConsumer);
+    }
+
+    @Override
+    public void reset() {
+        operationLatency.reset();
+        operationFailures.set(0);
+        failuresById.clear();
+        connectionLosses.set(0);
+        recoveryAttempts.set(0);
+        failedRecoveryAttempts.set(0);
+        timeToRecover.reset();
+        outages.reset();
+        lastTimeToRecover = 0;
+        lastOutage = 0;
+        lastCallbackRecovery = 0;
+        maxPendingOperations.set(pendingOperations.get());
+        prefetchAdjustments.set(0);
+    }
+}
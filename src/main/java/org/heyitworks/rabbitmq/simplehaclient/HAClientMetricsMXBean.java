@@ -0,0 +1,53 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link HAClientMetrics}; latencies are in microseconds, recovery times in milliseconds.
+ *
+ * @author maciekr
+ */
+public interface HAClientMetricsMXBean {
+
+    long getOperationCount();
+
+    long getOperationFailureCount();
+
+    Map<String, Long> getOperationFailuresById();
+
+    long getOperationLatencyMeanMicros();
+
+    long getOperationLatencyP50Micros();
+
+    long getOperationLatencyP99Micros();
+
+    long getOperationLatencyMaxMicros();
+
+    long getConnectionLossCount();
+
+    long getRecoveryAttemptCount();
+
+    long getFailedRecoveryAttemptCount();
+
+    long getRecoveryCount();
+
+    long getLastTimeToRecoverMillis();
+
+    long getMaxTimeToRecoverMillis();
+
+    long getLastOutageMillis();
+
+    long getMaxOutageMillis();
+
+    long getLastCallbackRecoveryMillis();
+
+    int getPendingOperations();
+
+    int getMaxPendingOperations();
+
+    long getPrefetchAdjustmentCount();
+
+    Map<String, Integer> getPrefetchByConsumer();
+
+    void reset();
+}
@@ -0,0 +1,124 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link BackoffReconnectScheduler} which tries the healthy address with the lowest connect time first. Every connect
+ * (TCP connect plus AMQP handshake) is timed and folded into an exponentially weighted moving average per address;
+ * addresses without a sample yet are tried after the measured ones, in the order they were given. Addresses that
+ * failed are still tried last, whatever their score.
+ * <p/>
+ * A client only ever connects to one address, so only that one gets measured by reconnects. Call
+ * {@link #probe(ConnectionFactory)} (e.g. at startup or from a timer) to sample all of them.
+ *
+ * @author maciekr
+ */
+public class LatencyAwareReconnectScheduler extends BackoffReconnectScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyAwareReconnectScheduler.class);
+
+    public static final double DEFAULT_SMOOTHING = 0.3;
+
+    private final double smoothing;
+    private final Map<Address, Double> scores = new HashMap<Address, Double>();
+
+    private final Comparator<AddressHealth> byFailuresThenScore = new Comparator<AddressHealth>() {
+        @Override
+        public int compare(AddressHealth a, AddressHealth b) {
+            if (a.consecutiveFailures != b.consecutiveFailures)
+                return a.consecutiveFailures < b.consecutiveFailures ? -1 : 1;
+            Double scoreA = scores.get(a.address);
+            Double scoreB = scores.get(b.address);
+            if (scoreA == null || scoreB == null)
+                return scoreA == null ? (scoreB == null ? 0 : 1) : -1;
+            return Double.compare(scoreA, scoreB);
+        }
+    };
+
+    public LatencyAwareReconnectScheduler(Address[] addresses) {
+        this(addresses, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param smoothing weight of the newest sample, between 0 (exclusive) and 1
+     */
+    public LatencyAwareReconnectScheduler(Address[] addresses, long baseDelayMillis, long maxDelayMillis, double smoothing) {
+        super(addresses, baseDelayMillis, maxDelayMillis);
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("Smoothing must be in (0, 1], was " + smoothing);
+        this.smoothing = smoothing;
+    }
+
+    @Override
+    public synchronized void connected(Address address, long connectNanos) {
+        super.connected(address, connectNanos);
+        sample(address, connectNanos);
+    }
+
+    /**
+     * opens and closes a connection to every address, scoring each one; an address that can't be connected to
+     * counts as failed, one that can is healthy again.
+     */
+    public void probe(ConnectionFactory connectionFactory) {
+        for (Address address : addresses()) {
+            long start = System.nanoTime();
+            try {
+                Connection connection = connectionFactory.newConnection(new Address[]{address});
+                long connectNanos = System.nanoTime() - start;
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                }
+                probed(address, connectNanos);
+            } catch (IOException e) {
+                LOGGER.warn("Probing {} failed with {}", address, e.getMessage());
+                failed(address);
+            }
+        }
+        LOGGER.info("Probed addresses, connect scores (ms) are {}", getScores());
+    }
+
+    /**
+     * @return the smoothed connect time in milliseconds of every address measured so far, best first
+     */
+    public synchronized Map<Address, Double> getScores() {
+        Map<Address, Double> snapshot = new LinkedHashMap<Address, Double>();
+        for (Address address : addresses()) {
+            Double score = scores.get(address);
+            if (score != null)
+                snapshot.put(address, score / 1000000d);
+        }
+        return snapshot;
+    }
+
+    @Override
+    protected Comparator<AddressHealth> order() {
+        return byFailuresThenScore;
+    }
+
+    /**
+     * like a connect, but leaves the backoff of the client's own connection alone
+     */
+    private synchronized void probed(Address address, long connectNanos) {
+        AddressHealth addressHealth = health(address);
+        addressHealth.consecutiveFailures = 0;
+        addressHealth.lastConnected = System.currentTimeMillis();
+        sample(address, connectNanos);
+    }
+
+    synchronized void sample(Address address, long connectNanos) {
+        health(address);
+        Double score = scores.get(address);
+        scores.put(address, score == null ? connectNanos : score + smoothing * (connectNanos - score));
+    }
+}
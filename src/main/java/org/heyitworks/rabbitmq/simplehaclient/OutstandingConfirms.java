@@ -0,0 +1,127 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import java.util.List;
+
+/**
+ * publisher confirm bookkeeping: values keyed by delivery tag, kept sorted in a growable ring of primitive longs.
+ * Delivery tags of a channel only ever increase, so adding is an append at the tail, a multiple ack pops a
+ * contiguous range off the head in one pass and a single ack is a binary search. Not thread safe.
+ *
+ * @author maciekr
+ */
+class OutstandingConfirms<T> {
+
+    private long[] tags;
+    private Object[] values;
+    private int head;
+    private int size;
+    private int live;
+
+    OutstandingConfirms(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1;
+        this.tags = new long[capacity];
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * @param tag must be greater than any tag added before
+     */
+    void add(long tag, T value) {
+        if (size > 0 && tag <= tags[index(size - 1)])
+            throw new IllegalArgumentException("Delivery tag " + tag + " is not greater than " + tags[index(size - 1)]);
+        if (size == tags.length)
+            grow();
+        int i = index(size);
+        tags[i] = tag;
+        values[i] = value;
+        size++;
+        live++;
+    }
+
+    /**
+     * @return the value stored under tag, or null when there is none
+     */
+    @SuppressWarnings("unchecked")
+    T remove(long tag) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTag = tags[index(mid)];
+            if (midTag < tag)
+                low = mid + 1;
+            else if (midTag > tag)
+                high = mid - 1;
+            else {
+                int i = index(mid);
+                T value = (T) values[i];
+                if (value != null) {
+                    values[i] = null;
+                    live--;
+                    compact();
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * moves every value with a tag less than or equal to the given one into removed, in tag order.
+     */
+    @SuppressWarnings("unchecked")
+    void removeUpTo(long tag, List<T> removed) {
+        while (size > 0 && tags[head] <= tag) {
+            T value = (T) values[head];
+            if (value != null) {
+                removed.add(value);
+                live--;
+            }
+            values[head] = null;
+            head = (head + 1) & (tags.length - 1);
+            size--;
+        }
+    }
+
+    /**
+     * moves every value into removed, in tag order, leaving the structure empty.
+     */
+    void removeAll(List<T> removed) {
+        removeUpTo(Long.MAX_VALUE, removed);
+    }
+
+    int size() {
+        return live;
+    }
+
+    boolean isEmpty() {
+        return live == 0;
+    }
+
+    /**
+     * drops tombstones left at either end by single removals, so a failed publish can reuse its tag.
+     */
+    private void compact() {
+        while (size > 0 && values[head] == null) {
+            head = (head + 1) & (tags.length - 1);
+            size--;
+        }
+        while (size > 0 && values[index(size - 1)] == null)
+            size--;
+    }
+
+    private int index(int offset) {
+        return (head + offset) & (tags.length - 1);
+    }
+
+    private void grow() {
+        long[] newTags = new long[tags.length << 1];
+        Object[] newValues = new Object[values.length << 1];
+        for (int i = 0; i < size; i++) {
+            newTags[i] = tags[index(i)];
+            newValues[i] = values[index(i)];
+        }
+        tags = newTags;
+        values = newValues;
+        head = 0;
+    }
+}
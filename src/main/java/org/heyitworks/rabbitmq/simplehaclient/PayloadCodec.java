@@ -0,0 +1,21 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import java.io.IOException;
+
+/**
+ * encodes message bodies for the wire, e.g. compresses them; see {@link CompressionStage}. Implementations must be
+ * thread safe.
+ *
+ * @author maciekr
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return the content-encoding messages encoded by this codec are tagged with
+     */
+    String contentEncoding();
+
+    byte[] encode(byte[] body) throws IOException;
+
+    byte[] decode(byte[] body) throws IOException;
+}
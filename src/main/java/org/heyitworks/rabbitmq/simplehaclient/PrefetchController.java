@@ -0,0 +1,166 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * tunes the prefetch (basicQos) of a {@link DispatchingConsumer} from what its handlers do. Every interval it looks
+ * at how long deliveries waited for a worker, how long handling them took, how busy the workers were and whether the
+ * broker had prefetch deliveries unacked:
+ * <ul>
+ * <li>prefetch reached while workers sat idle and deliveries didn't wait means the broker waits for acks instead of
+ * filling the pipeline, so the prefetch doubles</li>
+ * <li>deliveries waiting longer than maxWaitRatio times their handling means they pile up in the client, so the
+ * prefetch shrinks by a quarter</li>
+ * </ul>
+ * always within [min, max]. The controller outlives connections, so a recovered consumer starts from the tuned value.
+ *
+ * @author maciekr
+ */
+public class PrefetchController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchController.class);
+
+    private static final long DEFAULT_INTERVAL = 1000;
+    private static final double DEFAULT_MAX_WAIT_RATIO = 4;
+    private static final double STARVED_UTILIZATION = 0.9;
+
+    private final int min;
+    private final int max;
+    private final long intervalMillis;
+    private final double maxWaitRatio;
+    private volatile int prefetch;
+
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong handleNanos = new AtomicLong();
+    private final AtomicInteger maxUnacked = new AtomicInteger();
+    private long windowStart = System.nanoTime();
+
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private volatile double lastUtilization;
+    private volatile long lastMeanWaitNanos;
+    private volatile long lastMeanHandleNanos;
+    private volatile double lastRate;
+
+    public PrefetchController(int min, int max, int initial) {
+        this(min, max, initial, DEFAULT_INTERVAL, DEFAULT_MAX_WAIT_RATIO);
+    }
+
+    /**
+     * @param intervalMillis how often the prefetch is reconsidered
+     * @param maxWaitRatio   how many times its handling time a delivery may wait for a worker before the prefetch
+     *                       shrinks
+     */
+    public PrefetchController(int min, int max, int initial, long intervalMillis, double maxWaitRatio) {
+        if (min < 1 || max < min || initial < min || initial > max)
+            throw new IllegalArgumentException("Prefetch must satisfy 1 <= min <= initial <= max, was " + min + ", " + initial + ", " + max);
+        this.min = min;
+        this.max = max;
+        this.prefetch = initial;
+        this.intervalMillis = intervalMillis;
+        this.maxWaitRatio = maxWaitRatio;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getIncreaseCount() {
+        return increases.get();
+    }
+
+    public long getDecreaseCount() {
+        return decreases.get();
+    }
+
+    /**
+     * @return share of the last interval the workers spent handling deliveries
+     */
+    public double getLastUtilization() {
+        return lastUtilization;
+    }
+
+    public long getLastMeanWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastMeanWaitNanos);
+    }
+
+    public long getLastMeanHandleMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastMeanHandleNanos);
+    }
+
+    /**
+     * @return deliveries handled per second in the last interval
+     */
+    public double getLastRate() {
+        return lastRate;
+    }
+
+    /**
+     * a delivery was handled
+     *
+     * @param waitNanos   from arriving to a worker picking it up
+     * @param handleNanos spent in the handler
+     */
+    void handled(long waitNanos, long handleNanos) {
+        handled.incrementAndGet();
+        this.waitNanos.addAndGet(waitNanos);
+        this.handleNanos.addAndGet(handleNanos);
+    }
+
+    /**
+     * a delivery arrived with this many deliveries of the channel unacked, itself included
+     */
+    void unacked(int unacked) {
+        int max;
+        while (unacked > (max = maxUnacked.get()) && !maxUnacked.compareAndSet(max, unacked)) ;
+    }
+
+    /**
+     * closes the current interval; called by one thread only
+     *
+     * @return the prefetch to use from now on
+     */
+    int adjust(long now, int workers) {
+        long elapsed = now - windowStart;
+        windowStart = now;
+        long count = handled.getAndSet(0);
+        long waited = waitNanos.getAndSet(0);
+        long handling = handleNanos.getAndSet(0);
+        int unacked = maxUnacked.getAndSet(0);
+        if (count == 0 || elapsed <= 0)
+            return prefetch;
+
+        long meanWait = waited / count;
+        long meanHandle = handling / count;
+        double utilization = (double) handling / elapsed / workers;
+        lastMeanWaitNanos = meanWait;
+        lastMeanHandleNanos = meanHandle;
+        lastUtilization = utilization;
+        lastRate = count * 1e9 / elapsed;
+
+        int current = prefetch;
+        int next = current;
+        if (unacked >= current && utilization < STARVED_UTILIZATION && meanWait <= meanHandle)
+            next = (int) Math.min(max, current * 2L);
+        else if (meanWait > maxWaitRatio * meanHandle)
+            next = Math.max(min, current - Math.max(current / 4, 1));
+        if (next != current) {
+            (next > current ? increases : decreases).incrementAndGet();
+            LOGGER.info("Prefetch {} -> {}: utilization {}%, waited {}us, handled in {}us, {} unacked", current, next,
+                    (int) (utilization * 100), TimeUnit.NANOSECONDS.toMicros(meanWait),
+                    TimeUnit.NANOSECONDS.toMicros(meanHandle), unacked);
+            prefetch = next;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,163 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * fixed-capacity ring buffer holding publishes while the connection is down. Slots are preallocated up front, so
+ * buffering a message only stores references, and the outbox is drained in publish order once the connection is
+ * recovered.
+ *
+ * @author maciekr
+ */
+public class PublishOutbox {
+
+    public enum OverflowPolicy {
+        /**
+         * the publishing thread waits until the outbox has room again
+         */
+        BLOCK,
+        /**
+         * the oldest buffered message is dropped to make room
+         */
+        DROP_OLDEST,
+        /**
+         * the new message is refused
+         */
+        REJECT
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    private final String[] exchanges;
+    private final String[] routingKeys;
+    private final AMQP.BasicProperties[] properties;
+    private final byte[][] bodies;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private volatile int count;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PublishOutbox(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Outbox capacity must be positive, was " + capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.exchanges = new String[capacity];
+        this.routingKeys = new String[capacity];
+        this.properties = new AMQP.BasicProperties[capacity];
+        this.bodies = new byte[capacity][];
+    }
+
+    /**
+     * buffers a message, applying the overflow policy when the outbox is full.
+     *
+     * @return false when the message was rejected (or the waiting thread interrupted)
+     */
+    public boolean offer(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        lock.lock();
+        try {
+            while (count == bodies.length) {
+                if (overflowPolicy == OverflowPolicy.REJECT) {
+                    rejected.incrementAndGet();
+                    return false;
+                } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    clear(head);
+                    head = next(head);
+                    count--;
+                    dropped.incrementAndGet();
+                } else {
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejected.incrementAndGet();
+                        return false;
+                    }
+                }
+            }
+            int tail = (head + count) % bodies.length;
+            exchanges[tail] = exchange;
+            routingKeys[tail] = routingKey;
+            properties[tail] = props;
+            bodies[tail] = body;
+            count++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * publishes up to maxBatch buffered messages on the channel, oldest first. A message is removed only once its
+     * publish succeeded, so a failure leaves it (and everything after it) buffered.
+     *
+     * @return number of messages published
+     */
+    public int drainTo(Channel channel, int maxBatch) throws IOException {
+        int drained = 0;
+        lock.lock();
+        try {
+            while (drained < maxBatch && count > 0) {
+                channel.basicPublish(exchanges[head], routingKeys[head], properties[head], bodies[head]);
+                clear(head);
+                head = next(head);
+                count--;
+                drained++;
+            }
+        } finally {
+            if (drained > 0)
+                notFull.signalAll();
+            lock.unlock();
+        }
+        return drained;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int capacity() {
+        return bodies.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return messages dropped by {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return messages refused by {@link OverflowPolicy#REJECT} or by an interrupted {@link OverflowPolicy#BLOCK}
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private void clear(int slot) {
+        exchanges[slot] = null;
+        routingKeys[slot] = null;
+        properties[slot] = null;
+        bodies[slot] = null;
+    }
+
+    private int next(int slot) {
+        return slot + 1 == bodies.length ? 0 : slot + 1;
+    }
+}
@@ -0,0 +1,67 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * where and how a stream of messages is published: exchange, routing key, properties and the operation id
+ * listeners see, built once and reused for every {@link RabbitHAClient#publish(PublishRoute, byte[])}. Publishing
+ * through a route allocates nothing but what the channel itself needs, as long as publishes succeed.
+ *
+ * @author maciekr
+ */
+public final class PublishRoute {
+
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final String operationId;
+    private volatile Compressed compressed;
+
+    public PublishRoute(String exchange, String routingKey, AMQP.BasicProperties props) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.props = props;
+        this.operationId = operationId(exchange, routingKey);
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public AMQP.BasicProperties getProps() {
+        return props;
+    }
+
+    static String operationId(String exchange, String routingKey) {
+        return "PUBLISH-" + exchange + "-" + routingKey;
+    }
+
+    /**
+     * @return the route's properties tagged by the stage, built on first use
+     */
+    AMQP.BasicProperties compressedProps(CompressionStage stage) {
+        Compressed compressed = this.compressed;
+        if (compressed == null || compressed.stage != stage)
+            this.compressed = compressed = new Compressed(stage, stage.tag(props));
+        return compressed.props;
+    }
+
+    @Override
+    public String toString() {
+        return operationId;
+    }
+
+    private static class Compressed {
+        final CompressionStage stage;
+        final AMQP.BasicProperties props;
+
+        Compressed(CompressionStage stage, AMQP.BasicProperties props) {
+            this.stage = stage;
+            this.props = props;
+        }
+    }
+}
@@ -4,14 +4,30 @@ import com.rabbitmq.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author maciekr
@@ -20,15 +36,67 @@ public class RabbitHAClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(RabbitHAClient.class);
 
     private static final int MAX_RETRIES = Integer.MAX_VALUE;
-    private static final int RETRY_DELAY = 5000;
+    private static final int DEFAULT_CHANNEL_POOL_SIZE = 16;
+    private static final long DEFAULT_CHANNEL_LEASE_TIMEOUT = 5000;
+    private static final long DEFAULT_CONNECT_WAIT = 30000;
+    private static final int DEFAULT_MAX_PENDING_OPERATIONS = 10000;
+    private static final int OUTBOX_DRAIN_BATCH = 256;
+    private static final int DEFAULT_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_CALLBACK_RECOVERY_PARALLELISM = 8;
+    private static final int STALL_CHECKS_PER_TIMEOUT = 4;
+    private static final int STALL_ABORT_TIMEOUT = 1000;
 
-    private ConnectionFactory connectionFactory;
-    private Connection connection;
-    private Address[] addresses;
+    private final ConnectionHolder connectionHolder;
+    private volatile long connectWaitMillis = DEFAULT_CONNECT_WAIT;
+
+    private final FlowControl flowControl = new FlowControl();
+    private volatile ChannelPool channelPool = new ChannelPool(DEFAULT_CHANNEL_POOL_SIZE, DEFAULT_CHANNEL_LEASE_TIMEOUT,
+            flowControl);
 
     private Set<RabbitOperation> callbacks = Collections.newSetFromMap(new ConcurrentHashMap<RabbitOperation, Boolean>());
+    private volatile long callbacksGeneration = 1;
+    private volatile CallbackRecovery callbackRecovery = new CallbackRecovery(DEFAULT_CALLBACK_RECOVERY_PARALLELISM, "AMQPCallbackRecoverer");
+    private final CallbackRecovery.Replay<RabbitOperation> callbackReplay = new CallbackRecovery.Replay<RabbitOperation>() {
+        @Override
+        public void replay(RabbitOperation operation) {
+            LOGGER.warn("Recovering registered callback RabbitOperation {}", operation);
+            doInRabbit(operation, false); //just peek and keep in the set
+        }
+
+        @Override
+        public String operationId(RabbitOperation operation) {
+            return operation.operationId();
+        }
+    };
+
+    private final Queue<PendingOperation> pendingOperations = new ConcurrentLinkedQueue<PendingOperation>();
+    private final AtomicInteger pendingOperationCount = new AtomicInteger();
+    private final AtomicLong rejectedOperationCount = new AtomicLong();
+    private volatile int maxPendingOperations = DEFAULT_MAX_PENDING_OPERATIONS;
+    private volatile long lastDrainMillis;
+
+    private volatile PublishOutbox outbox;
+    private volatile SpillJournal journal;
+    private volatile CompressionStage compression;
 
-    private static final ExecutorService connectionRecoverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    private Executor asyncExecutor;
+    private boolean ownsAsyncExecutor;
+    private ScheduledExecutorService deadlines;
+    private volatile long defaultAsyncDeadlineMillis;
+
+    private final HAClientMetrics metrics = new HAClientMetrics();
+    private volatile HAClientListener[] listeners = {metrics};
+    private final AtomicLong outageStart = new AtomicLong();
+
+    private volatile StallWatchdog stallWatchdog;
+    private final TopologyRegistry topology = new TopologyRegistry();
+
+    private final AtomicBoolean recovering = new AtomicBoolean();
+    private final AtomicLong failedGeneration = new AtomicLong();
+    private final Runnable recovery = new Recovery();
+    private final DoInRabbit doInRabbit = new DoInRabbit();
+
+    private final ExecutorService connectionRecoverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
         @Override
         public Thread newThread(Runnable r) {
             Thread thread = new Thread(r, "AMQPConnectionRecoverer");
@@ -38,8 +106,7 @@ public class RabbitHAClient {
     });
 
     public RabbitHAClient(Address[] addresses, String vhost, String user, String pass, boolean useSSL) {
-        this.addresses = addresses;
-        this.connectionFactory = new ConnectionFactory();
+        ConnectionFactory connectionFactory = new ConnectionFactory();
         try {
             connectionFactory.setVirtualHost(vhost);
             connectionFactory.setUsername(user);
@@ -48,6 +115,20 @@ public class RabbitHAClient {
         } catch (Exception e) {
             throw new RuntimeException("Rabbit ConnectionFactory construction failed!", e);
         }
+        this.connectionHolder = new ConnectionHolder(connectionFactory, addresses, new RecoveringConnectionListener());
+    }
+
+    public RabbitHAClient(Address[] addresses, ConnectionFactory connectionFactory) {
+        this.connectionHolder = new ConnectionHolder(connectionFactory, addresses, new RecoveringConnectionListener());
+    }
+
+    /**
+     * resizes the pool of channels leased to {@link ChannelOperation}s; channels of the previous pool are dropped.
+     */
+    public void setChannelPoolSize(int size) {
+        ChannelPool previous = channelPool;
+        channelPool = new ChannelPool(size, DEFAULT_CHANNEL_LEASE_TIMEOUT, flowControl);
+        previous.invalidate();
     }
 
     public interface RabbitOperation {
@@ -56,70 +137,819 @@ public class RabbitHAClient {
         String operationId();
     }
 
+    /**
+     * an operation executed on a channel leased from the client's pool. The channel goes back to the pool once
+     * the operation returns, so it must not be closed or kept around (use a {@link RabbitOperation} for consumers).
+     */
+    public interface ChannelOperation {
+        void execute(Channel channel) throws IOException;
+
+        String operationId();
+    }
+
+    public void doInRabbit(ChannelOperation operation) {
+        doInRabbit.doInRabbit(new PooledChannelOperation(operation));
+    }
+
+    /**
+     * publishes a message on a pooled channel. With an outbox or a spill journal enabled, messages published while
+     * the connection is down (or while earlier buffered messages are still draining) are buffered and published in
+     * order once it is recovered: into the outbox first, spilling to the journal once the outbox is full. Without
+     * either a failed publish is parked like any other failed operation.
+     *
+     * @return false when the message couldn't be buffered
+     */
+    public boolean publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        flowControl.acquire();
+        try {
+            return compressAndSend(exchange, routingKey, props, body, null);
+        } finally {
+            flowControl.release();
+        }
+    }
+
+    /**
+     * publishes a message like {@link #publish(String, String, AMQP.BasicProperties, byte[])}, without allocating
+     * anything per message while publishes succeed; for high-rate streams.
+     */
+    public boolean publish(PublishRoute route, byte[] body) {
+        flowControl.acquire();
+        try {
+            return compressAndSend(route.exchange, route.routingKey, route.props, body, route);
+        } finally {
+            flowControl.release();
+        }
+    }
+
+    /**
+     * publishes a message unless the broker holds publishers back (see {@link FlowControl}) or the credit window is
+     * exhausted
+     *
+     * @return false if the message wasn't published or couldn't be buffered
+     */
+    public boolean tryPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        if (!flowControl.tryAcquire())
+            return false;
+        try {
+            return compressAndSend(exchange, routingKey, props, body, null);
+        } finally {
+            flowControl.release();
+        }
+    }
+
+    public boolean tryPublish(PublishRoute route, byte[] body) {
+        if (!flowControl.tryAcquire())
+            return false;
+        try {
+            return compressAndSend(route.exchange, route.routingKey, route.props, body, route);
+        } finally {
+            flowControl.release();
+        }
+    }
+
+    /**
+     * publishes a message once the broker lets the client publish and a credit is available, waiting up to the
+     * timeout for both
+     *
+     * @return false if the message wasn't published in time or couldn't be buffered
+     */
+    public boolean publish(PublishRoute route, byte[] body, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!flowControl.acquire(timeout, unit))
+            return false;
+        try {
+            return compressAndSend(route.exchange, route.routingKey, route.props, body, route);
+        } finally {
+            flowControl.release();
+        }
+    }
+
+    /**
+     * @return state of broker flow control and the credit window
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * @param route null for a one-off publish
+     */
+    private boolean compressAndSend(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                                    PublishRoute route) {
+        CompressionStage compression = this.compression;
+        if (compression != null) {
+            byte[] compressed = compression.compress(props, body);
+            if (compressed != null) {
+                props = route != null ? route.compressedProps(compression) : compression.tag(props);
+                body = compressed;
+            }
+        }
+        return send(exchange, routingKey, props, body, route != null ? route.operationId : null);
+    }
+
+    /**
+     * @param operationId null to derive it from the exchange and routing key
+     */
+    private boolean send(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                         String operationId) {
+        PublishOutbox outbox = this.outbox;
+        SpillJournal journal = this.journal;
+        if (outbox == null && journal == null) {
+            doInRabbit.publish(exchange, routingKey, props, body, operationId);
+            return true;
+        }
+        if (recovering.get() || hasBuffered(outbox, journal)) {
+            boolean accepted = buffer(outbox, journal, exchange, routingKey, props, body);
+            // a recovery which already looked at the outbox would leave this one behind
+            if (!connectionHolder.isClosed())
+                recover(failedGeneration.get());
+            return accepted;
+        }
+
+        ConnectionHolder.Generation generation = null;
+        try {
+            generation = getConnection(true);
+            ChannelPool pool = channelPool;
+            Channel channel = pool.lease(generation.connection);
+            try {
+                flowControl.publishing();
+                try {
+                    channel.basicPublish(exchange, routingKey, props, body);
+                } finally {
+                    flowControl.published();
+                }
+            } finally {
+                pool.release(channel);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Publish to {} failed, buffering until recovered: {}", exchange, e.getMessage());
+        } catch (ShutdownSignalException e) {
+            LOGGER.warn("Publish to {} failed, buffering until recovered: {}", exchange, e.getMessage());
+        }
+        boolean accepted = buffer(outbox, journal, exchange, routingKey, props, body);
+        long failed = generation != null ? generation.number : connectionHolder.current().number;
+        outageStarted(failed);
+        recover(failed);
+        return accepted;
+    }
+
+    private static boolean hasBuffered(PublishOutbox outbox, SpillJournal journal) {
+        return outbox != null && !outbox.isEmpty() || journal != null && !journal.isEmpty();
+    }
+
+    private static boolean buffer(PublishOutbox outbox, SpillJournal journal,
+                                  String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        if (journal != null && (outbox == null || !journal.isEmpty() || outbox.size() == outbox.capacity())) {
+            try {
+                journal.append(exchange, routingKey, props, body);
+                return true;
+            } catch (IOException e) {
+                LOGGER.error("Spilling publish to {} into the journal failed", exchange, e);
+                return false;
+            }
+        }
+        return outbox.offer(exchange, routingKey, props, body);
+    }
+
+    /**
+     * buffers {@link #publish} calls in a preallocated ring of the given capacity while the connection is down.
+     */
+    public void enableOutbox(int capacity, PublishOutbox.OverflowPolicy overflowPolicy) {
+        this.outbox = new PublishOutbox(capacity, overflowPolicy);
+    }
+
+    /**
+     * @return the outbox, or null when not enabled
+     */
+    public PublishOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * spills {@link #publish} calls to a memory-mapped journal in the directory once the outbox (if any) is full.
+     * Records journaled by a previous run are replayed as soon as the client connects.
+     */
+    public void enableSpillJournal(File directory) throws IOException {
+        SpillJournal journal = new SpillJournal(directory, DEFAULT_JOURNAL_SEGMENT_BYTES);
+        this.journal = journal;
+        if (!journal.isEmpty())
+            recover(connectionHolder.current().number);
+    }
+
+    /**
+     * @return the spill journal, or null when not enabled
+     */
+    public SpillJournal getSpillJournal() {
+        return journal;
+    }
+
+    /**
+     * compresses the bodies of {@link #publish} calls (and of {@link ConfirmingPublisher}s) with the given stage,
+     * null turns compression off
+     */
+    public void setCompression(CompressionStage compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the compression stage, or null when not set
+     */
+    public CompressionStage getCompression() {
+        return compression;
+    }
+
     public void doInRabbit(RabbitOperation operation) {
-        new DoInRabbit().doInRabbit(operation);
+        doInRabbit.doInRabbit(operation);
     }
 
     public void doInRabbit(RabbitOperation operation, boolean isCallback) {
-        new DoInRabbit().doInRabbit(operation, isCallback);
+        doInRabbit.doInRabbit(operation, isCallback);
     }
 
     public void doInRabbit(RabbitOperation operation, boolean isCallback, boolean failFast) {
-        new DoInRabbit().doInRabbit(operation, isCallback, failFast);
+        doInRabbit.doInRabbit(operation, isCallback, failFast);
+    }
+
+    /**
+     * executes the operation on the async executor. The future completes once the operation succeeded, which may be
+     * only after the connection was recovered, and fails when the operation throws anything but an IOException,
+     * when it can't be parked for recovery, on shutdown, or with a TimeoutException once the default deadline (if
+     * any) passed.
+     */
+    public CompletableFuture<Void> doInRabbitAsync(RabbitOperation operation) {
+        return doInRabbitAsync(operation, defaultAsyncDeadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * like {@link #doInRabbitAsync(RabbitOperation)} with a deadline for this operation; an operation still waiting
+     * for recovery when its deadline passes is not executed anymore. 0 means no deadline.
+     */
+    public CompletableFuture<Void> doInRabbitAsync(final RabbitOperation operation, long deadline, TimeUnit unit) {
+        final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        if (deadline > 0)
+            scheduleDeadline(operation, completion, unit.toMillis(deadline));
+        try {
+            asyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (completion.isDone())
+                        return;
+                    try {
+                        doInRabbit.doInRabbit(operation, false, false, completion);
+                    } catch (Throwable e) {
+                        completion.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            completion.completeExceptionally(e);
+        }
+        return completion;
+    }
+
+    public CompletableFuture<Void> doInRabbitAsync(ChannelOperation operation) {
+        return doInRabbitAsync(new PooledChannelOperation(operation));
+    }
+
+    public CompletableFuture<Void> doInRabbitAsync(ChannelOperation operation, long deadline, TimeUnit unit) {
+        return doInRabbitAsync(new PooledChannelOperation(operation), deadline, unit);
+    }
+
+    /**
+     * sets where async operations run. The default uses a virtual thread per operation where the JVM has them
+     * (Java 21+) and a cached pool of daemon threads otherwise. An executor set here is not shut down by the client.
+     */
+    public synchronized void setAsyncExecutor(Executor executor) {
+        if (ownsAsyncExecutor)
+            ((ExecutorService) asyncExecutor).shutdown();
+        this.asyncExecutor = executor;
+        this.ownsAsyncExecutor = false;
+    }
+
+    /**
+     * deadline for async operations not given one explicitly, 0 (the default) for none
+     */
+    public void setDefaultAsyncDeadline(long deadline, TimeUnit unit) {
+        this.defaultAsyncDeadlineMillis = unit.toMillis(deadline);
+    }
+
+    private synchronized Executor asyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = defaultAsyncExecutor();
+            ownsAsyncExecutor = true;
+        }
+        return asyncExecutor;
+    }
+
+    private static ExecutorService defaultAsyncExecutor() {
+        try {
+            Method virtualThreads = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            LOGGER.info("Running async RabbitOperations on virtual threads");
+            return (ExecutorService) virtualThreads.invoke(null);
+        } catch (Exception e) {
+            // no virtual threads before Java 21
+            final AtomicInteger threads = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AMQPAsync-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private void scheduleDeadline(final RabbitOperation operation, final CompletableFuture<Void> completion, final long millis) {
+        ScheduledExecutorService deadlines;
+        synchronized (this) {
+            if (this.deadlines == null)
+                this.deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "AMQPAsyncDeadlines");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            deadlines = this.deadlines;
+        }
+        deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (completion.completeExceptionally(new TimeoutException("RabbitOperation " + operation.operationId()
+                        + " didn't complete within " + millis + "ms")))
+                    LOGGER.warn("RabbitOperation {} missed its deadline of {}ms", operation.operationId(), millis);
+            }
+        }, millis, TimeUnit.MILLISECONDS);
     }
 
     public void shutdown() throws IOException {
+        Connection connection = connectionHolder.current().connection;
         if (connection != null && connection.isOpen()) {
             LOGGER.info("Shutting down HA client and its connection {}.", connection);
-            connection.close();
+            channelPool.invalidate();
             callbacks = null;
         }
+        connectionHolder.close();
+        if (pendingOperationCount.get() > 0)
+            LOGGER.warn("Discarding {} operations pending recovery on shutdown.", pendingOperationCount.get());
+        PendingOperation pending;
+        while ((pending = pendingOperations.poll()) != null)
+            if (pending.completion != null)
+                pending.completion.completeExceptionally(new IOException("HA client shut down before the operation could be recovered"));
+        pendingOperationCount.set(0);
+        if (journal != null)
+            journal.close();
+        connectionRecoverer.shutdown();
+        callbackRecovery.shutdown();
+        synchronized (this) {
+            if (ownsAsyncExecutor)
+                ((ExecutorService) asyncExecutor).shutdown();
+            if (deadlines != null)
+                deadlines.shutdownNow();
+        }
+        if (stallWatchdog != null)
+            stallWatchdog.shutdown();
+        metrics.unregisterMBean();
     }
 
-    private synchronized Connection getConnection() throws IOException {
+    /**
+     * sets how many callbacks are replayed in parallel after a reconnect, see {@link RecoveryPriority}
+     */
+    public void setCallbackRecoveryParallelism(int parallelism) {
+        CallbackRecovery previous = callbackRecovery;
+        callbackRecovery = new CallbackRecovery(parallelism, "AMQPCallbackRecoverer");
+        previous.shutdown();
+    }
+
+    /**
+     * @return how long the last replay of each registered callback took in ms, by operation id
+     */
+    public Map<String, Long> getCallbackRecoveryLatencies() {
+        return callbackRecovery.latencies();
+    }
+
+    /**
+     * bounds the number of failed operations parked until the connection is recovered; operations failing while the
+     * queue is full are dropped and counted in {@link #getRejectedOperationCount()}.
+     */
+    public void setMaxPendingOperations(int maxPendingOperations) {
+        this.maxPendingOperations = maxPendingOperations;
+    }
+
+    /**
+     * @return number of failed operations waiting for the connection to be recovered
+     */
+    public int getPendingOperationCount() {
+        return pendingOperationCount.get();
+    }
 
-        if (connection == null || !connection.isOpen()) {
-            LOGGER.info("Attempting to connect to {}", Arrays.toString(addresses));
-            connection = connectionFactory.newConnection(addresses);
-            LOGGER.info("Connected to {}", connection);
+    /**
+     * @return number of failed operations dropped because the pending queue was full
+     */
+    public long getRejectedOperationCount() {
+        return rejectedOperationCount.get();
+    }
+
+    /**
+     * @return how long re-executing the pending operations took after the last recovery
+     */
+    public long getLastDrainMillis() {
+        return lastDrainMillis;
+    }
+
+    /**
+     * keeps a warm standby connection to a different address, which is promoted as soon as the current connection
+     * fails, so recovery doesn't have to wait for a connect and handshake. Needs at least two addresses.
+     */
+    public void enableStandby() {
+        connectionHolder.enableStandby();
+    }
+
+    /**
+     * requests AMQP heartbeats and watches every connection opened from now on: a connection which reads nothing, not
+     * even a heartbeat, for stallTimeoutMillis is torn down and recovered instead of waiting for TCP to give up. The
+     * broker sends a heartbeat every heartbeatSeconds, so the timeout should be a small multiple of that. Call it
+     * before the first operation, an already open connection isn't watched. The client connects through a copy of
+     * its connection factory from then on, the one it was given may be shared and stays as it is.
+     */
+    public synchronized void enableStallDetection(int heartbeatSeconds, long stallTimeoutMillis) {
+        if (stallWatchdog != null)
+            return;
+        ConnectionFactory connectionFactory = connectionHolder.connectionFactory().clone();
+        connectionFactory.setRequestedHeartbeat(heartbeatSeconds);
+        stallWatchdog = new StallWatchdog(stallTimeoutMillis, Math.max(stallTimeoutMillis / STALL_CHECKS_PER_TIMEOUT, 1));
+        connectionFactory.setSocketFactory(stallWatchdog.socketFactory(connectionFactory.getSocketFactory()));
+        connectionHolder.setConnectionFactory(connectionFactory);
+        flowControl.setInbound(stallWatchdog.inbound(), stallTimeoutMillis);
+    }
+
+    /**
+     * tears down and recovers the connection whenever the probe, e.g. a callback consumer recording its deliveries,
+     * makes no progress for timeoutMillis. Needs {@link #enableStallDetection(int, long)}.
+     */
+    public void watchProgress(String name, StallWatchdog.ProgressProbe probe, long timeoutMillis) {
+        StallWatchdog watchdog = stallWatchdog;
+        if (watchdog == null)
+            throw new IllegalStateException("Stall detection isn't enabled");
+        watchdog.watch(name, probe, timeoutMillis, new StallWatchdog.StallHandler() {
+            @Override
+            public void stalled(String probe) {
+                if (flowControl.getState() != FlowControl.State.RUNNING) {
+                    // reconnecting would only get the new connection held back the same way
+                    LOGGER.warn("{} stalled while the broker holds publishers back, not recovering", probe);
+                    return;
+                }
+                recoverStalled(probe);
+            }
+        });
+    }
+
+    /**
+     * @return the watchdog enabled by {@link #enableStallDetection(int, long)}, null if it isn't
+     */
+    public StallWatchdog getStallWatchdog() {
+        return stallWatchdog;
+    }
+
+    /**
+     * @return the registry callbacks should declare their exchanges, queues and bindings through; recovery
+     * re-establishes all of it in one go before callbacks are replayed
+     */
+    public TopologyRegistry getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return the client's built-in metrics, see {@link HAClientMetrics#registerMBean(String)} to expose them over JMX
+     */
+    public HAClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * adds a listener for operation and recovery events, next to the built-in {@link #getMetrics() metrics}
+     */
+    public synchronized void addListener(HAClientListener listener) {
+        HAClientListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    public synchronized void removeListener(HAClientListener listener) {
+        List<HAClientListener> remaining = new ArrayList<HAClientListener>(Arrays.asList(listeners));
+        remaining.remove(listener);
+        listeners = remaining.toArray(new HAClientListener[remaining.size()]);
+    }
+
+    /**
+     * replaces the default {@link BackoffReconnectScheduler}
+     */
+    public void setReconnectScheduler(ReconnectScheduler reconnectScheduler) {
+        connectionHolder.setScheduler(reconnectScheduler);
+    }
+
+    /**
+     * how long a caller waits for the first connection another thread is establishing before its operation fails
+     * and goes through recovery; fail-fast operations never wait.
+     */
+    public void setConnectWaitMillis(long connectWaitMillis) {
+        this.connectWaitMillis = connectWaitMillis;
+    }
+
+    /**
+     * only the very first connect happens on the caller's thread. Once a connection was lost (or the first connect
+     * failed) the recovery is the only one connecting, paced by the {@link ReconnectScheduler}; callers fail right
+     * away and their operations wait for it, instead of every one of them connecting in turn.
+     */
+    private ConnectionHolder.Generation getConnection(boolean failFast) throws IOException {
+        ConnectionHolder.Generation generation = connectionHolder.current();
+        if (generation.isOpen())
+            return generation;
+        if (generation.number != 0 || recovering.get())
+            throw new IOException("Connection " + generation.connection + " is down, waiting for recovery");
+        return connectionHolder.get(failFast ? 0 : connectWaitMillis);
+    }
+
+    private class RecoveringConnectionListener implements ConnectionHolder.ConnectionListener {
+        @Override
+        public void connected(Connection connection, final long generation) {
             connection.addShutdownListener(new ShutdownListener() {
                 @Override
                 public void shutdownCompleted(final ShutdownSignalException e) {
+                    channelPool.invalidate();
+                    topology.connectionLost();
+                    flowControl.connectionLost();
                     if (!e.isInitiatedByApplication()) {
                         LOGGER.warn("Remote shutdown: {}. Will attempt to recover the connection on remote shutdown.", e.getReason());
-                        connectionRecoverer.submit(new Runnable() {
-                            @Override
-                            public void run() {
-                                LOGGER.warn("Trying to recover connection and registered callbacks: {}", e.getReason());
-                                if (retryConnection(false)) {
-                                    for (RabbitOperation operation : callbacks) {
-                                        LOGGER.warn("Recovering registered callback RabbitOperation {}", operation);
-                                        doInRabbit(operation, false); //just peek and keep in the set
-                                    }
-                                }
-                            }
-                        });
+                        outageStarted(generation);
+                        recover(generation);
                     }
                 }
             });
         }
-        return connection;
     }
 
-    private synchronized boolean recoverConnection(int retry) {
+    /**
+     * makes sure exactly one recovery is in flight: the first caller submits it, everybody else only records the
+     * generation they saw failing.
+     */
+    private void recover(long generation) {
+        long failed;
+        while (generation > (failed = failedGeneration.get()) && !failedGeneration.compareAndSet(failed, generation)) ;
+        if (recovering.compareAndSet(false, true))
+            connectionRecoverer.submit(recovery);
+    }
+
+    /**
+     * aborting is initiated by the application, so the shutdown listener won't recover and we have to
+     */
+    private void recoverStalled(String probe) {
+        ConnectionHolder.Generation generation = connectionHolder.current();
+        if (connectionHolder.isClosed() || !generation.isOpen())
+            return;
+        LOGGER.warn("{} stalled, tearing down connection {}", probe, generation.connection);
+        outageStarted(generation.number);
+        generation.connection.abort(STALL_ABORT_TIMEOUT);
+        recover(generation.number);
+    }
+
+    void prefetchAdjusted(String consumerId, int previous, int prefetch) {
+        for (HAClientListener listener : listeners)
+            listener.prefetchAdjusted(consumerId, previous, prefetch);
+    }
+
+    private void outageStarted(long generation) {
+        if (outageStart.compareAndSet(0, System.nanoTime()))
+            for (HAClientListener listener : listeners)
+                listener.connectionLost(generation);
+    }
+
+    private class Recovery implements Runnable {
+        @Override
+        public void run() {
+            long reconnected = 0;
+            try {
+                LOGGER.warn("Trying to recover connection, registered callbacks and {} pending operations", pendingOperationCount.get());
+                if (retryConnection(false, failedGeneration.get())) {
+                    reconnected = System.nanoTime();
+                    recoverCallbacks();
+                    if (drainOutbox())
+                        replayJournal();
+                    drainPendingOperations();
+                }
+            } finally {
+                recovering.set(false);
+            }
+            if ((pendingOperationCount.get() > 0 || hasBuffered(outbox, journal)) && !connectionHolder.isClosed())
+                recover(failedGeneration.get());
+            else if (reconnected != 0)
+                outageEnded(reconnected);
+        }
+    }
+
+    private void outageEnded(long reconnected) {
+        long start = outageStart.getAndSet(0);
+        if (start == 0)
+            return;
+        long now = System.nanoTime();
+        LOGGER.info("Recovered from an outage of {}ms", TimeUnit.NANOSECONDS.toMillis(now - start));
+        for (HAClientListener listener : listeners)
+            listener.connectionRecovered(reconnected - start, now - start);
+    }
+
+    private void recoverCallbacks() {
+        long generation = connectionHolder.current().number;
+        if (generation == callbacksGeneration)
+            return;
+        callbacksGeneration = generation;
+        long start = System.nanoTime();
+        redeclareTopology();
+        callbackRecovery.recover(callbacks, callbackReplay);
+        long nanos = System.nanoTime() - start;
+        for (HAClientListener listener : listeners)
+            listener.callbacksRecovered(callbacks.size(), nanos);
+    }
+
+    /**
+     * on failure declarations keep going to the broker, so callbacks declaring through the registry surface the error
+     */
+    private void redeclareTopology() {
+        if (topology.isEmpty())
+            return;
+        ConnectionHolder.Generation generation = connectionHolder.current();
+        try {
+            Channel channel = generation.connection.createChannel();
+            try {
+                topology.redeclare(channel);
+            } finally {
+                if (channel.isOpen())
+                    channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Redeclaring topology failed with {}.", e.getMessage());
+        } catch (ShutdownSignalException e) {
+            LOGGER.error("Redeclaring topology failed with {}.", e.getMessage());
+        }
+    }
+
+    /**
+     * @return true when the outbox was fully drained
+     */
+    private boolean drainOutbox() {
+        PublishOutbox outbox = this.outbox;
+        if (outbox == null || outbox.isEmpty())
+            return true;
+        long start = System.nanoTime();
+        int drained = 0;
+        ConnectionHolder.Generation generation = connectionHolder.current();
+        ChannelPool pool = channelPool;
+        try {
+            Channel channel = pool.lease(generation.connection);
+            try {
+                int batch;
+                while ((batch = outbox.drainTo(channel, OUTBOX_DRAIN_BATCH)) > 0)
+                    drained += batch;
+            } finally {
+                pool.release(channel);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Draining the outbox failed after {} messages with {}.", drained, e.getMessage());
+            recover(generation.number);
+            return false;
+        } catch (ShutdownSignalException e) {
+            LOGGER.error("Draining the outbox failed after {} messages with {}.", drained, e.getMessage());
+            recover(generation.number);
+            return false;
+        }
+        LOGGER.info("Published {} messages from the outbox in {}ms", drained, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    private void replayJournal() {
+        SpillJournal journal = this.journal;
+        if (journal == null || journal.isEmpty())
+            return;
+        long start = System.nanoTime();
+        ConnectionHolder.Generation generation = connectionHolder.current();
         try {
-            LOGGER.warn("Delaying attempt to recover RabbitMQ connection {}", connection);
-            Thread.sleep(RETRY_DELAY);
-            LOGGER.warn("Attempting to recover RabbitMQ connection {}", connection);
-            if (connection != null) try {
-                connection.close();
-                connection = null;
-            } catch (Exception e) {
+            Channel channel = generation.connection.createChannel();
+            try {
+                channel.confirmSelect();
+                int replayed = journal.replay(channel);
+                LOGGER.info("Replayed {} journaled messages in {}ms", replayed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } finally {
+                if (channel.isOpen())
+                    channel.close();
             }
+        } catch (IOException e) {
+            LOGGER.error("Replaying the spill journal failed with {}.", e.getMessage());
+            recover(generation.number);
+        } catch (ShutdownSignalException e) {
+            LOGGER.error("Replaying the spill journal failed with {}.", e.getMessage());
+            recover(generation.number);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainPendingOperations() {
+        int count = pendingOperationCount.get();
+        if (count == 0)
+            return;
+        long start = System.nanoTime();
+        List<PendingOperation> drained = new ArrayList<PendingOperation>(count);
+        PendingOperation pending;
+        while (drained.size() < count && (pending = pendingOperations.poll()) != null) {
+            drained.add(pending);
+            pendingOperationCount.decrementAndGet();
+        }
+        pendingOperationsChanged();
+        for (PendingOperation operation : drained) {
+            if (operation.completion != null && operation.completion.isDone())
+                continue; // missed its deadline while waiting
+            doInRabbit.doInRabbit(operation.operation, operation.isCallback, false, operation.completion);
+        }
+        lastDrainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("Re-executed {} pending operations in {}ms", drained.size(), lastDrainMillis);
+    }
+
+    private void park(RabbitOperation operation, boolean isCallback, CompletableFuture<Void> completion) {
+        if (pendingOperationCount.incrementAndGet() > maxPendingOperations) {
+            pendingOperationCount.decrementAndGet();
+            rejectedOperationCount.incrementAndGet();
+            LOGGER.error("Dropping RabbitOperation {}, {} operations already wait for recovery.", operation.operationId(), maxPendingOperations);
+            if (completion != null)
+                completion.completeExceptionally(new IOException("Dropped, " + maxPendingOperations + " operations already wait for recovery"));
+            return;
+        }
+        pendingOperations.offer(new PendingOperation(operation, isCallback, completion));
+        pendingOperationsChanged();
+    }
+
+    private void pendingOperationsChanged() {
+        int pending = pendingOperationCount.get();
+        for (HAClientListener listener : listeners)
+            listener.pendingOperationsChanged(pending);
+    }
+
+    private static class PublishOperation implements ChannelOperation {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
 
-            connection = getConnection();
+        PublishOperation(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+
+        @Override
+        public void execute(Channel channel) throws IOException {
+            channel.basicPublish(exchange, routingKey, props, body);
+        }
+
+        @Override
+        public String operationId() {
+            return PublishRoute.operationId(exchange, routingKey);
+        }
+    }
+
+    private static class PendingOperation {
+        final RabbitOperation operation;
+        final boolean isCallback;
+        final CompletableFuture<Void> completion;
+
+        PendingOperation(RabbitOperation operation, boolean isCallback, CompletableFuture<Void> completion) {
+            this.operation = operation;
+            this.isCallback = isCallback;
+            this.completion = completion;
+        }
+    }
+
+    private boolean recoverConnection(int retry, long failedGeneration) {
+        ConnectionHolder.Generation current = connectionHolder.current();
+        if (current.number != failedGeneration && current.isOpen())
+            return true;
+        long start = System.nanoTime();
+        try {
+            // promoting an open standby doesn't connect, so a lost connection is replaced without waiting
+            ConnectionHolder.Generation standby = connectionHolder.standby();
+            long delay = !current.isOpen() && standby != null && standby.isOpen() ? 0
+                    : connectionHolder.scheduler().nextDelayMillis(retry, !current.isOpen());
+            if (delay > 0) {
+                LOGGER.warn("Delaying attempt {} to recover RabbitMQ connection {} by {}ms", new Object[]{retry, current.connection, delay});
+                Thread.sleep(delay);
+            }
+            LOGGER.warn("Attempting to recover RabbitMQ connection {}", connectionHolder.current().connection);
+            connectionHolder.replace(failedGeneration, connectWaitMillis);
+            recoveryAttempted(retry, true, start);
             return true;
         } catch (IOException e) {
+            recoveryAttempted(retry, false, start);
             if (retry == MAX_RETRIES) throw new RuntimeException("Can't recover RabbitMQ connection", e);
             else LOGGER.error("Recovery attempt number {} failed with {}.", retry, e.getMessage());
         } catch (InterruptedException e) {
@@ -127,34 +957,133 @@ public class RabbitHAClient {
         return false;
     }
 
-    private synchronized boolean retryConnection(boolean failFast) {
-        if (!failFast) for (int i = 1; i <= MAX_RETRIES; i++) {
-            if (recoverConnection(i)) {
+    private void recoveryAttempted(int retry, boolean succeeded, long start) {
+        long nanos = System.nanoTime() - start;
+        for (HAClientListener listener : listeners)
+            listener.recoveryAttempted(retry, succeeded, nanos);
+    }
+
+    private boolean retryConnection(boolean failFast, long failedGeneration) {
+        if (!failFast) for (int i = 1; i <= MAX_RETRIES && !connectionHolder.isClosed(); i++) {
+            if (recoverConnection(i, failedGeneration)) {
                 return true;
             }
         }
         return false;
     }
 
+    private class PooledChannelOperation implements RabbitOperation {
+        private final ChannelOperation operation;
+
+        PooledChannelOperation(ChannelOperation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public void execute(Connection connection) throws IOException {
+            ChannelPool pool = channelPool;
+            Channel channel = pool.lease(connection);
+            try {
+                operation.execute(channel);
+            } finally {
+                pool.release(channel);
+            }
+        }
+
+        @Override
+        public String operationId() {
+            return operation.operationId();
+        }
+
+        @Override
+        public String toString() {
+            return operation.toString();
+        }
+    }
+
     private class DoInRabbit {
-        void doInRabbit(final RabbitOperation operation, final boolean isCallback, final boolean failFast) {
+        void doInRabbit(RabbitOperation operation, boolean isCallback, boolean failFast) {
+            doInRabbit(operation, isCallback, failFast, null);
+        }
+
+        /**
+         * @param completion completed once the operation succeeded, possibly after recovery; may be null
+         */
+        void doInRabbit(RabbitOperation operation, boolean isCallback, boolean failFast, CompletableFuture<Void> completion) {
+            ConnectionHolder.Generation generation = null;
             try {
                 if (isCallback) {
                     LOGGER.info("Flagging RabbitOperation {} as callback and attaching to shutdown hook recovery.", operation.operationId());
                     callbacks.add(operation); //attach to shutdown hook
                 }
-                operation.execute(getConnection());
-            } catch (final IOException e) {
+                generation = getConnection(failFast);
+                long start = System.nanoTime();
+                operation.execute(generation.connection);
+                long nanos = System.nanoTime() - start;
+                String operationId = operation.operationId();
+                for (HAClientListener listener : listeners)
+                    listener.operationCompleted(operationId, nanos);
+                if (completion != null)
+                    completion.complete(null);
+            } catch (IOException e) {
                 LOGGER.error("RabbitOperation {} failed with IOException", operation.operationId(), e);
-                connectionRecoverer.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        LOGGER.warn("Trying to recover connection on non-callback RabbitOperation {}", e.getMessage());
-                        if (retryConnection(failFast)) {
-                            doInRabbit(operation, isCallback, failFast);
-                        }
+                failed(operation, isCallback, failFast, generation, e, completion);
+            } catch (ShutdownSignalException e) {
+                // the connection went away between handing it out and using it
+                LOGGER.error("RabbitOperation {} failed on a closed connection", operation.operationId(), e);
+                failed(operation, isCallback, failFast, generation, e, completion);
+            }
+        }
+
+        /**
+         * a publish on a pooled channel: the same as a {@link PublishOperation} run through
+         * {@link #doInRabbit(RabbitOperation)}, but the operation is only created if it has to be parked
+         */
+        void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body, String operationId) {
+            ConnectionHolder.Generation generation = null;
+            try {
+                generation = getConnection(false);
+                long start = System.nanoTime();
+                ChannelPool pool = channelPool;
+                Channel channel = pool.lease(generation.connection);
+                try {
+                    flowControl.publishing();
+                    try {
+                        channel.basicPublish(exchange, routingKey, props, body);
+                    } finally {
+                        flowControl.published();
                     }
-                });
+                } finally {
+                    pool.release(channel);
+                }
+                long nanos = System.nanoTime() - start;
+                if (operationId == null)
+                    operationId = PublishRoute.operationId(exchange, routingKey);
+                for (HAClientListener listener : listeners)
+                    listener.operationCompleted(operationId, nanos);
+            } catch (IOException e) {
+                RabbitOperation operation = new PooledChannelOperation(new PublishOperation(exchange, routingKey, props, body));
+                LOGGER.error("RabbitOperation {} failed with IOException", operation.operationId(), e);
+                failed(operation, false, false, generation, e, null);
+            } catch (ShutdownSignalException e) {
+                RabbitOperation operation = new PooledChannelOperation(new PublishOperation(exchange, routingKey, props, body));
+                LOGGER.error("RabbitOperation {} failed on a closed connection", operation.operationId(), e);
+                failed(operation, false, false, generation, e, null);
+            }
+        }
+
+        private void failed(RabbitOperation operation, boolean isCallback, boolean failFast,
+                            ConnectionHolder.Generation generation, Exception cause, CompletableFuture<Void> completion) {
+            for (HAClientListener listener : listeners)
+                listener.operationFailed(operation.operationId(), cause);
+            if (failFast || connectionHolder.isClosed()) {
+                if (completion != null)
+                    completion.completeExceptionally(cause);
+            } else {
+                long failed = generation != null ? generation.number : connectionHolder.current().number;
+                outageStarted(failed);
+                park(operation, isCallback, completion);
+                recover(failed);
             }
         }
 
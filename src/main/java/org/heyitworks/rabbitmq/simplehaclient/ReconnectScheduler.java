@@ -0,0 +1,42 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+
+/**
+ * decides where and when the HA clients reconnect. Before every connect the client asks for the addresses to try,
+ * in order, and reports back the outcome for each address it tried; between recovery attempts it sleeps for
+ * {@link #nextDelayMillis(int, boolean)}. Apart from the very first connect, every reconnect of a
+ * {@link RabbitHAClient} is such a recovery attempt, however many callers run into the lost connection.
+ *
+ * @author maciekr
+ */
+public interface ReconnectScheduler {
+
+    /**
+     * @return the addresses to try on the next connect, best first
+     */
+    Address[] addresses();
+
+    /**
+     * @param attempt        1 for the first attempt of a recovery
+     * @param connectionLost true if the connection being replaced is closed, false if it is still open and only an
+     *                       operation on it failed
+     * @return how long to wait before the attempt
+     */
+    long nextDelayMillis(int attempt, boolean connectionLost);
+
+    /**
+     * @param connectNanos time the connect and AMQP handshake took
+     */
+    void connected(Address address, long connectNanos);
+
+    /**
+     * a connect to the address failed, or a connection to it was lost
+     */
+    void failed(Address address);
+
+    /**
+     * a lost connection was replaced by the standby connection to the address, without connecting
+     */
+    void promoted(Address address);
+}
@@ -0,0 +1,15 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+/**
+ * implemented by callback operations (of either client) which need to come back before others after a reconnect.
+ * Callbacks are replayed in descending priority, a priority level only once every callback of the higher levels
+ * was replayed; callbacks not implementing it have priority {@link #DEFAULT}.
+ *
+ * @author maciekr
+ */
+public interface RecoveryPriority {
+
+    int DEFAULT = 0;
+
+    int recoveryPriority();
+}
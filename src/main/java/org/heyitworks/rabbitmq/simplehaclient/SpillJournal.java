@@ -0,0 +1,271 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+/**
+ * append-only journal of publishes spilled to local disk when an outage outlasts the in-memory outbox.
+ * <p/>
+ * The journal is a directory of memory-mapped segment files written strictly sequentially. Each record is
+ * <pre>[int payload length][int crc32 of payload][payload]</pre>
+ * with the payload holding exchange, routing key, the AMQP-encoded basic properties and the body; a zero length
+ * marks the end of a segment. A segment is deleted only after all of its records were replayed and confirmed by
+ * the broker, so replay is at-least-once: a segment interrupted half-way is replayed again from its start.
+ * Segments left behind by a previous process are picked up when the journal is opened.
+ *
+ * @author maciekr
+ */
+public class SpillJournal implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillJournal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * receives replayed records in journal order
+     */
+    interface RecordHandler {
+        void record(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException;
+
+        /**
+         * called once every record of a segment was handed over, before the segment gets deleted
+         */
+        void segmentReplayed() throws IOException, InterruptedException;
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final LinkedList<File> sealed = new LinkedList<File>();
+    private long nextSegment;
+
+    private File activeFile;
+    private MappedByteBuffer active;
+
+    private final RecordOutput output = new RecordOutput();
+    private final DataOutputStream dataOutput = new DataOutputStream(output);
+    private final CRC32 crc = new CRC32();
+
+    private long appended;
+    private long replayed;
+    private volatile boolean empty = true;
+
+    public SpillJournal(File directory, int segmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create journal directory " + directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+
+        File[] existing = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(existing);
+        for (File segment : existing) {
+            sealed.add(segment);
+            nextSegment = Math.max(nextSegment, sequenceOf(segment) + 1);
+        }
+        empty = sealed.isEmpty();
+        if (!empty)
+            LOGGER.warn("Found {} journal segments to replay in {}", sealed.size(), directory);
+    }
+
+    /**
+     * appends a publish, rolling over to a new segment when the active one is full.
+     */
+    public synchronized void append(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+            throws IOException {
+        output.reset();
+        dataOutput.writeUTF(exchange);
+        dataOutput.writeUTF(routingKey);
+        if (props == null) {
+            dataOutput.writeBoolean(false);
+        } else {
+            dataOutput.writeBoolean(true);
+            dataOutput.writeShort(0); // content header weight
+            dataOutput.writeLong(body.length);
+            props.writePropertiesTo(new ContentHeaderPropertyWriter(dataOutput));
+        }
+        dataOutput.writeInt(body.length);
+        dataOutput.write(body);
+        dataOutput.flush();
+
+        int length = output.size();
+        crc.reset();
+        crc.update(output.buffer(), 0, length);
+
+        if (active == null || active.remaining() < RECORD_HEADER + length + 4)
+            roll(RECORD_HEADER + length + 4);
+        active.putInt(length);
+        active.putInt((int) crc.getValue());
+        active.put(output.buffer(), 0, length);
+        appended++;
+        empty = false;
+    }
+
+    /**
+     * replays every record journaled so far on the channel, which must be in confirm mode, and deletes each segment
+     * once the broker confirmed all of its records.
+     *
+     * @return number of records replayed
+     */
+    public int replay(final Channel channel) throws IOException, InterruptedException {
+        return replay(new RecordHandler() {
+            @Override
+            public void record(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+                channel.basicPublish(exchange, routingKey, props, body);
+            }
+
+            @Override
+            public void segmentReplayed() throws IOException, InterruptedException {
+                channel.waitForConfirmsOrDie();
+            }
+        });
+    }
+
+    int replay(RecordHandler handler) throws IOException, InterruptedException {
+        synchronized (this) {
+            seal();
+        }
+        int count = 0;
+        File segment;
+        while ((segment = oldestSealed()) != null) {
+            int records = replaySegment(segment, handler);
+            handler.segmentReplayed();
+            synchronized (this) {
+                sealed.remove(segment);
+                replayed += records;
+                empty = sealed.isEmpty() && (active == null || active.position() == 0);
+            }
+            count += records;
+            if (!segment.delete())
+                LOGGER.error("Can't delete replayed journal segment {}", segment);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public synchronized int getSegmentCount() {
+        return sealed.size() + (active == null ? 0 : 1);
+    }
+
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    public synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        seal();
+    }
+
+    private synchronized File oldestSealed() {
+        return sealed.peekFirst();
+    }
+
+    private int replaySegment(File segment, RecordHandler handler) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            CRC32 checksum = new CRC32();
+            int count = 0;
+            byte[] payload = new byte[0];
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt();
+                if (length == 0)
+                    break;
+                int expectedCrc = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    LOGGER.error("Journal segment {} is truncated at offset {}, skipping its tail", segment, buffer.position() - RECORD_HEADER);
+                    break;
+                }
+                if (payload.length < length)
+                    payload = new byte[length];
+                buffer.get(payload, 0, length);
+                checksum.reset();
+                checksum.update(payload, 0, length);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    LOGGER.error("Journal segment {} has a corrupt record at offset {}, skipping its tail", segment, buffer.position() - length - RECORD_HEADER);
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                String exchange = in.readUTF();
+                String routingKey = in.readUTF();
+                AMQP.BasicProperties props = in.readBoolean() ? new AMQP.BasicProperties(in) : null;
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                handler.record(exchange, routingKey, props, body);
+                count++;
+            }
+            return count;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void roll(int minimumBytes) throws IOException {
+        seal();
+        activeFile = new File(directory, String.format("%020d%s", nextSegment++, SUFFIX));
+        RandomAccessFile file = new RandomAccessFile(activeFile, "rw");
+        try {
+            active = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, minimumBytes));
+        } finally {
+            file.close();
+        }
+    }
+
+    private void seal() {
+        if (active == null)
+            return;
+        if (active.position() == 0) {
+            // nothing written since the last roll, keep writing into it
+            return;
+        }
+        if (active.remaining() >= 4)
+            active.putInt(0);
+        active.force();
+        sealed.add(activeFile);
+        active = null;
+        activeFile = null;
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream handing out its buffer, so encoding a record doesn't copy it again
+     */
+    private static class RecordOutput extends ByteArrayOutputStream {
+        RecordOutput() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
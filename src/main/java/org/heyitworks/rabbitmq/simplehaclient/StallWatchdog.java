@@ -0,0 +1,270 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * detects connections which went silent without being closed, e.g. behind a firewall dropping packets, long before
+ * TCP would notice. Two kinds of stalls are detected:
+ * <ul>
+ * <li>nothing read from a socket for the stall timeout. With AMQP heartbeats enabled the broker writes at least
+ * once per heartbeat interval, so the timeout should be a small multiple of it. The socket is closed, which makes
+ * the client see an ordinary connection loss and recover.</li>
+ * <li>a {@link ProgressProbe} registered for e.g. a consumer that makes no progress for its timeout; the
+ * {@link StallHandler} is told, and the client tears down and recovers its connection.</li>
+ * </ul>
+ * Socket tracking needs the connection factory to create sockets through {@link #socketFactory(SocketFactory)};
+ * it works with plain sockets only, SSL connections rely on heartbeats and probes.
+ *
+ * @author maciekr
+ */
+public class StallWatchdog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StallWatchdog.class);
+
+    public interface ProgressProbe {
+        /**
+         * @return System.nanoTime() of the last progress made
+         */
+        long lastProgressNanos();
+    }
+
+    public interface StallHandler {
+        void stalled(String probe);
+    }
+
+    private final long stallTimeoutNanos;
+    private final Set<TrackedSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<TrackedSocket, Boolean>());
+    private final Map<String, WatchedProbe> probes = new ConcurrentHashMap<String, WatchedProbe>();
+    private final AtomicLong stalls = new AtomicLong();
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AMQPStallWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param stallTimeoutMillis how long a socket may stay silent
+     * @param checkIntervalMillis how often sockets and probes are checked, which adds to the detection time
+     */
+    public StallWatchdog(long stallTimeoutMillis, long checkIntervalMillis) {
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check(System.nanoTime());
+                } catch (RuntimeException e) {
+                    LOGGER.error("Stall check failed", e);
+                }
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a socket factory recording when each socket last read something; sockets not created by the default
+     * socket factory (e.g. SSL ones) are created by the delegate and not tracked
+     */
+    public SocketFactory socketFactory(final SocketFactory delegate) {
+        if (delegate instanceof TrackingSocketFactory)
+            // another watchdog's factory would track the sockets for that one
+            return ((TrackingSocketFactory) delegate).watchdog() == this ? delegate : new TrackingSocketFactory();
+        if (delegate != null && delegate.getClass() != SocketFactory.getDefault().getClass()) {
+            LOGGER.warn("Can't track inbound traffic of sockets created by {}, relying on heartbeats and probes", delegate);
+            return delegate;
+        }
+        return new TrackingSocketFactory();
+    }
+
+    /**
+     * calls the handler whenever the probe made no progress for the timeout; after that the probe gets another
+     * timeout to make progress before the handler is called again
+     */
+    public void watch(String name, ProgressProbe probe, long timeoutMillis, StallHandler handler) {
+        probes.put(name, new WatchedProbe(probe, TimeUnit.MILLISECONDS.toNanos(timeoutMillis), handler));
+    }
+
+    /**
+     * @return probe for the last time anything was read from a tracked socket, Long.MIN_VALUE while none is open
+     */
+    public ProgressProbe inbound() {
+        return new ProgressProbe() {
+            @Override
+            public long lastProgressNanos() {
+                long last = Long.MIN_VALUE;
+                for (TrackedSocket socket : sockets)
+                    if (!socket.isClosed() && (last == Long.MIN_VALUE || socket.lastInbound - last > 0))
+                        last = socket.lastInbound;
+                return last;
+            }
+        };
+    }
+
+    public void unwatch(String name) {
+        probes.remove(name);
+    }
+
+    /**
+     * @return number of stalled sockets closed and stalled probes reported so far
+     */
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    public int getTrackedSocketCount() {
+        return sockets.size();
+    }
+
+    public void shutdown() {
+        checker.shutdownNow();
+    }
+
+    void check(long now) {
+        for (TrackedSocket socket : sockets) {
+            if (socket.isClosed()) {
+                sockets.remove(socket);
+            } else if (now - socket.lastInbound > stallTimeoutNanos) {
+                stalls.incrementAndGet();
+                LOGGER.warn("Nothing read from {} for {}ms, closing it", socket.getRemoteSocketAddress(),
+                        TimeUnit.NANOSECONDS.toMillis(now - socket.lastInbound));
+                sockets.remove(socket);
+                socket.reset();
+            }
+        }
+        for (Map.Entry<String, WatchedProbe> entry : probes.entrySet()) {
+            WatchedProbe watched = entry.getValue();
+            long since = Math.max(watched.probe.lastProgressNanos(), watched.lastReported);
+            if (now - since > watched.timeoutNanos) {
+                stalls.incrementAndGet();
+                watched.lastReported = now;
+                LOGGER.warn("{} made no progress for {}ms", entry.getKey(), TimeUnit.NANOSECONDS.toMillis(now - since));
+                watched.handler.stalled(entry.getKey());
+            }
+        }
+    }
+
+    private static class WatchedProbe {
+        final ProgressProbe probe;
+        final long timeoutNanos;
+        final StallHandler handler;
+        long lastReported = System.nanoTime();
+
+        WatchedProbe(ProgressProbe probe, long timeoutNanos, StallHandler handler) {
+            this.probe = probe;
+            this.timeoutNanos = timeoutNanos;
+            this.handler = handler;
+        }
+    }
+
+    private class TrackingSocketFactory extends SocketFactory {
+        StallWatchdog watchdog() {
+            return StallWatchdog.this;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new TrackedSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return createSocket(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private Socket createSocket(SocketAddress remote, SocketAddress local) throws IOException {
+            Socket socket = new TrackedSocket();
+            if (local != null)
+                socket.bind(local);
+            socket.connect(remote);
+            return socket;
+        }
+    }
+
+    private class TrackedSocket extends Socket {
+        volatile long lastInbound = System.nanoTime();
+        private InputStream input;
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            super.connect(endpoint, timeout);
+            lastInbound = System.nanoTime();
+            sockets.add(this);
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null)
+                input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int read = super.read();
+                        if (read >= 0)
+                            lastInbound = System.nanoTime();
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = super.read(b, off, len);
+                        if (read > 0)
+                            lastInbound = System.nanoTime();
+                        return read;
+                    }
+                };
+            return input;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            sockets.remove(this);
+            super.close();
+        }
+
+        void reset() {
+            try {
+                setSoLinger(true, 0);
+            } catch (IOException e) {
+            }
+            try {
+                close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
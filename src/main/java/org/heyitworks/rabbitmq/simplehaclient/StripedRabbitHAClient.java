@@ -0,0 +1,140 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.ConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * stripes operations across N independent {@link RabbitHAClient}s, i.e. N connections with their own socket and
+ * reader thread. Operations go to the stripe of the calling thread (threads are assigned round robin) or of a key,
+ * so operations sharing a key keep their order. Each stripe recovers on its own, and a callback is re-registered
+ * only on the stripe it was registered with.
+ * <p/>
+ * With spreadAddresses each stripe gets the address list rotated by its index, so stripes prefer different nodes.
+ *
+ * @author maciekr
+ */
+public class StripedRabbitHAClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripedRabbitHAClient.class);
+
+    private final RabbitHAClient[] stripes;
+    private final AtomicInteger nextThreadStripe = new AtomicInteger();
+    private final ThreadLocal<RabbitHAClient> threadStripe = new ThreadLocal<RabbitHAClient>() {
+        @Override
+        protected RabbitHAClient initialValue() {
+            return stripes[(nextThreadStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+        }
+    };
+
+    public StripedRabbitHAClient(Address[] addresses, String vhost, String user, String pass, boolean useSSL,
+                                 int stripeCount, boolean spreadAddresses) {
+        this(addresses, connectionFactory(vhost, user, pass, useSSL), stripeCount, spreadAddresses);
+    }
+
+    public StripedRabbitHAClient(Address[] addresses, ConnectionFactory connectionFactory, int stripeCount,
+                                 boolean spreadAddresses) {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("Stripe count must be positive, was " + stripeCount);
+        this.stripes = new RabbitHAClient[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            // a copy per stripe, so whatever a stripe sets up on its factory stays with its own connections
+            stripes[i] = new RabbitHAClient(spreadAddresses ? rotate(addresses, i) : addresses, connectionFactory.clone());
+        LOGGER.info("Striping operations across {} connections", stripeCount);
+    }
+
+    /**
+     * @return the stripe operations of the calling thread go to
+     */
+    public RabbitHAClient forCurrentThread() {
+        return threadStripe.get();
+    }
+
+    /**
+     * @return the stripe operations for the key go to, always the same one for equal keys
+     */
+    public RabbitHAClient forKey(Object key) {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    public RabbitHAClient stripe(int index) {
+        return stripes[index];
+    }
+
+    public int stripeCount() {
+        return stripes.length;
+    }
+
+    public void doInRabbit(RabbitHAClient.RabbitOperation operation) {
+        forCurrentThread().doInRabbit(operation);
+    }
+
+    public void doInRabbit(RabbitHAClient.RabbitOperation operation, boolean isCallback) {
+        forCurrentThread().doInRabbit(operation, isCallback);
+    }
+
+    public void doInRabbit(RabbitHAClient.ChannelOperation operation) {
+        forCurrentThread().doInRabbit(operation);
+    }
+
+    public void doInRabbit(Object key, RabbitHAClient.RabbitOperation operation) {
+        forKey(key).doInRabbit(operation);
+    }
+
+    public void doInRabbit(Object key, RabbitHAClient.ChannelOperation operation) {
+        forKey(key).doInRabbit(operation);
+    }
+
+    public CompletableFuture<Void> doInRabbitAsync(RabbitHAClient.RabbitOperation operation) {
+        return forCurrentThread().doInRabbitAsync(operation);
+    }
+
+    public CompletableFuture<Void> doInRabbitAsync(Object key, RabbitHAClient.RabbitOperation operation) {
+        return forKey(key).doInRabbitAsync(operation);
+    }
+
+    /**
+     * publishes on the stripe of the routing key, so messages with the same routing key stay in order
+     */
+    public boolean publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        return forKey(routingKey).publish(exchange, routingKey, props, body);
+    }
+
+    public void shutdown() throws IOException {
+        IOException failure = null;
+        for (RabbitHAClient stripe : stripes)
+            try {
+                stripe.shutdown();
+            } catch (IOException e) {
+                failure = e;
+            }
+        if (failure != null)
+            throw failure;
+    }
+
+    static Address[] rotate(Address[] addresses, int by) {
+        Address[] rotated = new Address[addresses.length];
+        for (int i = 0; i < addresses.length; i++)
+            rotated[i] = addresses[(i + by) % addresses.length];
+        return rotated;
+    }
+
+    private static ConnectionFactory connectionFactory(String vhost, String user, String pass, boolean useSSL) {
+        ConnectionFactory connectionFactory = new ConnectionFactory();
+        try {
+            connectionFactory.setVirtualHost(vhost);
+            connectionFactory.setUsername(user);
+            connectionFactory.setPassword(pass);
+            if (useSSL) connectionFactory.useSslProtocol();
+        } catch (Exception e) {
+            throw new RuntimeException("Rabbit ConnectionFactory construction failed!", e);
+        }
+        return connectionFactory;
+    }
+}
@@ -0,0 +1,286 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * records the exchanges, queues and bindings declared through it, so that {@link RabbitHAClient} can re-establish
+ * all of them on a single channel when it recovers, before callbacks are replayed. Redeclaring is pipelined: every
+ * declaration goes out with nowait and a single synchronous call at the end fences them, so recovering N entities
+ * costs one round trip instead of N.
+ * <p/>
+ * Declaring through the registry is a no-op for an entity already established on the current connection with the
+ * same definition, which means replayed callbacks only pay for what they do besides declaring, e.g. basicConsume.
+ * Server-named queues can't be recorded, since they get a new name on every connection.
+ *
+ * @author maciekr
+ */
+public class TopologyRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TopologyRegistry.class);
+
+    private final Map<Object, Declaration> declarations = new LinkedHashMap<Object, Declaration>();
+    private volatile boolean established = true;
+
+    public void exchangeDeclare(Channel channel, String exchange, String type, boolean durable, boolean autoDelete,
+                                Map<String, Object> arguments) throws IOException {
+        declare(channel, new Exchange(exchange, type, durable, autoDelete, arguments));
+    }
+
+    public void queueDeclare(Channel channel, String queue, boolean durable, boolean exclusive, boolean autoDelete,
+                             Map<String, Object> arguments) throws IOException {
+        if (queue == null || queue.isEmpty())
+            throw new IllegalArgumentException("Server-named queues can't be recorded");
+        declare(channel, new Queue(queue, durable, exclusive, autoDelete, arguments));
+    }
+
+    public void queueBind(Channel channel, String queue, String exchange, String routingKey,
+                          Map<String, Object> arguments) throws IOException {
+        declare(channel, new Binding(queue, exchange, routingKey, arguments));
+    }
+
+    public void queueUnbind(Channel channel, String queue, String exchange, String routingKey,
+                            Map<String, Object> arguments) throws IOException {
+        channel.queueUnbind(queue, exchange, routingKey, arguments);
+        synchronized (this) {
+            declarations.remove(new Binding(queue, exchange, routingKey, arguments).key());
+        }
+    }
+
+    /**
+     * deletes the queue and forgets it along with its bindings
+     */
+    public void queueDelete(Channel channel, String queue) throws IOException {
+        channel.queueDelete(queue);
+        synchronized (this) {
+            declarations.remove(Queue.key(queue));
+            for (Iterator<Declaration> it = declarations.values().iterator(); it.hasNext(); ) {
+                Declaration declaration = it.next();
+                if (declaration instanceof Binding && ((Binding) declaration).queue.equals(queue))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * deletes the exchange and forgets it along with the bindings to it
+     */
+    public void exchangeDelete(Channel channel, String exchange) throws IOException {
+        channel.exchangeDelete(exchange);
+        synchronized (this) {
+            declarations.remove(Exchange.key(exchange));
+            for (Iterator<Declaration> it = declarations.values().iterator(); it.hasNext(); ) {
+                Declaration declaration = it.next();
+                if (declaration instanceof Binding && ((Binding) declaration).exchange.equals(exchange))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * declares everything recorded on the channel, in the order it was first declared, and waits for the broker to
+     * process it. An invalid declaration closes the channel, failing the final synchronous call.
+     *
+     * @return number of entities declared
+     */
+    public int redeclare(Channel channel) throws IOException {
+        List<Declaration> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Declaration>(declarations.values());
+        }
+        long start = System.nanoTime();
+        for (Declaration declaration : snapshot)
+            channel.asyncRpc(declaration.pipelined());
+        // any synchronous method works as a fence, the broker handles a channel's methods in order
+        channel.basicQos(0);
+        established = true;
+        LOGGER.info("Redeclared {} exchanges, queues and bindings in {}us", snapshot.size(), (System.nanoTime() - start) / 1000);
+        return snapshot.size();
+    }
+
+    /**
+     * makes declarations go to the broker again until the next {@link #redeclare(Channel)}
+     */
+    void connectionLost() {
+        established = false;
+    }
+
+    public synchronized int size() {
+        return declarations.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return declarations.isEmpty();
+    }
+
+    /**
+     * @return what is recorded, in declaration order
+     */
+    public synchronized List<String> getDeclarations() {
+        List<String> described = new ArrayList<String>(declarations.size());
+        for (Declaration declaration : declarations.values())
+            described.add(declaration.toString());
+        return Collections.unmodifiableList(described);
+    }
+
+    private void declare(Channel channel, Declaration declaration) throws IOException {
+        if (established) {
+            synchronized (this) {
+                if (declaration.equals(declarations.get(declaration.key())))
+                    return;
+            }
+        }
+        declaration.declare(channel);
+        synchronized (this) {
+            declarations.put(declaration.key(), declaration);
+        }
+    }
+
+    private static abstract class Declaration {
+        abstract Object key();
+
+        abstract void declare(Channel channel) throws IOException;
+
+        abstract Method pipelined();
+
+        @Override
+        public boolean equals(Object other) {
+            return other != null && other.getClass() == getClass() && toString().equals(other.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+    }
+
+    private static class Exchange extends Declaration {
+        final String name;
+        final String type;
+        final boolean durable;
+        final boolean autoDelete;
+        final Map<String, Object> arguments;
+
+        Exchange(String name, String type, boolean durable, boolean autoDelete, Map<String, Object> arguments) {
+            this.name = name;
+            this.type = type;
+            this.durable = durable;
+            this.autoDelete = autoDelete;
+            this.arguments = arguments;
+        }
+
+        static Object key(String name) {
+            return "exchange:" + name;
+        }
+
+        @Override
+        Object key() {
+            return key(name);
+        }
+
+        @Override
+        void declare(Channel channel) throws IOException {
+            channel.exchangeDeclare(name, type, durable, autoDelete, arguments);
+        }
+
+        @Override
+        Method pipelined() {
+            return new AMQP.Exchange.Declare.Builder().exchange(name).type(type).durable(durable)
+                    .autoDelete(autoDelete).arguments(arguments).nowait().build();
+        }
+
+        @Override
+        public String toString() {
+            return "exchange " + name + " type=" + type + " durable=" + durable + " autoDelete=" + autoDelete
+                    + " arguments=" + arguments;
+        }
+    }
+
+    private static class Queue extends Declaration {
+        final String name;
+        final boolean durable;
+        final boolean exclusive;
+        final boolean autoDelete;
+        final Map<String, Object> arguments;
+
+        Queue(String name, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) {
+            this.name = name;
+            this.durable = durable;
+            this.exclusive = exclusive;
+            this.autoDelete = autoDelete;
+            this.arguments = arguments;
+        }
+
+        static Object key(String name) {
+            return "queue:" + name;
+        }
+
+        @Override
+        Object key() {
+            return key(name);
+        }
+
+        @Override
+        void declare(Channel channel) throws IOException {
+            channel.queueDeclare(name, durable, exclusive, autoDelete, arguments);
+        }
+
+        @Override
+        Method pipelined() {
+            return new AMQP.Queue.Declare.Builder().queue(name).durable(durable).exclusive(exclusive)
+                    .autoDelete(autoDelete).arguments(arguments).nowait().build();
+        }
+
+        @Override
+        public String toString() {
+            return "queue " + name + " durable=" + durable + " exclusive=" + exclusive + " autoDelete=" + autoDelete
+                    + " arguments=" + arguments;
+        }
+    }
+
+    private static class Binding extends Declaration {
+        final String queue;
+        final String exchange;
+        final String routingKey;
+        final Map<String, Object> arguments;
+
+        Binding(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+            this.queue = queue;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object key() {
+            return toString();
+        }
+
+        @Override
+        void declare(Channel channel) throws IOException {
+            channel.queueBind(queue, exchange, routingKey, arguments);
+        }
+
+        @Override
+        Method pipelined() {
+            return new AMQP.Queue.Bind.Builder().queue(queue).exchange(exchange).routingKey(routingKey)
+                    .arguments(arguments).nowait().build();
+        }
+
+        @Override
+        public String toString() {
+            return "binding " + exchange + " -> " + queue + " routingKey=" + routingKey + " arguments=" + arguments;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncDoInRabbitTest {
+
+    private final StubConnectionFactory broker = new StubConnectionFactory(0);
+    private final RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+
+    {
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{new Address("localhost")}, 10, 20));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Test
+    public void completesWhenOperationSucceeds() throws Exception {
+        CountingOperation operation = new CountingOperation(0);
+
+        haClient.doInRabbitAsync(operation).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, operation.executions.get());
+    }
+
+    @Test
+    public void completesOnlyAfterRetryFollowingRecovery() throws Exception {
+        CountingOperation operation = new CountingOperation(2);
+
+        haClient.doInRabbitAsync(operation).get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, operation.executions.get());
+    }
+
+    @Test
+    public void failsWithOperationsRuntimeException() throws Exception {
+        CompletableFuture<Void> future = haClient.doInRabbitAsync(new CountingOperation(0) {
+            @Override
+            public void execute(Connection connection) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void missesDeadlineWhileBrokerIsDown() throws Exception {
+        haClient.doInRabbit(new CountingOperation(0));
+        broker.setBrokerDown(true);
+        broker.killConnections();
+        CountingOperation operation = new CountingOperation(0);
+
+        CompletableFuture<Void> future = haClient.doInRabbitAsync(operation, 100, TimeUnit.MILLISECONDS);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        broker.setBrokerDown(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getPendingOperationCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, operation.executions.get());
+    }
+
+    @Test
+    public void runsOnPluggedExecutor() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        haClient.setAsyncExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.incrementAndGet();
+                executor.execute(command);
+            }
+        });
+
+        haClient.doInRabbitAsync(new CountingOperation(0)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, submitted.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shutdownFailsOperationsWaitingForRecovery() throws Exception {
+        haClient.doInRabbit(new CountingOperation(0));
+        broker.setBrokerDown(true);
+        broker.killConnections();
+        CompletableFuture<Void> future = haClient.doInRabbitAsync(new CountingOperation(0));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getPendingOperationCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        haClient.shutdown();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static class CountingOperation implements RabbitHAClient.RabbitOperation {
+        final AtomicInteger executions = new AtomicInteger();
+        final int failures;
+
+        CountingOperation(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void execute(Connection connection) throws IOException {
+            if (executions.incrementAndGet() <= failures)
+                throw new IOException("failure " + executions.get());
+        }
+
+        @Override
+        public String operationId() {
+            return "ASYNC";
+        }
+    }
+}
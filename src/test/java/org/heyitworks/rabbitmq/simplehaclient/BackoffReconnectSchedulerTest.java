@@ -0,0 +1,198 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BackoffReconnectSchedulerTest {
+
+    private final Address a = new Address("a");
+    private final Address b = new Address("b");
+    private final Address c = new Address("c");
+
+    @Test
+    public void triesFailedAddressesLast() {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a, b, c});
+        assertArrayEquals(new Address[]{a, b, c}, scheduler.addresses());
+
+        scheduler.failed(a);
+        scheduler.failed(a);
+        scheduler.failed(b);
+        assertArrayEquals(new Address[]{c, b, a}, scheduler.addresses());
+
+        scheduler.connected(a, 1000000);
+        assertArrayEquals(new Address[]{a, c, b}, scheduler.addresses());
+        assertEquals(2, scheduler.getAddressHealth().get(0).getFailures());
+    }
+
+    @Test
+    public void firstAttemptIsImmediate() {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a}, 100, 1000);
+        assertEquals(0, scheduler.nextDelayMillis(1, true));
+    }
+
+    @Test
+    public void operationErrorOnOpenConnectionBacksOff() {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a}, 100, 1000);
+        assertTrue(scheduler.nextDelayMillis(1, false) >= 100);
+    }
+
+    @Test
+    public void backoffCarriesOverUntilConnectionStaysUp() throws Exception {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a}, 10, 50);
+        assertEquals(0, scheduler.nextDelayMillis(1, true));
+        scheduler.connected(a, 1000000);
+        assertTrue(scheduler.nextDelayMillis(1, true) >= 10);
+        scheduler.connected(a, 1000000);
+
+        Thread.sleep(60);
+        assertEquals(0, scheduler.nextDelayMillis(1, true));
+    }
+
+    @Test
+    public void permanentlyFailingOperationReconnectsWithBackoff() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{a}, broker);
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{a}, 50, 200));
+        try {
+            haClient.doInRabbit(new RabbitHAClient.RabbitOperation() {
+                @Override
+                public void execute(Connection connection) throws IOException {
+                    throw new IOException("always fails");
+                }
+
+                @Override
+                public String operationId() {
+                    return "FAILING";
+                }
+            });
+            Thread.sleep(1000);
+        } finally {
+            haClient.shutdown();
+        }
+        // every reconnect but the first waits at least the base delay
+        assertTrue(broker.connectionsOpened() >= 2);
+        assertTrue("reconnected " + broker.connectionsOpened() + " times", broker.connectionsOpened() <= 1000 / 50 + 2);
+    }
+
+    @Test
+    public void applicationTrafficReconnectsThroughTheScheduler() throws Exception {
+        final AtomicInteger delays = new AtomicInteger();
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{a}, broker);
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{a}, 50, 200) {
+            @Override
+            public synchronized long nextDelayMillis(int attempt, boolean connectionLost) {
+                delays.incrementAndGet();
+                return super.nextDelayMillis(attempt, connectionLost);
+            }
+        });
+        RabbitHAClient.RabbitOperation operation = new RabbitHAClient.RabbitOperation() {
+            @Override
+            public void execute(Connection connection) throws IOException {
+            }
+
+            @Override
+            public String operationId() {
+                return "NOOP";
+            }
+        };
+        try {
+            haClient.doInRabbit(operation);
+            broker.setBrokerDown(true);
+            broker.killConnections();
+            long until = System.currentTimeMillis() + 500;
+            while (System.currentTimeMillis() < until) {
+                haClient.doInRabbit(operation);
+                Thread.sleep(5);
+            }
+            broker.setBrokerDown(false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (haClient.getPendingOperationCount() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(0, haClient.getPendingOperationCount());
+        } finally {
+            haClient.shutdown();
+        }
+        // the first connect, then every one of them was paced by the scheduler
+        assertEquals(1 + delays.get(), broker.connectAttempts());
+        assertTrue("tried to connect " + broker.connectAttempts() + " times", broker.connectAttempts() <= 500 / 50 + 3);
+    }
+
+    @Test
+    public void failsOverToTheStandbyWithoutBackingOffKillAfterKill() throws Exception {
+        final AtomicInteger recoveries = new AtomicInteger();
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{a, b}, broker);
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{a, b}, 500, 2000));
+        haClient.enableStandby();
+        haClient.addListener(new HAClientListener.Adapter() {
+            @Override
+            public void connectionRecovered(long reconnectNanos, long outageNanos) {
+                recoveries.incrementAndGet();
+            }
+        });
+        try {
+            haClient.doInRabbit(new RabbitHAClient.RabbitOperation() {
+                @Override
+                public void execute(Connection connection) throws IOException {
+                }
+
+                @Override
+                public String operationId() {
+                    return "NOOP";
+                }
+            });
+            for (int kill = 0; kill < 4; kill++) {
+                // the primary and a standby to the other address
+                long deadline = System.currentTimeMillis() + 5000;
+                while (broker.connectionsOpened() < 2 + kill && System.currentTimeMillis() < deadline)
+                    Thread.sleep(5);
+                assertEquals(2 + kill, broker.connectionsOpened());
+
+                long start = System.currentTimeMillis();
+                broker.killConnections(kill % 2 == 0 ? a : b);
+                while (recoveries.get() == kill && System.currentTimeMillis() < deadline)
+                    Thread.sleep(1);
+                long failover = System.currentTimeMillis() - start;
+                assertEquals(kill + 1, recoveries.get());
+                assertTrue("kill " + kill + " took " + failover + "ms to fail over", failover < 250);
+            }
+        } finally {
+            haClient.shutdown();
+        }
+    }
+
+    @Test
+    public void promotingTheStandbyStartsTheBackoffOver() {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a, b}, 100, 1000);
+        assertEquals(0, scheduler.nextDelayMillis(1, true));
+        assertTrue(scheduler.nextDelayMillis(2, true) >= 100);
+
+        scheduler.promoted(b);
+        assertEquals(0, scheduler.nextDelayMillis(1, true));
+    }
+
+    @Test
+    public void backsOffWithinBounds() {
+        BackoffReconnectScheduler scheduler = new BackoffReconnectScheduler(new Address[]{a}, 100, 1000);
+        long previous = 0;
+        for (int run = 0; run < 100; run++) {
+            for (int attempt = 1; attempt <= 20; attempt++) {
+                long delay = scheduler.nextDelayMillis(attempt, true);
+                if (run == 0 && attempt == 1) {
+                    assertEquals(0, delay);
+                } else {
+                    assertTrue(delay >= 100 && delay <= 1000);
+                    assertTrue(delay <= Math.max(100, previous * 3));
+                }
+                previous = delay;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchingPublisherTest {
+
+    private static final AMQP.BasicProperties JSON = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").deliveryMode(2).build();
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        broker.setRecordPublishes(true);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        haClient.shutdown();
+    }
+
+    @Test
+    public void codecRoundTripsMessagesOfAnySize() {
+        byte[][] messages = {new byte[0], new byte[1], new byte[127], new byte[128], new byte[70000]};
+        for (int i = 0; i < messages.length; i++)
+            for (int j = 0; j < messages[i].length; j++)
+                messages[i][j] = (byte) (i + j);
+        BatchCodec.Writer writer = new BatchCodec.Writer(16);
+        for (byte[] message : messages)
+            writer.add(message);
+
+        byte[] batch = writer.toByteArray();
+        assertEquals(1 + 1 + 2 + 128 + 130 + 70003, batch.length);
+        List<byte[]> decoded = BatchCodec.decode(batch);
+        assertEquals(messages.length, decoded.size());
+        for (int i = 0; i < messages.length; i++)
+            assertArrayEquals(messages[i], decoded.get(i));
+
+        try {
+            BatchCodec.decode(Arrays.copyOf(batch, batch.length - 1));
+            fail("truncated batch decoded");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void publishesFullBatchesPerDestination() {
+        BatchingPublisher publisher = new BatchingPublisher(haClient, "events", JSON, 64 * 1024, 10, 60000);
+        for (int i = 0; i < 25; i++)
+            publisher.publish("events", "key-" + i % 2, ("event-" + i).getBytes());
+
+        assertEquals(2, broker.publishedCount());
+        publisher.close();
+        assertEquals(4, broker.publishedCount());
+        assertEquals(25, publisher.getMessageCount());
+        assertEquals(4, publisher.getBatchCount());
+
+        List<String> even = new ArrayList<String>();
+        for (StubConnectionFactory.Published published : broker.published())
+            if (published.routingKey.equals("key-0"))
+                for (byte[] message : BatchCodec.decode(published.body))
+                    even.add(new String(message));
+        assertEquals(13, even.size());
+        for (int i = 0; i < even.size(); i++)
+            assertEquals("event-" + i * 2, even.get(i));
+    }
+
+    @Test
+    public void neverExceedsMaxBatchBytes() {
+        BatchingPublisher publisher = new BatchingPublisher(haClient, "events", null, 1000, 1000, 60000);
+        for (int i = 0; i < 100; i++)
+            publisher.publish("events", "key", new byte[99]);
+        publisher.flush();
+
+        assertEquals(12, publisher.getBatchCount());
+        for (StubConnectionFactory.Published published : broker.published())
+            assertTrue(published.body.length <= 1000);
+        publisher.close();
+    }
+
+    @Test
+    public void blockedPublishDoesNotHoldUpAddingMessages() throws Exception {
+        final BatchingPublisher publisher = new BatchingPublisher(haClient, "events", JSON, 64 * 1024, 2, 60000);
+        publisher.publish("events", "a", "first".getBytes());
+        broker.setPublishBlocked(true);
+        Thread completing = new Thread() {
+            @Override
+            public void run() {
+                publisher.publish("events", "a", "second".getBytes());
+            }
+        };
+        completing.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getFlowControl().getPublishingCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        long began = System.nanoTime();
+        publisher.publish("events", "b", "third".getBytes());
+        assertTrue(System.nanoTime() - began < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(completing.isAlive());
+
+        broker.setPublishBlocked(false);
+        completing.join(5000);
+        publisher.close();
+        assertEquals(2, broker.publishedCount());
+        assertEquals(3, publisher.getMessageCount());
+    }
+
+    @Test
+    public void flushesLingeringBatch() throws Exception {
+        BatchingPublisher publisher = new BatchingPublisher(haClient, "events", JSON, 64 * 1024, 1000, 20);
+        publisher.publish("events", "key", "lonely".getBytes());
+        assertEquals(0, broker.publishedCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.publishedCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(1, broker.publishedCount());
+        publisher.close();
+    }
+
+    @Test
+    public void consumerGetsMessagesOneByOneWithTheirProperties() throws Exception {
+        BatchingPublisher publisher = new BatchingPublisher(haClient, "events", JSON);
+        for (int i = 0; i < 5; i++)
+            publisher.publish("events", "key", ("event-" + i).getBytes());
+        publisher.close();
+        StubConnectionFactory.Published batch = broker.published().get(0);
+        assertEquals(BatchCodec.CONTENT_TYPE, batch.props.getContentType());
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        com.rabbitmq.client.Consumer consumer = BatchCodec.unbatching(new DefaultConsumer(null) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                assertEquals("application/json", properties.getContentType());
+                assertEquals(Integer.valueOf(2), properties.getDeliveryMode());
+                assertNull(properties.getHeaders());
+                received.add(new String(body));
+            }
+        });
+        consumer.handleDelivery("tag", new Envelope(1, false, "events", "key"), batch.props, batch.body);
+        consumer.handleDelivery("tag", new Envelope(2, false, "events", "key"), JSON, "plain".getBytes());
+
+        assertEquals(6, received.size());
+        assertEquals("event-4", received.get(4));
+        assertEquals("plain", received.get(5));
+    }
+}
@@ -0,0 +1,85 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CallbackRecoveryTest {
+
+    @Test
+    public void replaysHigherPrioritiesFirst() {
+        CallbackRecovery recovery = new CallbackRecovery(4, "test");
+        final List<String> order = new CopyOnWriteArrayList<String>();
+        List<Callback> callbacks = Arrays.asList(new Callback("low", -1), new Callback("default", RecoveryPriority.DEFAULT),
+                new Callback("critical", 10), new Callback("default-2", RecoveryPriority.DEFAULT));
+
+        recovery.recover(callbacks, new CallbackRecovery.Replay<Callback>() {
+            @Override
+            public void replay(Callback callback) {
+                order.add(callback.id);
+            }
+
+            @Override
+            public String operationId(Callback callback) {
+                return callback.id;
+            }
+        });
+
+        assertEquals("critical", order.get(0));
+        assertEquals(new HashSet<String>(Arrays.asList("default", "default-2")), new HashSet<String>(order.subList(1, 3)));
+        assertEquals("low", order.get(3));
+        assertEquals(4, recovery.latencies().size());
+        recovery.shutdown();
+    }
+
+    @Test
+    public void replaysAGroupInParallel() {
+        CallbackRecovery recovery = new CallbackRecovery(4, "test");
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Callback> callbacks = new ArrayList<Callback>();
+        for (int i = 0; i < 8; i++)
+            callbacks.add(new Callback("consumer-" + i, RecoveryPriority.DEFAULT));
+
+        recovery.recover(callbacks, new CallbackRecovery.Replay<Callback>() {
+            @Override
+            public void replay(Callback callback) {
+                int now = running.incrementAndGet();
+                maxRunning.set(Math.max(maxRunning.get(), now));
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                running.decrementAndGet();
+            }
+
+            @Override
+            public String operationId(Callback callback) {
+                return callback.id;
+            }
+        });
+
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= 4);
+        recovery.shutdown();
+    }
+
+    private static class Callback implements RecoveryPriority {
+        final String id;
+        final int priority;
+
+        Callback(String id, int priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+
+        @Override
+        public int recoveryPriority() {
+            return priority;
+        }
+    }
+}
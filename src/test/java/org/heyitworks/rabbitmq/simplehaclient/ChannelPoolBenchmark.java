@@ -0,0 +1,116 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * compares publish throughput of a channel opened and closed per operation with channels leased from the pool.
+ * Runs against {@link StubConnectionFactory}, each synchronous broker call costing the simulated round trip.
+ * <p/>
+ * User: maciekr
+ */
+public class ChannelPoolBenchmark {
+
+    private static final byte[] BODY = "ChannelPoolBenchmark message".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        long roundTripNanos = Long.getLong("benchmark.roundTripNanos", 100000);
+        int messages = Integer.getInteger("benchmark.messages", 20000);
+        int threads = Integer.getInteger("benchmark.threads", 4);
+
+        for (int run = 0; run < 2; run++) {
+            report("per-op channel", perOpChannel(roundTripNanos, messages, threads), messages);
+            report("pooled channel", pooledChannel(roundTripNanos, messages, threads), messages);
+        }
+    }
+
+    private static long perOpChannel(long roundTripNanos, int messages, int threads) throws Exception {
+        final RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")},
+                new StubConnectionFactory(roundTripNanos));
+        final RabbitHAClient.RabbitOperation publish = new RabbitHAClient.RabbitOperation() {
+            @Override
+            public void execute(Connection connection) throws IOException {
+                Channel channel = connection.createChannel();
+                channel.basicPublish("", "benchmark", null, BODY);
+                channel.close();
+            }
+
+            @Override
+            public String operationId() {
+                return "PER-OP-PUBLISHER";
+            }
+        };
+        try {
+            return run(threads, messages, new Runnable() {
+                @Override
+                public void run() {
+                    haClient.doInRabbit(publish);
+                }
+            });
+        } finally {
+            haClient.shutdown();
+        }
+    }
+
+    private static long pooledChannel(long roundTripNanos, int messages, int threads) throws Exception {
+        final RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")},
+                new StubConnectionFactory(roundTripNanos));
+        final RabbitHAClient.ChannelOperation publish = new RabbitHAClient.ChannelOperation() {
+            @Override
+            public void execute(Channel channel) throws IOException {
+                channel.basicPublish("", "benchmark", null, BODY);
+            }
+
+            @Override
+            public String operationId() {
+                return "POOLED-PUBLISHER";
+            }
+        };
+        try {
+            return run(threads, messages, new Runnable() {
+                @Override
+                public void run() {
+                    haClient.doInRabbit(publish);
+                }
+            });
+        } finally {
+            haClient.shutdown();
+        }
+    }
+
+    static long run(int threads, final int messages, final Runnable operation) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final int perThread = messages / threads;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread("Benchmark-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perThread; j++)
+                            operation.run();
+                    } catch (InterruptedException e) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - began;
+    }
+
+    static void report(String name, long elapsedNanos, int messages) {
+        System.out.printf("%-24s %10.0f msg/s (%d msgs in %d ms)%n", name,
+                messages / (elapsedNanos / 1e9), messages, elapsedNanos / 1000000);
+    }
+}
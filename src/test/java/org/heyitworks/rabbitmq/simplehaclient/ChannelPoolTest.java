@@ -0,0 +1,77 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ChannelPoolTest {
+
+    private final StubConnectionFactory factory = new StubConnectionFactory(0);
+
+    @Test
+    public void reusesReleasedChannels() throws Exception {
+        Connection connection = factory.newConnection(new Address[]{new Address("localhost")});
+        ChannelPool pool = new ChannelPool(2, 100);
+
+        Channel first = pool.lease(connection);
+        pool.release(first);
+        Channel second = pool.lease(connection);
+
+        assertSame(first, second);
+        assertEquals(1, factory.channelsOpened());
+    }
+
+    @Test
+    public void dropsChannelsOfAnotherConnection() throws Exception {
+        Connection dead = factory.newConnection(new Address[]{new Address("localhost")});
+        Connection fresh = factory.newConnection(new Address[]{new Address("localhost")});
+        ChannelPool pool = new ChannelPool(2, 100);
+
+        Channel stale = pool.lease(dead);
+        pool.release(stale);
+        Channel channel = pool.lease(fresh);
+
+        assertNotSame(stale, channel);
+        assertSame(fresh, channel.getConnection());
+        assertFalse(stale.isOpen());
+    }
+
+    @Test
+    public void dropsClosedChannelsOnRelease() throws Exception {
+        Connection connection = factory.newConnection(new Address[]{new Address("localhost")});
+        ChannelPool pool = new ChannelPool(2, 100);
+
+        Channel channel = pool.lease(connection);
+        channel.close();
+        pool.release(channel);
+
+        assertEquals(0, pool.idleCount());
+    }
+
+    @Test
+    public void invalidateDropsIdleChannels() throws Exception {
+        Connection connection = factory.newConnection(new Address[]{new Address("localhost")});
+        ChannelPool pool = new ChannelPool(2, 100);
+
+        Channel channel = pool.lease(connection);
+        pool.release(channel);
+        pool.invalidate();
+
+        assertEquals(0, pool.idleCount());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test(expected = IOException.class)
+    public void leaseTimesOutWhenExhausted() throws Exception {
+        Connection connection = factory.newConnection(new Address[]{new Address("localhost")});
+        ChannelPool pool = new ChannelPool(1, 50);
+
+        pool.lease(connection);
+        pool.lease(connection);
+    }
+}
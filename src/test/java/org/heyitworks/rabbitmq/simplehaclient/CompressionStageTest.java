@@ -0,0 +1,133 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionStageTest {
+
+    private static final AMQP.BasicProperties JSON = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").build();
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+    private CompressionStage stage;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        broker.setRecordPublishes(true);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        stage = new CompressionStage(new DeflateCodec(), 1024);
+        haClient.setCompression(stage);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        haClient.shutdown();
+    }
+
+    @Test
+    public void deflateRoundTripsBodiesOfAnySize() throws Exception {
+        DeflateCodec codec = new DeflateCodec();
+        for (int size : new int[]{0, 1, 100, 5000, 3 * 1024 * 1024}) {
+            byte[] body = json(size);
+            byte[] encoded = codec.encode(body);
+            assertArrayEquals(body, codec.decode(encoded));
+            if (size >= 5000)
+                assertTrue(encoded.length < size / 4);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedAndOversizedBodies() throws Exception {
+        DeflateCodec codec = new DeflateCodec(1, 1, 10000);
+        byte[] encoded = codec.encode(json(5000));
+        try {
+            codec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+            fail("truncated body decoded");
+        } catch (IOException expected) {
+        }
+        try {
+            codec.decode("not deflated".getBytes());
+            fail("garbage decoded");
+        } catch (IOException expected) {
+        }
+        try {
+            codec.decode(codec.encode(new byte[20000]));
+            fail("inflated beyond the limit");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(json(5000), codec.decode(encoded));
+    }
+
+    @Test
+    public void compressesOnlyLargeCompressibleUnencodedBodies() {
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        haClient.publish("events", "small", JSON, json(100));
+        haClient.publish("events", "large", JSON, json(4096));
+        haClient.publish("events", "random", null, random);
+        haClient.publish("events", "gzipped", new AMQP.BasicProperties.Builder().contentEncoding("gzip").build(),
+                json(4096));
+
+        List<StubConnectionFactory.Published> published = broker.published();
+        assertNull(published.get(0).props.getContentEncoding());
+        assertEquals(DeflateCodec.CONTENT_ENCODING, published.get(1).props.getContentEncoding());
+        assertEquals("application/json", published.get(1).props.getContentType());
+        assertTrue(published.get(1).body.length < 1024);
+        assertSame(random, published.get(2).body);
+        assertEquals("gzip", published.get(3).props.getContentEncoding());
+        assertEquals(1, stage.getCompressedCount());
+        assertEquals(1, stage.getIncompressibleCount());
+        assertTrue(stage.getCompressionRatio() < 0.25);
+    }
+
+    @Test
+    public void consumerGetsOriginalBodies() throws Exception {
+        BatchingPublisher publisher = new BatchingPublisher(haClient, "events", JSON);
+        for (int i = 0; i < 100; i++)
+            publisher.publish("events", "key", ("{\"event\": " + i + ", \"padding\": \"" + new String(json(50)) + "\"}").getBytes());
+        publisher.close();
+        haClient.publish("events", "key", JSON, json(2000));
+
+        final List<String> received = new ArrayList<String>();
+        com.rabbitmq.client.Consumer consumer = stage.decompressing(BatchCodec.unbatching(new DefaultConsumer(null) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                assertNull(properties.getContentEncoding());
+                assertEquals("application/json", properties.getContentType());
+                received.add(new String(body));
+            }
+        }));
+        long tag = 0;
+        for (StubConnectionFactory.Published published : broker.published())
+            consumer.handleDelivery("tag", new Envelope(++tag, false, published.exchange, published.routingKey),
+                    published.props, published.body);
+
+        assertEquals(2, stage.getCompressedCount());
+        assertEquals(2, stage.getDecompressedCount());
+        assertEquals(101, received.size());
+        assertTrue(received.get(99).startsWith("{\"event\": 99,"));
+        assertEquals(new String(json(2000)), received.get(100));
+    }
+
+    private static byte[] json(int size) {
+        StringBuilder json = new StringBuilder(size);
+        for (int i = 0; json.length() < size; i++)
+            json.append("{\"id\": ").append(i).append(", \"type\": \"order-created\"}, ");
+        return json.substring(0, size).getBytes();
+    }
+}
@@ -0,0 +1,102 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConfirmingPublisherTest {
+
+    private final Address address = new Address("localhost");
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+    private ConfirmingPublisher publisher;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        broker.setRecordPublishes(true);
+        haClient = new RabbitHAClient(new Address[]{address}, broker);
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{address}, 10, 20));
+        publisher = new ConfirmingPublisher(haClient, "confirming");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        publisher.close();
+        haClient.shutdown();
+    }
+
+    @Test
+    public void acksCompleteFutures() throws Exception {
+        List<Future<Void>> futures = publish(3);
+        assertEquals(3, publisher.getUnconfirmedCount());
+
+        broker.ack(2, true);
+        assertTrue(futures.get(0).isDone());
+        assertTrue(futures.get(1).isDone());
+        assertFalse(futures.get(2).isDone());
+
+        broker.ack(3, false);
+        futures.get(2).get(1, TimeUnit.SECONDS);
+        assertEquals(0, publisher.getUnconfirmedCount());
+    }
+
+    @Test
+    public void nackFailsOnlyTheNackedMessage() throws Exception {
+        List<Future<Void>> futures = publish(2);
+
+        broker.nack(1, false);
+        try {
+            futures.get(0).get(1, TimeUnit.SECONDS);
+            fail("nacked message confirmed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(futures.get(1).isDone());
+
+        broker.ack(2, false);
+        futures.get(1).get(1, TimeUnit.SECONDS);
+        assertEquals(0, publisher.getUnconfirmedCount());
+    }
+
+    @Test
+    public void republishesUnconfirmedAcrossKilledConnection() throws Exception {
+        List<Future<Void>> futures = publish(3);
+        broker.ack(1, false);
+
+        broker.killConnections();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.published().size() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        List<StubConnectionFactory.Published> published = broker.published();
+        assertEquals(5, published.size());
+        assertEquals("m1", published.get(3).routingKey);
+        assertEquals("m2", published.get(4).routingKey);
+        assertEquals(2, broker.lastPublishSeqNo());
+        assertFalse(futures.get(1).isDone());
+        assertFalse(futures.get(2).isDone());
+
+        broker.ack(2, true);
+        futures.get(1).get(1, TimeUnit.SECONDS);
+        futures.get(2).get(1, TimeUnit.SECONDS);
+        assertEquals(0, publisher.getUnconfirmedCount());
+    }
+
+    private List<Future<Void>> publish(int messages) throws InterruptedException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < messages; i++)
+            futures.add(publisher.publish("events", "m" + i, null, new byte[1]));
+        return futures;
+    }
+}
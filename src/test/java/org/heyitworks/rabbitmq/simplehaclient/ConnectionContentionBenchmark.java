@@ -0,0 +1,94 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.io.IOException;
+
+/**
+ * multi-threaded contention benchmark of the connection lookup every operation goes through: a synchronized getter
+ * (how both clients used to do it) against the volatile read of {@link ConnectionHolder}, then the whole
+ * doInRabbit path of both clients with a no-op operation.
+ * <p/>
+ * User: maciekr
+ */
+public class ConnectionContentionBenchmark {
+
+    private static final Address[] ADDRESSES = {new Address("localhost")};
+
+    public static void main(String[] args) throws Exception {
+        int calls = Integer.getInteger("benchmark.calls", 10000000);
+        int[] threadCounts = {1, 4, 16};
+
+        for (int threads : threadCounts) {
+            final SynchronizedConnectionGetter synchronizedGetter = new SynchronizedConnectionGetter(new StubConnectionFactory(0));
+            ChannelPoolBenchmark.report("synchronized x" + threads, ChannelPoolBenchmark.run(threads, calls, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronizedGetter.getConnection();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }), calls);
+
+            final ConnectionHolder holder = new ConnectionHolder(new StubConnectionFactory(0), ADDRESSES,
+                    new ConnectionHolder.ConnectionListener() {
+                        @Override
+                        public void connected(Connection connection, long generation) {
+                        }
+                    });
+            ChannelPoolBenchmark.report("holder x" + threads, ChannelPoolBenchmark.run(threads, calls, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        holder.get(0);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }), calls);
+        }
+
+        for (int threads : threadCounts) {
+            final HAClient haClient = new HAClient(ADDRESSES, new StubConnectionFactory(0));
+            final HAClient.RabbitOperation noop = new HAClient.RabbitOperation() {
+                @Override
+                public void execute(Connection connection) throws IOException {
+                }
+
+                @Override
+                public String operationId() {
+                    return "NOOP";
+                }
+            };
+            ChannelPoolBenchmark.report("HAClient x" + threads, ChannelPoolBenchmark.run(threads, calls, new Runnable() {
+                @Override
+                public void run() {
+                    haClient.doInRabbit(noop);
+                }
+            }), calls);
+            haClient.shutdown();
+        }
+    }
+
+    /**
+     * the pre-holder lookup, kept here as the baseline
+     */
+    private static class SynchronizedConnectionGetter {
+        private final ConnectionFactory connectionFactory;
+        private Connection connection;
+
+        SynchronizedConnectionGetter(ConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+        }
+
+        synchronized Connection getConnection() throws IOException {
+            if (connection == null || !connection.isOpen())
+                connection = connectionFactory.newConnection(ADDRESSES);
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHolderTest {
+
+    private final StubConnectionFactory factory = new StubConnectionFactory(0);
+
+    private ConnectionHolder holder(ConnectionHolder.ConnectionListener listener) {
+        return new ConnectionHolder(factory, new Address[]{new Address("localhost")}, listener);
+    }
+
+    private static final ConnectionHolder.ConnectionListener NOOP = new ConnectionHolder.ConnectionListener() {
+        @Override
+        public void connected(Connection connection, long generation) {
+        }
+    };
+
+    @Test
+    public void reusesOpenConnection() throws Exception {
+        ConnectionHolder holder = holder(NOOP);
+
+        ConnectionHolder.Generation first = holder.get(0);
+        ConnectionHolder.Generation second = holder.get(0);
+
+        assertSame(first.connection, second.connection);
+        assertEquals(1, first.number);
+    }
+
+    @Test
+    public void replacesOnlyTheFailedGeneration() throws Exception {
+        ConnectionHolder holder = holder(NOOP);
+        ConnectionHolder.Generation failed = holder.get(0);
+
+        ConnectionHolder.Generation replaced = holder.replace(failed.number, 0);
+        ConnectionHolder.Generation again = holder.replace(failed.number, 0);
+
+        assertEquals(2, replaced.number);
+        assertSame(replaced.connection, again.connection);
+        assertFalse(failed.connection.isOpen());
+    }
+
+    @Test
+    public void reconnectsAfterConnectionDies() throws Exception {
+        ConnectionHolder holder = holder(NOOP);
+        ConnectionHolder.Generation first = holder.get(0);
+
+        factory.killConnections();
+
+        assertEquals(first.number + 1, holder.get(0).number);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsFastWhileAnotherThreadConnects() throws Throwable {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConnectionHolder holder = holder(new ConnectionHolder.ConnectionListener() {
+            @Override
+            public void connected(Connection connection, long generation) {
+                connecting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        Thread connector = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    holder.get(0);
+                } catch (IOException e) {
+                }
+            }
+        };
+        connector.start();
+        connecting.await();
+        try {
+            holder.get(0);
+        } finally {
+            release.countDown();
+            connector.join();
+        }
+    }
+
+    @Test
+    public void failsOverToNextAddressAndPrefersItAfterwards() throws Exception {
+        Address primary = new Address("localhost", 5672);
+        Address secondary = new Address("localhost", 5673);
+        ConnectionHolder holder = new ConnectionHolder(factory, new Address[]{primary, secondary}, NOOP);
+        assertEquals(5672, holder.get(0).connection.getPort());
+
+        factory.setAddressDown(primary, true);
+        factory.killConnections();
+        ConnectionHolder.Generation failedOver = holder.get(0);
+        assertEquals(5673, failedOver.connection.getPort());
+        assertEquals(secondary, failedOver.address);
+
+        factory.setAddressDown(primary, false);
+        holder.replace(failedOver.number, 0);
+        assertEquals(5673, holder.current().connection.getPort());
+    }
+
+    @Test
+    public void promotesStandbyAndOpensANewOne() throws Exception {
+        Address primary = new Address("localhost", 5672);
+        Address secondary = new Address("localhost", 5673);
+        ConnectionHolder holder = new ConnectionHolder(factory, new Address[]{primary, secondary}, NOOP);
+        holder.enableStandby();
+        ConnectionHolder.Generation first = holder.get(0);
+        ConnectionHolder.Generation standby = awaitStandby(holder, secondary);
+
+        factory.killConnections(primary);
+        ConnectionHolder.Generation promoted = holder.replace(first.number, 0);
+
+        assertSame(standby.connection, promoted.connection);
+        assertEquals(first.number + 1, promoted.number);
+        assertEquals(primary, awaitStandby(holder, primary).address);
+        holder.close();
+        assertNull(holder.standby());
+    }
+
+    private static ConnectionHolder.Generation awaitStandby(ConnectionHolder holder, Address address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            ConnectionHolder.Generation standby = holder.standby();
+            if (standby != null && standby.address.equals(address))
+                return standby;
+            Thread.sleep(5);
+        }
+        throw new AssertionError("No standby connection to " + address);
+    }
+}
@@ -0,0 +1,152 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class DispatchingConsumerTest {
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+    private DispatchingConsumer consumer;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (consumer != null)
+            consumer.close();
+        haClient.shutdown();
+    }
+
+    @Test
+    public void keepsOrderPerKeyAndBatchesAcks() throws Exception {
+        final Map<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+        consumer = new DispatchingConsumer(haClient, "orders", 1000, 4, DispatchingConsumer.BY_ROUTING_KEY,
+                new DispatchingConsumer.Handler() {
+                    @Override
+                    public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                        List<Integer> sequence = handled.get(envelope.getRoutingKey());
+                        if (sequence == null) {
+                            handled.putIfAbsent(envelope.getRoutingKey(), Collections.synchronizedList(new ArrayList<Integer>()));
+                            sequence = handled.get(envelope.getRoutingKey());
+                        }
+                        sequence.add(Integer.parseInt(new String(body)));
+                    }
+                }, 16);
+
+        int messages = 1000;
+        for (int i = 0; i < messages; i++)
+            broker.deliver("key-" + i % 10, null, String.valueOf(i).getBytes());
+        awaitAcked(messages);
+
+        assertEquals(messages, consumer.getHandledCount());
+        assertEquals(10, handled.size());
+        for (List<Integer> sequence : handled.values())
+            for (int i = 1; i < sequence.size(); i++)
+                assertTrue(sequence.get(i - 1) < sequence.get(i));
+        assertTrue("sent " + broker.acks() + " acks", broker.acks() <= messages / 8);
+        assertTrue(broker.consumingChannel().isOpen());
+    }
+
+    @Test
+    public void rejectsDeliveriesOfFailingHandler() throws Exception {
+        consumer = new DispatchingConsumer(haClient, "orders", 100, 2, DispatchingConsumer.BY_ROUTING_KEY,
+                new DispatchingConsumer.Handler() {
+                    @Override
+                    public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                        if (envelope.getDeliveryTag() % 5 == 0)
+                            throw new IllegalStateException("can't handle " + envelope.getDeliveryTag());
+                    }
+                });
+
+        for (int i = 0; i < 20; i++)
+            broker.deliver("key-" + i % 3, null, new byte[1]);
+        awaitAcked(20);
+
+        assertEquals(16, consumer.getHandledCount());
+        assertEquals(4, consumer.getFailedCount());
+        assertTrue(broker.consumingChannel().isOpen());
+    }
+
+    @Test
+    public void neverEndsAnAckOnARejectedDelivery() throws Exception {
+        consumer = new DispatchingConsumer(haClient, "orders", 100, 1, DispatchingConsumer.BY_ROUTING_KEY,
+                new DispatchingConsumer.Handler() {
+                    @Override
+                    public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                        if (envelope.getDeliveryTag() >= 3)
+                            throw new IllegalStateException("can't handle " + envelope.getDeliveryTag());
+                    }
+                }, 1);
+        Channel channel = broker.consumingChannel();
+
+        for (int i = 0; i < 4; i++)
+            broker.deliver("key", null, new byte[1]);
+        awaitAcked(4);
+        broker.deliver("key", null, new byte[1]);
+        awaitAcked(5);
+
+        assertEquals(2, consumer.getHandledCount());
+        assertEquals(3, consumer.getFailedCount());
+        assertSame(channel, broker.consumingChannel());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void dropsDeliveriesOfLostChannel() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handling = new CountDownLatch(1);
+        consumer = new DispatchingConsumer(haClient, "orders", 100, 1, DispatchingConsumer.BY_ROUTING_KEY,
+                new DispatchingConsumer.Handler() {
+                    @Override
+                    public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                        handling.countDown();
+                        release.await();
+                    }
+                });
+        Channel lost = broker.consumingChannel();
+        for (int i = 0; i < 5; i++)
+            broker.deliver("key", null, new byte[1]);
+        handling.await();
+
+        broker.killConnections();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.consumingChannel() == lost && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertNotSame(lost, broker.consumingChannel());
+        release.countDown();
+
+        for (int i = 0; i < 3; i++)
+            broker.deliver("key", null, new byte[1]);
+        awaitAcked(3);
+
+        assertEquals(4, consumer.getDroppedCount());
+        assertEquals(4, consumer.getHandledCount());
+        assertTrue(broker.consumingChannel().isOpen());
+    }
+
+    private void awaitAcked(long tag) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.ackedUpTo() < tag && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(tag, broker.ackedUpTo());
+    }
+}
@@ -0,0 +1,134 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void dropsRepeatedMessageIds() {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 1000, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 1000; i++)
+            assertFalse(filter.isDuplicate(withId("message-" + i), new byte[1]));
+        for (int i = 0; i < 1000; i++)
+            assertTrue(filter.isDuplicate(withId("message-" + i), new byte[1]));
+
+        assertEquals(2000, filter.getCheckCount());
+        assertEquals(1000, filter.getHitCount());
+        assertEquals(0.5, filter.getHitRate(), 0);
+        assertEquals(1000, filter.size());
+        assertTrue(filter.getFalsePositiveProbability() < 1e-15);
+    }
+
+    @Test
+    public void fallsBackToBodyWithoutMessageId() {
+        DuplicateFilter byId = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 10, 1, TimeUnit.MINUTES);
+        DuplicateFilter byIdOrBody = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID_OR_BODY, 10, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 2; i++) {
+            assertFalse(byId.isDuplicate(null, "payload".getBytes()));
+            assertEquals(i == 1, byIdOrBody.isDuplicate(null, "payload".getBytes()));
+        }
+        assertFalse(byIdOrBody.isDuplicate(null, "other payload".getBytes()));
+        assertEquals(2, byId.getUnkeyedCount());
+    }
+
+    @Test
+    public void forgetsAfterTwoGenerations() {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 100, 1, TimeUnit.SECONDS);
+        long now = System.nanoTime();
+        long fingerprint = DuplicateFilter.fingerprint("message");
+        filter.add(fingerprint, now);
+
+        assertTrue(filter.contains(fingerprint, now + SECOND + 1));
+        assertFalse(filter.contains(fingerprint, now + 2 * SECOND + 2));
+    }
+
+    @Test
+    public void memoryStaysFixedUnderLoad() {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 1000, 1, TimeUnit.HOURS);
+        long memory = filter.getMemoryBytes();
+        assertEquals(2 * 2048 * 8, memory);
+
+        for (int i = 0; i < 100000; i++)
+            filter.isDuplicate(withId("message-" + i), null);
+
+        assertEquals(memory, filter.getMemoryBytes());
+        assertTrue(filter.size() <= 2000);
+        assertEquals(99, filter.getRotationCount());
+        assertTrue("the last capacity messages are always remembered", filter.isDuplicate(withId("message-99000"), null));
+        assertFalse(filter.isDuplicate(withId("message-0"), null));
+    }
+
+    @Test
+    public void boundsCapacityToTablesAByteBufferCanHold() {
+        assertTrue(DuplicateFilter.tableBytes(DuplicateFilter.MAX_CAPACITY) <= Integer.MAX_VALUE);
+        assertTrue(DuplicateFilter.tableBytes(Integer.MAX_VALUE) > Integer.MAX_VALUE);
+        assertEquals(2048 * 8, DuplicateFilter.tableBytes(1000));
+        try {
+            new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, DuplicateFilter.MAX_CAPACITY + 1, 1, TimeUnit.MINUTES);
+            fail("capacity beyond the maximum accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void filteredConsumerSeesEachMessageOnce() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 100, 1, TimeUnit.MINUTES);
+        final AtomicInteger delivered = new AtomicInteger();
+        com.rabbitmq.client.Consumer consumer = filter.filter(new DefaultConsumer(null) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                delivered.incrementAndGet();
+            }
+        });
+
+        for (int i = 0; i < 3; i++)
+            consumer.handleDelivery("tag", new Envelope(i + 1, i > 0, "", "key"), withId("message"), new byte[1]);
+
+        assertEquals(1, delivered.get());
+    }
+
+    @Test
+    public void dispatchingConsumerAcksRedeliveredMessagesWithoutHandling() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        final AtomicInteger handled = new AtomicInteger();
+        DispatchingConsumer consumer = new DispatchingConsumer(haClient, "orders", 100, 2,
+                DispatchingConsumer.BY_ROUTING_KEY, new DispatchingConsumer.Handler() {
+            @Override
+            public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                handled.incrementAndGet();
+            }
+        });
+        DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Key.MESSAGE_ID, 100, 1, TimeUnit.MINUTES);
+        consumer.setDuplicateFilter(filter);
+
+        for (int i = 0; i < 10; i++)
+            broker.deliver("key", withId("message-" + i % 5), new byte[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.ackedUpTo() < 10 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(10, broker.ackedUpTo());
+        assertEquals(5, handled.get());
+        assertEquals(5, filter.getHitCount());
+        consumer.close();
+        haClient.shutdown();
+    }
+
+    private static AMQP.BasicProperties withId(String messageId) {
+        return new AMQP.BasicProperties.Builder().messageId(messageId).build();
+    }
+}
@@ -0,0 +1,87 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * kills the node a {@link RabbitHAClient} is connected to while a thread publishes non-stop, with and without a
+ * standby connection, and reports the gap between the kill and the first publish reaching the surviving node, as
+ * well as how long it took to re-attach a registered callback. The stub broker makes every
+ * connect cost benchmark.connectMillis, standing in for TCP, TLS and AMQP handshakes.
+ * <p/>
+ * User: maciekr
+ */
+public class FailoverGapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long connectMillis = Long.getLong("benchmark.connectMillis", 250);
+        int kills = Integer.getInteger("benchmark.kills", 5);
+
+        for (boolean standby : new boolean[]{false, true}) {
+            long totalGap = 0;
+            long totalReattach = 0;
+            for (int i = 0; i < kills; i++) {
+                long[] gaps = failover(standby, connectMillis);
+                totalGap += gaps[0];
+                totalReattach += gaps[1];
+            }
+            System.out.printf("standby %-5s: publish gap %6.1f ms, callback re-attached after %6.1f ms (avg of %d kills)%n",
+                    standby, totalGap / 1e6 / kills, totalReattach / 1e6 / kills, kills);
+        }
+    }
+
+    private static long[] failover(boolean standby, long connectMillis) throws Exception {
+        Address primary = new Address("localhost", 5672);
+        Address secondary = new Address("localhost", 5673);
+        StubConnectionFactory broker = new StubConnectionFactory(100000);
+        broker.setAddressLatency(primary, connectMillis * 1000000);
+        broker.setAddressLatency(secondary, connectMillis * 1000000);
+        final RabbitHAClient haClient = new RabbitHAClient(new Address[]{primary, secondary}, broker);
+        if (standby)
+            haClient.enableStandby();
+
+        final AtomicLong lastCallback = new AtomicLong();
+        haClient.doInRabbit(new RabbitHAClient.RabbitOperation() {
+            @Override
+            public void execute(Connection connection) throws IOException {
+                connection.createChannel();
+                lastCallback.set(System.nanoTime());
+            }
+
+            @Override
+            public String operationId() {
+                return "GAP-CONSUMER";
+            }
+        }, true);
+
+        final byte[] body = new byte[100];
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                while (running.get())
+                    haClient.publish("", "benchmark", null, body);
+            }
+        };
+        publisher.start();
+        Thread.sleep(connectMillis * 2 + 200); // let the standby come up
+
+        long killed = System.nanoTime();
+        broker.killConnections(primary);
+        while (broker.publishedCount(secondary) == 0)
+            Thread.yield();
+        long gap = System.nanoTime() - killed;
+        while (lastCallback.get() < killed)
+            Thread.yield();
+        long reattach = lastCallback.get() - killed;
+
+        running.set(false);
+        publisher.join();
+        haClient.shutdown();
+        return new long[]{gap, reattach};
+    }
+}
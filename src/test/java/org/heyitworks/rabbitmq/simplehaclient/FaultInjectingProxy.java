@@ -0,0 +1,434 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy for load and chaos tests: a single selector thread forwards any number of connections through pooled
+ * direct buffers, so the proxy doesn't become the bottleneck, and can inject faults into the traffic:
+ * <ul>
+ * <li>latency, added to every chunk in both directions</li>
+ * <li>a bandwidth cap per connection and direction</li>
+ * <li>black-holing, which silently stops forwarding while keeping the connections open</li>
+ * <li>killing connections with a TCP RST, and refusing new ones</li>
+ * </ul>
+ * Fault settings can be changed at any time and apply to established connections straight away.
+ * <p/>
+ * User: maciekr
+ */
+public class FaultInjectingProxy implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FaultInjectingProxy.class);
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 16;
+
+    private final InetSocketAddress target;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    private final List<ProxiedConnection> connections = new ArrayList<ProxiedConnection>();
+
+    private volatile long latencyNanos;
+    private volatile long bytesPerSecond;
+    private volatile boolean blackHole;
+    private volatile boolean refusing;
+    private volatile boolean running = true;
+
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+
+    public FaultInjectingProxy(int localPort, String targetHost, int targetPort) throws IOException {
+        this.target = new InetSocketAddress(targetHost, targetPort);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress("localhost", localPort));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "FaultInjectingProxy-" + getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getLocalPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        selector.wakeup();
+    }
+
+    /**
+     * caps each direction of each connection, 0 for no cap
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        selector.wakeup();
+    }
+
+    /**
+     * stops forwarding anything, in either direction, without closing connections: peers see a silent stall
+     */
+    public void setBlackHole(boolean blackHole) {
+        this.blackHole = blackHole;
+        selector.wakeup();
+    }
+
+    /**
+     * resets new connections straight after accepting them
+     */
+    public void setRefusing(boolean refusing) {
+        this.refusing = refusing;
+    }
+
+    /**
+     * resets every open connection on both sides, returning once they are gone
+     */
+    public void killConnections() throws InterruptedException {
+        final CountDownLatch killed = new CountDownLatch(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ProxiedConnection connection : new ArrayList<ProxiedConnection>(connections))
+                    connection.close(true);
+                killed.countDown();
+            }
+        });
+        killed.await();
+    }
+
+    public long getBytesForwarded() {
+        return bytesForwarded.get();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public int getConnectionCount() throws InterruptedException {
+        final int[] count = new int[1];
+        final CountDownLatch counted = new CountDownLatch(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = connections.size();
+                counted.countDown();
+            }
+        });
+        counted.await();
+        return count[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(Runnable command) {
+        commands.add(command);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                long wakeUp = Long.MAX_VALUE;
+                for (ProxiedConnection connection : new ArrayList<ProxiedConnection>(connections)) {
+                    wakeUp = Math.min(wakeUp, connection.pump(now));
+                    connection.updateInterest();
+                }
+                if (wakeUp == Long.MAX_VALUE)
+                    selector.select();
+                else if (wakeUp <= now)
+                    selector.selectNow();
+                else
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUp - now)));
+
+                Runnable command;
+                while ((command = commands.poll()) != null)
+                    command.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        ((ProxiedConnection) key.attachment()).ready(key);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("FaultInjectingProxy stopped", e);
+        } finally {
+            for (ProxiedConnection connection : new ArrayList<ProxiedConnection>(connections))
+                connection.close(false);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null)
+            return;
+        accepted.incrementAndGet();
+        if (refusing) {
+            reset(client);
+            return;
+        }
+        try {
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SocketChannel upstream = SocketChannel.open();
+            upstream.configureBlocking(false);
+            upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            upstream.connect(target);
+            connections.add(new ProxiedConnection(client, upstream));
+        } catch (IOException e) {
+            reset(client);
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(CHUNK_BYTES);
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        bufferPool.push(buffer);
+    }
+
+    private static void reset(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException e) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final long due;
+
+        Chunk(ByteBuffer buffer, long due) {
+            this.buffer = buffer;
+            this.due = due;
+        }
+    }
+
+    /**
+     * one direction of a proxied connection: chunks read from the source wait in flight until they are due and the
+     * bandwidth allows, then get written to the destination
+     */
+    private final class Direction {
+        final SocketChannel from;
+        final SocketChannel to;
+        final ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+        boolean sourceClosed;
+        boolean destinationShutdown;
+        boolean writeBlocked;
+        double tokens;
+        long lastRefill = System.nanoTime();
+
+        Direction(SocketChannel from, SocketChannel to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean wantsRead() {
+            return !blackHole && !sourceClosed && inFlight.size() < MAX_CHUNKS_IN_FLIGHT;
+        }
+
+        void read(long now) throws IOException {
+            while (wantsRead()) {
+                ByteBuffer buffer = acquire();
+                int read = from.read(buffer);
+                if (read <= 0) {
+                    release(buffer);
+                    if (read < 0)
+                        sourceClosed = true;
+                    return;
+                }
+                buffer.flip();
+                inFlight.add(new Chunk(buffer, now + latencyNanos));
+            }
+        }
+
+        /**
+         * @return when this direction needs attention again, Long.MAX_VALUE when it's waiting for the selector
+         */
+        long write(long now, boolean connected) throws IOException {
+            writeBlocked = false;
+            if (!connected || blackHole)
+                return Long.MAX_VALUE;
+            Chunk chunk;
+            while ((chunk = inFlight.peek()) != null) {
+                if (chunk.due > now)
+                    return chunk.due;
+                int allowance = allowance(now);
+                if (allowance == 0)
+                    return now + TimeUnit.MILLISECONDS.toNanos(1);
+                ByteBuffer buffer = chunk.buffer;
+                int limit = buffer.limit();
+                boolean capped = allowance < buffer.remaining();
+                if (capped)
+                    buffer.limit(buffer.position() + allowance);
+                int written = to.write(buffer);
+                buffer.limit(limit);
+                tokens -= written;
+                bytesForwarded.addAndGet(written);
+                if (buffer.hasRemaining()) {
+                    if (capped && written == allowance)
+                        return now + TimeUnit.MILLISECONDS.toNanos(1);
+                    writeBlocked = true;
+                    return Long.MAX_VALUE;
+                }
+                inFlight.poll();
+                release(buffer);
+            }
+            if (sourceClosed && !destinationShutdown) {
+                destinationShutdown = true;
+                to.shutdownOutput();
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private int allowance(long now) {
+            long rate = bytesPerSecond;
+            if (rate <= 0)
+                return Integer.MAX_VALUE;
+            tokens = Math.min(Math.max(rate / 20d, CHUNK_BYTES / 16), tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            return tokens < 1 ? 0 : (int) tokens;
+        }
+
+        boolean finished() {
+            return sourceClosed && inFlight.isEmpty();
+        }
+
+        void releaseAll() {
+            Chunk chunk;
+            while ((chunk = inFlight.poll()) != null)
+                release(chunk.buffer);
+        }
+    }
+
+    private final class ProxiedConnection {
+        final SocketChannel client;
+        final SocketChannel upstream;
+        final SelectionKey clientKey;
+        final SelectionKey upstreamKey;
+        final Direction up;
+        final Direction down;
+        boolean connected;
+
+        ProxiedConnection(SocketChannel client, SocketChannel upstream) throws IOException {
+            this.client = client;
+            this.upstream = upstream;
+            this.up = new Direction(client, upstream);
+            this.down = new Direction(upstream, client);
+            this.clientKey = client.register(selector, 0, this);
+            this.upstreamKey = upstream.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable() && upstream.finishConnect())
+                    connected = true;
+                long now = System.nanoTime();
+                if (key.isReadable())
+                    (key == clientKey ? up : down).read(now);
+                if (key.isWritable())
+                    (key == clientKey ? down : up).write(now, connected);
+            } catch (IOException e) {
+                close(false);
+            }
+        }
+
+        long pump(long now) {
+            try {
+                long wakeUp = Math.min(up.write(now, connected), down.write(now, connected));
+                if (up.finished() && down.finished())
+                    close(false);
+                return wakeUp;
+            } catch (IOException e) {
+                close(false);
+                return Long.MAX_VALUE;
+            }
+        }
+
+        void updateInterest() {
+            if (!clientKey.isValid() || !upstreamKey.isValid())
+                return;
+            clientKey.interestOps((up.wantsRead() ? SelectionKey.OP_READ : 0)
+                    | (down.writeBlocked ? SelectionKey.OP_WRITE : 0));
+            upstreamKey.interestOps(!connected ? SelectionKey.OP_CONNECT
+                    : (down.wantsRead() ? SelectionKey.OP_READ : 0) | (up.writeBlocked ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close(boolean reset) {
+            if (!connections.remove(this))
+                return;
+            if (reset) {
+                FaultInjectingProxy.reset(client);
+                FaultInjectingProxy.reset(upstream);
+            } else {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                }
+                try {
+                    upstream.close();
+                } catch (IOException e) {
+                }
+            }
+            up.releaseAll();
+            down.releaseAll();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FaultInjectingProxyTest {
+
+    private ServerSocket echoServer;
+    private FaultInjectingProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        echoServer = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = echoServer.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                echo(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        proxy = new FaultInjectingProxy(0, "localhost", echoServer.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+        echoServer.close();
+    }
+
+    @Test
+    public void forwardsManyConnectionsConcurrently() throws Exception {
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < 50; i++)
+            sockets.add(connect());
+        byte[] payload = new byte[256 * 1024];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        for (Socket socket : sockets)
+            assertArrayEquals(payload, roundTrip(socket, payload));
+
+        assertEquals(50, proxy.getConnectionCount());
+        assertEquals(2L * 50 * payload.length, proxy.getBytesForwarded());
+        for (Socket socket : sockets)
+            socket.close();
+    }
+
+    @Test
+    public void addsLatencyInBothDirections() throws Exception {
+        Socket socket = connect();
+        roundTrip(socket, new byte[1]);
+        proxy.setLatency(50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        roundTrip(socket, new byte[1]);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        socket.close();
+    }
+
+    @Test
+    public void capsBandwidth() throws Exception {
+        Socket socket = connect();
+        proxy.setBandwidth(1024 * 1024);
+
+        long start = System.nanoTime();
+        roundTrip(socket, new byte[512 * 1024]);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+        socket.close();
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void blackHoleStallsSilently() throws Exception {
+        Socket socket = connect();
+        roundTrip(socket, new byte[1]);
+        proxy.setBlackHole(true);
+        socket.setSoTimeout(200);
+
+        roundTrip(socket, new byte[1]);
+    }
+
+    @Test
+    public void blackHoleKeepsDataUntilLifted() throws Exception {
+        Socket socket = connect();
+        proxy.setBlackHole(true);
+        socket.getOutputStream().write(42);
+        Thread.sleep(100);
+        assertEquals(0, socket.getInputStream().available());
+
+        proxy.setBlackHole(false);
+
+        assertEquals(42, socket.getInputStream().read());
+        socket.close();
+    }
+
+    @Test
+    public void killResetsConnections() throws Exception {
+        Socket socket = connect();
+        roundTrip(socket, new byte[1]);
+
+        proxy.killConnections();
+
+        try {
+            int read = socket.getInputStream().read();
+            assertEquals(-1, read);
+        } catch (SocketException e) {
+            assertTrue(e.getMessage(), e.getMessage().toLowerCase().contains("reset"));
+        }
+        assertEquals(0, proxy.getConnectionCount());
+    }
+
+    @Test
+    public void refusesNewConnections() throws Exception {
+        proxy.setRefusing(true);
+        Socket socket = connect();
+        try {
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException e) {
+            // reset
+        }
+        proxy.setRefusing(false);
+        roundTrip(connect(), new byte[1]);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", proxy.getLocalPort());
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static byte[] roundTrip(final Socket socket, final byte[] payload) throws Exception {
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    socket.getOutputStream().write(payload);
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(socket.getInputStream()).readFully(echoed);
+        writer.join();
+        return echoed;
+    }
+
+    private static void echo(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } catch (IOException e) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
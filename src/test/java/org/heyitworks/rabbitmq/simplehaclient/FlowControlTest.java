@@ -0,0 +1,180 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final byte[] BODY = new byte[100];
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+    private PublishRoute route;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        haClient.getFlowControl().setBlockedAfter(50);
+        route = new PublishRoute("events", "key", null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.setPublishBlocked(false);
+        haClient.shutdown();
+    }
+
+    @Test
+    public void stuckPublishIsBlockedOnlyWhileTheBrokerIsHeardFrom() {
+        FlowControl flowControl = new FlowControl();
+        final long[] lastInbound = {Long.MIN_VALUE};
+        flowControl.setInbound(new StallWatchdog.ProgressProbe() {
+            @Override
+            public long lastProgressNanos() {
+                return lastInbound[0];
+            }
+        }, 3000);
+        long now = System.nanoTime();
+        flowControl.publishing();
+
+        assertEquals(FlowControl.State.RUNNING, flowControl.state(now + 2 * SECOND));
+        lastInbound[0] = now + SECOND;
+        assertEquals(FlowControl.State.BLOCKED, flowControl.state(now + 2 * SECOND));
+        assertEquals(FlowControl.State.RUNNING, flowControl.state(now + 5 * SECOND));
+        assertEquals(FlowControl.State.BLOCKED, flowControl.state(now + 3 * SECOND));
+        assertEquals(2, flowControl.getBlockedCount());
+
+        flowControl.published();
+        assertEquals(FlowControl.State.RUNNING, flowControl.getState());
+    }
+
+    @Test
+    public void refusesPublishesWhileBlocked() throws Exception {
+        haClient.publish(route, BODY);
+        broker.setPublishBlocked(true);
+        Thread stuck = publishInBackground();
+        FlowControl flowControl = haClient.getFlowControl();
+        awaitBlocked(flowControl);
+
+        assertFalse(haClient.tryPublish(route, BODY));
+        assertFalse(haClient.tryPublish("events", "key", null, BODY));
+        assertFalse(haClient.publish(route, BODY, 100, TimeUnit.MILLISECONDS));
+        assertEquals(3, flowControl.getRefusedCount());
+        assertEquals(1, flowControl.getBlockedCount());
+
+        broker.setPublishBlocked(false);
+        stuck.join(5000);
+        assertTrue(haClient.tryPublish(route, BODY));
+        assertEquals(FlowControl.State.RUNNING, flowControl.getState());
+        assertEquals(3, broker.publishedCount());
+        assertEquals(0, haClient.getMetrics().getConnectionLossCount());
+    }
+
+    @Test
+    public void refusesPublishesWhileFlowStopped() throws Exception {
+        haClient.publish(route, BODY);
+        broker.flow(false);
+        assertEquals(FlowControl.State.FLOW_STOPPED, haClient.getFlowControl().getState());
+        assertFalse(haClient.tryPublish(route, BODY));
+
+        broker.flow(true);
+        assertTrue(haClient.publish(route, BODY, 100, TimeUnit.MILLISECONDS));
+        assertEquals(2, broker.publishedCount());
+        assertEquals(1, haClient.getFlowControl().getFlowStoppedCount());
+    }
+
+    @Test
+    public void discardedFlowStoppedChannelStopsNothing() throws Exception {
+        haClient.publish(route, BODY);
+        broker.flow(false);
+        assertEquals(FlowControl.State.FLOW_STOPPED, haClient.getFlowControl().getState());
+
+        haClient.setChannelPoolSize(4);
+        assertEquals(FlowControl.State.RUNNING, haClient.getFlowControl().getState());
+        assertTrue(haClient.tryPublish(route, BODY));
+        assertEquals(2, broker.publishedCount());
+    }
+
+    @Test
+    public void creditWindowBoundsPublishesInProgress() throws Exception {
+        FlowControl flowControl = haClient.getFlowControl();
+        flowControl.setBlockedAfter(60000);
+        flowControl.setCreditWindow(2);
+        broker.setPublishBlocked(true);
+        Thread first = publishInBackground();
+        Thread second = publishInBackground();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flowControl.getPublishingCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(0, flowControl.getAvailableCredits());
+        assertEquals(FlowControl.State.RUNNING, flowControl.getState());
+        assertFalse(haClient.tryPublish(route, BODY));
+        assertFalse(haClient.publish(route, BODY, 50, TimeUnit.MILLISECONDS));
+
+        broker.setPublishBlocked(false);
+        first.join(5000);
+        second.join(5000);
+        assertEquals(2, flowControl.getAvailableCredits());
+        assertTrue(haClient.tryPublish(route, BODY));
+    }
+
+    @Test
+    public void stalledProbeDoesNotReconnectBlockedConnection() throws Exception {
+        haClient.enableStallDetection(1, 5000);
+        haClient.getFlowControl().setInbound(new StallWatchdog.ProgressProbe() {
+            @Override
+            public long lastProgressNanos() {
+                return System.nanoTime(); // heartbeats keep arriving
+            }
+        }, 5000);
+        haClient.publish(route, BODY);
+        broker.setPublishBlocked(true);
+        Thread stuck = publishInBackground();
+        awaitBlocked(haClient.getFlowControl());
+
+        final long since = System.nanoTime();
+        haClient.watchProgress("publisher", new StallWatchdog.ProgressProbe() {
+            @Override
+            public long lastProgressNanos() {
+                return since;
+            }
+        }, 100);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getStallWatchdog().getStallCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertTrue(haClient.getStallWatchdog().getStallCount() >= 2);
+        assertEquals(0, haClient.getMetrics().getConnectionLossCount());
+        broker.setPublishBlocked(false);
+        stuck.join(5000);
+        assertEquals(2, broker.publishedCount());
+    }
+
+    private static void awaitBlocked(FlowControl flowControl) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flowControl.getState() != FlowControl.State.BLOCKED && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(FlowControl.State.BLOCKED, flowControl.getState());
+    }
+
+    private Thread publishInBackground() {
+        Thread thread = new Thread("Publisher") {
+            @Override
+            public void run() {
+                haClient.publish(route, BODY);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,84 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HAClientMetricsTest {
+
+    @Test
+    public void countsFailuresPerOperation() {
+        HAClientMetrics metrics = new HAClientMetrics();
+
+        metrics.operationFailed("a", new IOException());
+        metrics.operationFailed("a", new IOException());
+        metrics.operationFailed("b", new IOException());
+
+        assertEquals(3, metrics.getOperationFailureCount());
+        assertEquals(Long.valueOf(2), metrics.getOperationFailuresById().get("a"));
+        assertEquals(Long.valueOf(1), metrics.getOperationFailuresById().get("b"));
+    }
+
+    @Test
+    public void exposedOverJmx() throws Exception {
+        HAClientMetrics metrics = new HAClientMetrics();
+        ObjectName name = metrics.registerMBean("metrics-test");
+        try {
+            metrics.operationCompleted("op", 2000000);
+            metrics.pendingOperationsChanged(7);
+            metrics.pendingOperationsChanged(3);
+
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OperationCount"));
+            assertEquals(3, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "PendingOperations"));
+            assertEquals(7, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MaxPendingOperations"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void recordsOperationsAndRecovery() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        final boolean[] fail = {true};
+        RabbitHAClient.ChannelOperation publish = new RabbitHAClient.ChannelOperation() {
+            @Override
+            public void execute(Channel channel) throws IOException {
+                if (fail[0]) {
+                    fail[0] = false;
+                    throw new IOException("first publish fails");
+                }
+                channel.basicPublish("", "metrics", null, new byte[1]);
+            }
+
+            @Override
+            public String operationId() {
+                return "METRICS-PUBLISHER";
+            }
+        };
+
+        haClient.doInRabbit(publish);
+        HAClientMetrics metrics = haClient.getMetrics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getRecoveryCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(1, metrics.getRecoveryCount());
+        assertEquals(1, metrics.getConnectionLossCount());
+        assertEquals(1, metrics.getRecoveryAttemptCount());
+        assertEquals(1, metrics.getOperationCount());
+        assertEquals(1, metrics.getMaxPendingOperations());
+        assertEquals(0, metrics.getPendingOperations());
+        Map<String, Long> failures = metrics.getOperationFailuresById();
+        assertEquals(Long.valueOf(1), failures.get("METRICS-PUBLISHER"));
+        haClient.shutdown();
+    }
+}
@@ -0,0 +1,90 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyAwareReconnectSchedulerTest {
+
+    private final Address far = new Address("localhost", 5001);
+    private final Address near = new Address("localhost", 5002);
+    private final Address middle = new Address("localhost", 5003);
+    private final StubConnectionFactory factory = new StubConnectionFactory(0);
+
+    {
+        factory.setAddressLatency(far, TimeUnit.MILLISECONDS.toNanos(40));
+        factory.setAddressLatency(near, TimeUnit.MILLISECONDS.toNanos(2));
+        factory.setAddressLatency(middle, TimeUnit.MILLISECONDS.toNanos(15));
+    }
+
+    @Test
+    public void probedAddressesAreTriedFastestFirst() {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far, near, middle});
+
+        scheduler.probe(factory);
+
+        assertArrayEquals(new Address[]{near, middle, far}, scheduler.addresses());
+        assertEquals(3, scheduler.getScores().size());
+        assertTrue(scheduler.getScores().get(far) >= 40);
+    }
+
+    @Test
+    public void unmeasuredAddressesComeAfterMeasuredOnes() {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far, near, middle});
+
+        scheduler.connected(middle, TimeUnit.MILLISECONDS.toNanos(15));
+
+        assertArrayEquals(new Address[]{middle, far, near}, scheduler.addresses());
+    }
+
+    @Test
+    public void failedAddressGoesLastDespiteBestScore() {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far, near, middle});
+        scheduler.probe(factory);
+
+        scheduler.failed(near);
+
+        assertArrayEquals(new Address[]{middle, far, near}, scheduler.addresses());
+    }
+
+    @Test
+    public void successfulProbeRanksFailedAddressAgain() {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far, near, middle});
+        scheduler.probe(factory);
+        scheduler.failed(near);
+        assertArrayEquals(new Address[]{middle, far, near}, scheduler.addresses());
+
+        scheduler.probe(factory);
+
+        assertArrayEquals(new Address[]{near, middle, far}, scheduler.addresses());
+        assertTrue(scheduler.getAddressHealth().get(0).isHealthy());
+    }
+
+    @Test
+    public void scoreFollowsMovingAverage() {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far}, 1, 1, 0.5);
+
+        scheduler.connected(far, 10000000);
+        scheduler.connected(far, 20000000);
+
+        assertEquals(15, scheduler.getScores().get(far), 0.001);
+    }
+
+    @Test
+    public void holderConnectsToNearestAddress() throws Exception {
+        LatencyAwareReconnectScheduler scheduler = new LatencyAwareReconnectScheduler(new Address[]{far, near, middle});
+        scheduler.probe(factory);
+        ConnectionHolder holder = new ConnectionHolder(factory, new Address[]{far, near, middle}, new ConnectionHolder.ConnectionListener() {
+            @Override
+            public void connected(Connection connection, long generation) {
+            }
+        });
+        holder.setScheduler(scheduler);
+
+        assertEquals(near, holder.get(0).address);
+    }
+}
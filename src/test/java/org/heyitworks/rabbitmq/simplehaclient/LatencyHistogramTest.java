@@ -0,0 +1,57 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            histogram.record(1000);
+        histogram.record(1000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1023, histogram.getPercentileNanos(50));
+        assertEquals(1023, histogram.getPercentileNanos(99));
+        assertEquals(1000000, histogram.getPercentileNanos(100));
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals((99 * 1000 + 1000000) / 100, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(99));
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentileNanos(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        HAClientMetrics metrics = new HAClientMetrics();
+        for (int i = 0; i < 100000; i++)
+            metrics.operationCompleted("warmup", i);
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++)
+            metrics.operationCompleted("measured", i);
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
@@ -0,0 +1,59 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+
+/**
+ * publishes at full speed through {@link TcpProxy} while the proxy plays a broker outage mid-run, then reports how
+ * many messages the outbox buffered, dropped or rejected and how long the run took to get everything out.
+ * Needs a broker reachable at haRabbitClient.test.targetHost.
+ * <p/>
+ * User: maciekr
+ */
+public class OutboxBenchmark {
+
+    private static String targetHost = System.getProperty("haRabbitClient.test.targetHost", "localhost");
+    private static String vhost = System.getProperty("haRabbitClient.test.vhost", "unittest");
+    private static String user = System.getProperty("haRabbitClient.test.user", "unittester");
+    private static String pass = System.getProperty("haRabbitClient.test.pass", "unittester");
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("benchmark.messages", 200000);
+        int capacity = Integer.getInteger("benchmark.outboxCapacity", 50000);
+        long outageMillis = Long.getLong("benchmark.outageMillis", 3000);
+        PublishOutbox.OverflowPolicy policy = PublishOutbox.OverflowPolicy.valueOf(
+                System.getProperty("benchmark.overflowPolicy", "DROP_OLDEST"));
+
+        TcpProxy.runProxy(targetHost, 5672, 5673);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost", 5673)}, vhost, user, pass, false);
+        haClient.enableOutbox(capacity, policy);
+        byte[] body = new byte[100];
+
+        int killAt = messages / 3;
+        long start = System.nanoTime();
+        long outageStart = 0;
+        int maxBuffered = 0;
+        for (int i = 0; i < messages; i++) {
+            if (i == killAt) {
+                TcpProxy.killBroker();
+                outageStart = System.currentTimeMillis();
+            }
+            if (outageStart > 0 && System.currentTimeMillis() - outageStart > outageMillis) {
+                TcpProxy.restoreBroker();
+                outageStart = 0;
+            }
+            haClient.publish("", "mr-testq", null, body);
+            maxBuffered = Math.max(maxBuffered, haClient.getOutbox().size());
+        }
+        TcpProxy.restoreBroker();
+        while (!haClient.getOutbox().isEmpty())
+            Thread.sleep(10);
+        long elapsed = System.nanoTime() - start;
+
+        PublishOutbox outbox = haClient.getOutbox();
+        System.out.printf("%s: %d msgs in %d ms, max buffered %d, dropped %d, rejected %d%n", policy, messages,
+                elapsed / 1000000, maxBuffered, outbox.getDroppedCount(), outbox.getRejectedCount());
+
+        haClient.shutdown();
+        TcpProxy.shutdownProxy();
+    }
+}
@@ -0,0 +1,77 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutstandingConfirmsTest {
+
+    @Test
+    public void multipleAckRemovesContiguousRangeInOrder() {
+        OutstandingConfirms<String> confirms = new OutstandingConfirms<String>(4);
+        for (long tag = 1; tag <= 5; tag++)
+            confirms.add(tag, "m" + tag);
+
+        List<String> removed = new ArrayList<String>();
+        confirms.removeUpTo(3, removed);
+
+        assertEquals(Arrays.asList("m1", "m2", "m3"), removed);
+        assertEquals(2, confirms.size());
+    }
+
+    @Test
+    public void singleAcksLeaveNoGaps() {
+        OutstandingConfirms<String> confirms = new OutstandingConfirms<String>(4);
+        for (long tag = 1; tag <= 4; tag++)
+            confirms.add(tag, "m" + tag);
+
+        assertEquals("m2", confirms.remove(2));
+        assertNull(confirms.remove(2));
+        assertEquals("m1", confirms.remove(1));
+
+        List<String> removed = new ArrayList<String>();
+        confirms.removeAll(removed);
+        assertEquals(Arrays.asList("m3", "m4"), removed);
+        assertTrue(confirms.isEmpty());
+    }
+
+    @Test
+    public void growsAcrossTheRingBoundary() {
+        OutstandingConfirms<Long> confirms = new OutstandingConfirms<Long>(2);
+        List<Long> removed = new ArrayList<Long>();
+        long tag = 1;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3 + round; i++, tag++)
+                confirms.add(tag, tag);
+            confirms.removeUpTo(tag - 2, removed);
+        }
+        confirms.removeAll(removed);
+
+        assertEquals(tag - 1, removed.size());
+        for (int i = 0; i < removed.size(); i++)
+            assertEquals(Long.valueOf(i + 1), removed.get(i));
+    }
+
+    @Test
+    public void tagOfFailedPublishCanBeReused() {
+        OutstandingConfirms<String> confirms = new OutstandingConfirms<String>(4);
+        confirms.add(1, "m1");
+        confirms.add(2, "m2");
+
+        confirms.remove(2);
+        confirms.add(2, "retry");
+
+        assertEquals("retry", confirms.remove(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTagsOutOfOrder() {
+        OutstandingConfirms<String> confirms = new OutstandingConfirms<String>(4);
+        confirms.add(2, "m2");
+        confirms.add(1, "m1");
+    }
+}
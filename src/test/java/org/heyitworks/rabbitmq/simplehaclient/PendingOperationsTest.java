@@ -0,0 +1,192 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PendingOperationsTest {
+
+    private final Address address = new Address("localhost");
+    private final StubConnectionFactory broker = new StubConnectionFactory(0);
+    private final RabbitHAClient haClient = new RabbitHAClient(new Address[]{address}, broker);
+    private final AtomicInteger recoveries = new AtomicInteger();
+    private final AtomicInteger recoveryAttempts = new AtomicInteger();
+
+    {
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{address}, 10, 20));
+        haClient.addListener(new HAClientListener.Adapter() {
+            @Override
+            public void recoveryAttempted(int attempt, boolean succeeded, long nanos) {
+                recoveryAttempts.incrementAndGet();
+                if (attempt == 1)
+                    recoveries.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        haClient.shutdown();
+    }
+
+    @Test
+    public void concurrentFailuresRecoverOnce() throws Exception {
+        final int threads = 8;
+        final CyclicBarrier failTogether = new CyclicBarrier(threads);
+        final List<CountingOperation> operations = new ArrayList<CountingOperation>();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final CountingOperation operation = new CountingOperation(1) {
+                @Override
+                public void execute(Connection connection) throws IOException {
+                    if (executions.get() == 0) {
+                        try {
+                            failTogether.await(5, TimeUnit.SECONDS);
+                        } catch (Exception e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    super.execute(connection);
+                }
+            };
+            operations.add(operation);
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    haClient.doInRabbit(operation);
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers)
+            caller.join(5000);
+        awaitDrained();
+
+        assertEquals(2, broker.connectionsOpened());
+        assertEquals(1, recoveries.get());
+        for (CountingOperation operation : operations)
+            assertEquals(2, operation.executions.get());
+        assertEquals(threads, haClient.getMetrics().getMaxPendingOperations());
+    }
+
+    @Test
+    public void dropsFailuresBeyondTheBoundAndReExecutesTheParkedOnes() throws Exception {
+        haClient.doInRabbit(new CountingOperation(0));
+        haClient.setMaxPendingOperations(3);
+        broker.setBrokerDown(true);
+        broker.killConnections();
+
+        List<CountingOperation> operations = new ArrayList<CountingOperation>();
+        for (int i = 0; i < 5; i++) {
+            CountingOperation operation = new CountingOperation(0) {
+                @Override
+                public void execute(Connection connection) throws IOException {
+                    super.execute(connection);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            operations.add(operation);
+            haClient.doInRabbit(operation);
+        }
+        assertEquals(3, haClient.getPendingOperationCount());
+        assertEquals(2, haClient.getRejectedOperationCount());
+        for (CountingOperation operation : operations)
+            assertEquals(0, operation.executions.get());
+
+        broker.setBrokerDown(false);
+        awaitDrained();
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(i < 3 ? 1 : 0, operations.get(i).executions.get());
+        assertTrue("drain took " + haClient.getLastDrainMillis() + "ms", haClient.getLastDrainMillis() >= 60);
+        assertEquals(0, haClient.getMetrics().getPendingOperations());
+        assertEquals(3, haClient.getMetrics().getMaxPendingOperations());
+    }
+
+    @Test
+    public void onlyTheRecoveryReconnectsWhileTheBrokerIsDown() throws Exception {
+        haClient.doInRabbit(new CountingOperation(0));
+        broker.setBrokerDown(true);
+        broker.killConnections();
+
+        final List<CountingOperation> operations = new ArrayList<CountingOperation>();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10; j++) {
+                        CountingOperation operation = new CountingOperation(0);
+                        synchronized (operations) {
+                            operations.add(operation);
+                        }
+                        haClient.doInRabbit(operation);
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers)
+            caller.join(5000);
+        assertEquals(50, haClient.getPendingOperationCount());
+
+        broker.setBrokerDown(false);
+        awaitDrained();
+
+        assertEquals(2, broker.connectionsOpened());
+        // the first connect, then one per backoff step of the recovery
+        assertEquals(1 + recoveryAttempts.get(), broker.connectAttempts());
+        assertTrue("made " + broker.connectAttempts() + " connect attempts", broker.connectAttempts() < 50);
+        for (CountingOperation operation : operations)
+            assertEquals(1, operation.executions.get());
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((haClient.getPendingOperationCount() > 0 || haClient.getMetrics().getRecoveryCount() == 0)
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, haClient.getPendingOperationCount());
+    }
+
+    private static class CountingOperation implements RabbitHAClient.RabbitOperation {
+        final AtomicInteger executions = new AtomicInteger();
+        final int failures;
+
+        CountingOperation(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void execute(Connection connection) throws IOException {
+            if (executions.incrementAndGet() <= failures)
+                throw new IOException("failure " + executions.get());
+        }
+
+        @Override
+        public String operationId() {
+            return "COUNTING";
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrefetchControllerTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void growsWhileStarvedUpToMax() {
+        PrefetchController controller = new PrefetchController(1, 64, 1);
+        long now = System.nanoTime();
+        int[] expected = {2, 4, 8, 16, 32, 64, 64};
+        for (int prefetch : expected) {
+            int current = controller.getPrefetch();
+            for (int i = 0; i < 100; i++) {
+                controller.unacked(current);
+                controller.handled(0, MILLI);
+            }
+            assertEquals(prefetch, controller.adjust(now += SECOND, 4));
+        }
+        assertEquals(6, controller.getIncreaseCount());
+        assertEquals(100.0, controller.getLastRate(), 0.1);
+        assertEquals(0.025, controller.getLastUtilization(), 0.001);
+    }
+
+    @Test
+    public void shrinksWhileDeliveriesPileUpDownToMin() {
+        PrefetchController controller = new PrefetchController(10, 1000, 100);
+        long now = System.nanoTime();
+        int previous = controller.getPrefetch();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                controller.unacked(previous);
+                controller.handled(50 * MILLI, MILLI);
+            }
+            int next = controller.adjust(now += SECOND, 4);
+            assertTrue(next <= previous);
+            previous = next;
+        }
+        assertEquals(10, controller.getPrefetch());
+        assertEquals(50000, controller.getLastMeanWaitMicros());
+        assertEquals(1000, controller.getLastMeanHandleMicros());
+    }
+
+    @Test
+    public void keepsPrefetchWhenBalancedOrIdle() {
+        PrefetchController controller = new PrefetchController(1, 100, 20);
+        long now = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            controller.unacked(10);
+            controller.handled(2 * MILLI, 2 * MILLI);
+        }
+        assertEquals(20, controller.adjust(now += SECOND, 4));
+        assertEquals(20, controller.adjust(now += SECOND, 4));
+        assertEquals(0, controller.getIncreaseCount() + controller.getDecreaseCount());
+    }
+
+    @Test
+    public void tunedPrefetchSurvivesRecovery() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        PrefetchController controller = new PrefetchController(1, 100, 50, 100, 4);
+        DispatchingConsumer consumer = new DispatchingConsumer(haClient, "orders", controller, 1,
+                DispatchingConsumer.BY_ROUTING_KEY, new DispatchingConsumer.Handler() {
+            @Override
+            public void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception {
+                Thread.sleep(5);
+            }
+        });
+        assertEquals(50, broker.prefetch());
+
+        for (int i = 0; i < 50; i++)
+            broker.deliver("key", null, new byte[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumer.getHandledCount() < 50 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Thread.sleep(250); // idle intervals leave the prefetch alone
+        int tuned = consumer.getPrefetch();
+        assertTrue("prefetch " + tuned, tuned < 50);
+        assertEquals(tuned, broker.prefetch());
+        assertEquals(Integer.valueOf(tuned), haClient.getMetrics().getPrefetchByConsumer().get("orders-DISPATCHING-CONSUMER"));
+
+        broker.killConnections();
+        deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getMetrics().getRecoveryCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(consumer.getPrefetch(), broker.prefetch());
+
+        consumer.close();
+        haClient.shutdown();
+    }
+}
@@ -0,0 +1,141 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class PublishOutboxTest {
+
+    private final StubConnectionFactory factory = new StubConnectionFactory(0);
+
+    private Channel channel() throws IOException {
+        return factory.newConnection(new Address[]{new Address("localhost")}).createChannel();
+    }
+
+    @Test
+    public void drainsInBatches() throws Exception {
+        PublishOutbox outbox = new PublishOutbox(8, PublishOutbox.OverflowPolicy.REJECT);
+        for (int i = 0; i < 5; i++)
+            assertTrue(outbox.offer("", "q", null, new byte[]{(byte) i}));
+
+        Channel channel = channel();
+        assertEquals(3, outbox.drainTo(channel, 3));
+        assertEquals(2, outbox.drainTo(channel, 3));
+        assertEquals(0, outbox.drainTo(channel, 3));
+        assertEquals(5, factory.publishedCount());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        PublishOutbox outbox = new PublishOutbox(2, PublishOutbox.OverflowPolicy.REJECT);
+
+        assertTrue(outbox.offer("", "q", null, new byte[0]));
+        assertTrue(outbox.offer("", "q", null, new byte[0]));
+        assertFalse(outbox.offer("", "q", null, new byte[0]));
+        assertEquals(1, outbox.getRejectedCount());
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws Exception {
+        PublishOutbox outbox = new PublishOutbox(2, PublishOutbox.OverflowPolicy.DROP_OLDEST);
+
+        outbox.offer("", "first", null, new byte[0]);
+        outbox.offer("", "second", null, new byte[0]);
+        outbox.offer("", "third", null, new byte[0]);
+
+        assertEquals(1, outbox.getDroppedCount());
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void blockedPublisherResumesAfterDrain() throws Exception {
+        final PublishOutbox outbox = new PublishOutbox(1, PublishOutbox.OverflowPolicy.BLOCK);
+        outbox.offer("", "q", null, new byte[0]);
+
+        final CountDownLatch accepted = new CountDownLatch(1);
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                if (outbox.offer("", "q", null, new byte[0]))
+                    accepted.countDown();
+            }
+        };
+        publisher.start();
+        assertFalse(accepted.await(100, TimeUnit.MILLISECONDS));
+
+        outbox.drainTo(channel(), 1);
+
+        assertTrue(accepted.await(1, TimeUnit.SECONDS));
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void failedPublishStaysBuffered() throws Exception {
+        PublishOutbox outbox = new PublishOutbox(4, PublishOutbox.OverflowPolicy.REJECT);
+        outbox.offer("", "q", null, new byte[0]);
+        Channel channel = channel();
+        channel.close();
+
+        try {
+            outbox.drainTo(channel, 4);
+            fail("publishing on a closed channel should fail");
+        } catch (RuntimeException e) {
+        }
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void publishesBufferedWhileRecoveringAreNotStranded() throws Exception {
+        final RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, factory);
+        haClient.setReconnectScheduler(new BackoffReconnectScheduler(new Address[]{new Address("localhost")}, 1, 2));
+        haClient.enableOutbox(1000000, PublishOutbox.OverflowPolicy.REJECT);
+        final AtomicBoolean publishing = new AtomicBoolean(true);
+        List<Thread> publishers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread publisher = new Thread() {
+                @Override
+                public void run() {
+                    while (publishing.get()) {
+                        haClient.publish("", "q", null, new byte[0]);
+                        LockSupport.parkNanos(10000);
+                    }
+                }
+            };
+            publishers.add(publisher);
+            publisher.start();
+        }
+        try {
+            // every outage ends with a recovery publishers race against; without another outage to come, whatever
+            // they buffered must still go out
+            for (int outage = 0; outage < 200; outage++) {
+                factory.killConnections();
+                awaitDrained(haClient.getOutbox());
+                Thread.sleep(2);
+                assertTrue("outbox stranded after outage " + outage, awaitDrained(haClient.getOutbox()));
+            }
+        } finally {
+            publishing.set(false);
+            for (Thread publisher : publishers)
+                publisher.join();
+            haClient.shutdown();
+        }
+    }
+
+    private static boolean awaitDrained(PublishOutbox outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!outbox.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        return outbox.isEmpty();
+    }
+}
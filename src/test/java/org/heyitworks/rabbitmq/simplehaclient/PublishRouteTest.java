@@ -0,0 +1,64 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PublishRouteTest {
+
+    private static final byte[] BODY = new byte[100];
+    private static final AMQP.BasicProperties PROPS = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").build();
+
+    private StubConnectionFactory broker;
+    private RabbitHAClient haClient;
+
+    @Before
+    public void setUp() {
+        broker = new StubConnectionFactory(0);
+        haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        haClient.shutdown();
+    }
+
+    @Test
+    public void compressedRouteReusesItsProperties() {
+        broker.setRecordPublishes(true);
+        haClient.setCompression(new CompressionStage(new DeflateCodec(), 64));
+        PublishRoute route = new PublishRoute("events", "key", PROPS);
+        haClient.publish(route, new byte[1000]);
+        haClient.publish(route, new byte[1000]);
+        haClient.publish(route, new byte[10]);
+
+        AMQP.BasicProperties compressed = broker.published().get(0).props;
+        assertEquals(DeflateCodec.CONTENT_ENCODING, compressed.getContentEncoding());
+        assertEquals("application/json", compressed.getContentType());
+        assertSame(compressed, broker.published().get(1).props);
+        assertSame(PROPS, broker.published().get(2).props);
+    }
+
+    @Test
+    public void failedRoutePublishIsRepublishedAfterRecovery() throws Exception {
+        PublishRoute route = new PublishRoute("events", "key", PROPS);
+        haClient.publish(route, BODY);
+        broker.setBrokerDown(true);
+        broker.killConnections();
+        haClient.setConnectWaitMillis(0);
+        haClient.publish(route, BODY);
+        assertEquals(1, broker.publishedCount());
+
+        broker.setBrokerDown(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.publishedCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, broker.publishedCount());
+        assertEquals(Long.valueOf(1), haClient.getMetrics().getOperationFailuresById().get(route.toString()));
+    }
+}
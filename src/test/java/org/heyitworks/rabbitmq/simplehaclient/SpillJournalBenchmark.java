@@ -0,0 +1,63 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * write and replay throughput of {@link SpillJournal} for a couple of message sizes, in records and megabytes per
+ * second. Replay hands records to a no-op handler, so it measures the journal and not a broker.
+ * <p/>
+ * User: maciekr
+ */
+public class SpillJournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = Integer.getInteger("benchmark.records", 500000);
+        int segmentBytes = Integer.getInteger("benchmark.segmentBytes", 64 * 1024 * 1024);
+        File directory = new File(System.getProperty("benchmark.directory", System.getProperty("java.io.tmpdir")),
+                "spill-journal-benchmark");
+
+        for (int size : new int[]{100, 1024, 16 * 1024}) {
+            delete(directory);
+            SpillJournal journal = new SpillJournal(directory, segmentBytes);
+            byte[] body = new byte[size];
+            AMQP.BasicProperties props = MessageProperties.PERSISTENT_BASIC;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++)
+                journal.append("benchmark-exchange", "benchmark.key", props, body);
+            journal.close();
+            report("write " + size + "B", System.nanoTime() - start, records, size);
+
+            start = System.nanoTime();
+            int replayed = journal.replay(new SpillJournal.RecordHandler() {
+                @Override
+                public void record(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+                }
+
+                @Override
+                public void segmentReplayed() {
+                }
+            });
+            report("replay " + size + "B", System.nanoTime() - start, replayed, size);
+        }
+        delete(directory);
+    }
+
+    private static void report(String name, long elapsedNanos, int records, int size) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-16s %10.0f records/s %8.1f MB/s%n", name, records / seconds,
+                (double) records * size / (1024 * 1024) / seconds);
+    }
+
+    private static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!file.delete())
+                    throw new IOException("Can't delete " + file);
+    }
+}
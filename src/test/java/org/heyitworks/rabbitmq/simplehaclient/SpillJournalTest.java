@@ -0,0 +1,130 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpillJournalTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("spill-journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void replaysRecordsInOrderAfterReopen() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 4096);
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                .messageId("id-1").deliveryMode(2).headers(Collections.<String, Object>singletonMap("origin", "test")).build();
+        journal.append("exchange", "key.1", props, "first".getBytes());
+        journal.append("", "key.2", null, "second".getBytes());
+        journal.close();
+
+        SpillJournal reopened = new SpillJournal(directory, 4096);
+        assertFalse(reopened.isEmpty());
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(2, reopened.replay(handler));
+
+        assertEquals("exchange|key.1|first", handler.records.get(0));
+        assertEquals("|key.2|second", handler.records.get(1));
+        assertEquals("id-1", handler.props.get(0).getMessageId());
+        assertEquals(Integer.valueOf(2), handler.props.get(0).getDeliveryMode());
+        assertEquals("test", handler.props.get(0).getHeaders().get("origin").toString());
+        assertNull(handler.props.get(1));
+        assertTrue(reopened.isEmpty());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void rollsOverSegments() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 256);
+        for (int i = 0; i < 20; i++)
+            journal.append("", "key", null, new byte[100]);
+
+        int segments = journal.getSegmentCount();
+        assertTrue(segments > 5);
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(20, journal.replay(handler));
+        assertEquals(segments, handler.segments);
+        assertEquals(0, journal.getSegmentCount());
+    }
+
+    @Test
+    public void keepsSegmentWhenConfirmFails() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 4096);
+        journal.append("", "key", null, new byte[10]);
+        RecordingHandler handler = new RecordingHandler();
+        handler.failConfirm = true;
+
+        try {
+            journal.replay(handler);
+            fail("confirm failure should propagate");
+        } catch (IOException e) {
+        }
+
+        assertFalse(journal.isEmpty());
+        handler.failConfirm = false;
+        assertEquals(1, journal.replay(handler));
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 4096);
+        journal.append("", "key", null, "good".getBytes());
+        journal.append("", "key", null, "bad".getBytes());
+        journal.close();
+
+        // first record: 8 byte header + utf("") 2 + utf("key") 5 + no props 1 + body length 4 + body 4
+        long secondRecordPayload = 8 + 16 + 8;
+        RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        file.seek(secondRecordPayload + 3);
+        file.write('X');
+        file.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(1, new SpillJournal(directory, 4096).replay(handler));
+        assertEquals("|key|good", handler.records.get(0));
+    }
+
+    private static class RecordingHandler implements SpillJournal.RecordHandler {
+        final List<String> records = new ArrayList<String>();
+        final List<AMQP.BasicProperties> props = new ArrayList<AMQP.BasicProperties>();
+        int segments;
+        boolean failConfirm;
+
+        @Override
+        public void record(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            records.add(exchange + "|" + routingKey + "|" + new String(body));
+            this.props.add(props);
+        }
+
+        @Override
+        public void segmentReplayed() throws IOException {
+            if (failConfirm)
+                throw new IOException("nacked");
+            segments++;
+        }
+    }
+}
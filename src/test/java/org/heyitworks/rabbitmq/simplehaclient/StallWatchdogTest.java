@@ -0,0 +1,191 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StallWatchdogTest {
+
+    private static final long HEARTBEAT_MILLIS = 20;
+    private static final long STALL_TIMEOUT = 300;
+
+    private ServerSocket heartbeatServer;
+    private FaultInjectingProxy proxy;
+    private StallWatchdog watchdog;
+
+    @Before
+    public void setUp() throws IOException {
+        heartbeatServer = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = heartbeatServer.accept();
+                        Thread heartbeats = new Thread() {
+                            @Override
+                            public void run() {
+                                heartbeat(socket);
+                            }
+                        };
+                        heartbeats.setDaemon(true);
+                        heartbeats.start();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        proxy = new FaultInjectingProxy(0, "localhost", heartbeatServer.getLocalPort());
+        watchdog = new StallWatchdog(STALL_TIMEOUT, 25);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watchdog.shutdown();
+        proxy.close();
+        heartbeatServer.close();
+    }
+
+    @Test
+    public void closesSocketStalledBehindBlackHole() throws Exception {
+        Socket socket = watchdog.socketFactory(SocketFactory.getDefault()).createSocket();
+        socket.connect(new InetSocketAddress("localhost", proxy.getLocalPort()));
+        final InputStream in = socket.getInputStream();
+        final AtomicLong failedAt = new AtomicLong();
+        final CountDownLatch failed = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (in.read() >= 0) ;
+                } catch (IOException e) {
+                }
+                failedAt.set(System.nanoTime());
+                failed.countDown();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        // heartbeats keep a healthy socket alive well past the timeout
+        assertFalse(failed.await(2 * STALL_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, watchdog.getTrackedSocketCount());
+
+        proxy.setBlackHole(true);
+        long stalledAt = System.nanoTime();
+        assertTrue("stall not detected", failed.await(5 * STALL_TIMEOUT, TimeUnit.MILLISECONDS));
+        long detectionMillis = TimeUnit.NANOSECONDS.toMillis(failedAt.get() - stalledAt);
+        assertTrue("detected after " + detectionMillis + "ms", detectionMillis >= STALL_TIMEOUT - HEARTBEAT_MILLIS);
+        assertTrue("detected after " + detectionMillis + "ms", detectionMillis < 2 * STALL_TIMEOUT);
+        assertTrue(socket.isClosed());
+        assertEquals(1, watchdog.getStallCount());
+        assertEquals(0, watchdog.getTrackedSocketCount());
+    }
+
+    @Test
+    public void clientsSharingAFactoryTrackTheirOwnSockets() throws Exception {
+        ConnectionFactory shared = new ConnectionFactory();
+        SocketFactory socketFactory = shared.getSocketFactory();
+        Address[] addresses = {new Address("localhost", proxy.getLocalPort())};
+        RabbitHAClient first = new RabbitHAClient(addresses, shared);
+        RabbitHAClient second = new RabbitHAClient(addresses, shared);
+        first.enableStallDetection(1, STALL_TIMEOUT);
+        second.enableStallDetection(1, STALL_TIMEOUT);
+        try {
+            assertSame(socketFactory, shared.getSocketFactory());
+            assertEquals(ConnectionFactory.DEFAULT_HEARTBEAT, shared.getRequestedHeartbeat());
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+
+        // a factory set up by another watchdog is not reused
+        SocketFactory tracking = watchdog.socketFactory(SocketFactory.getDefault());
+        StallWatchdog other = new StallWatchdog(STALL_TIMEOUT, 25);
+        try {
+            Socket socket = other.socketFactory(tracking).createSocket("localhost", proxy.getLocalPort());
+            assertEquals(1, other.getTrackedSocketCount());
+            assertEquals(0, watchdog.getTrackedSocketCount());
+            socket.close();
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void clientRecoversWhenProbeStalls() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        haClient.enableStallDetection(1, STALL_TIMEOUT);
+        final Connection[] connections = new Connection[1];
+        RabbitHAClient.RabbitOperation connect = new RabbitHAClient.RabbitOperation() {
+            @Override
+            public void execute(Connection connection) throws IOException {
+                connections[0] = connection;
+            }
+
+            @Override
+            public String operationId() {
+                return "connect";
+            }
+        };
+        haClient.doInRabbit(connect);
+        Connection stalled = connections[0];
+
+        final AtomicLong progress = new AtomicLong(System.nanoTime());
+        haClient.watchProgress("consumer", new StallWatchdog.ProgressProbe() {
+            @Override
+            public long lastProgressNanos() {
+                return progress.get();
+            }
+        }, STALL_TIMEOUT);
+        for (int i = 0; i < 10; i++) {
+            progress.set(System.nanoTime());
+            Thread.sleep(STALL_TIMEOUT / 5);
+        }
+        assertEquals(0, haClient.getMetrics().getConnectionLossCount());
+
+        long deadline = System.currentTimeMillis() + 5 * STALL_TIMEOUT;
+        while (haClient.getMetrics().getRecoveryCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        haClient.getStallWatchdog().unwatch("consumer");
+        assertEquals(1, haClient.getMetrics().getConnectionLossCount());
+        assertEquals(1, haClient.getMetrics().getRecoveryCount());
+        assertFalse(stalled.isOpen());
+
+        haClient.doInRabbit(connect);
+        assertNotSame(stalled, connections[0]);
+        assertTrue(connections[0].isOpen());
+        haClient.shutdown();
+    }
+
+    private static void heartbeat(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                out.write(8);
+                out.flush();
+                Thread.sleep(HEARTBEAT_MILLIS);
+            }
+        } catch (Exception e) {
+        }
+    }
+}
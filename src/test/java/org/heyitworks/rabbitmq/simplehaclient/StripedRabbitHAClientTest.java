@@ -0,0 +1,111 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StripedRabbitHAClientTest {
+
+    private final Address[] addresses = {new Address("a"), new Address("b"), new Address("c")};
+
+    @Test
+    public void rotatesAddressesPerStripe() {
+        assertArrayEquals(new Address[]{addresses[1], addresses[2], addresses[0]}, StripedRabbitHAClient.rotate(addresses, 1));
+        assertArrayEquals(addresses, StripedRabbitHAClient.rotate(addresses, 3));
+    }
+
+    @Test
+    public void keysStickToOneStripe() throws Exception {
+        StripedRabbitHAClient haClient = new StripedRabbitHAClient(addresses, new StubConnectionFactory(0), 4, true);
+
+        assertSame(haClient.forKey("orders.created"), haClient.forKey("orders.created"));
+        assertSame(haClient.forCurrentThread(), haClient.forCurrentThread());
+        haClient.shutdown();
+    }
+
+    @Test
+    public void killingOneStripesConnectionRecoversOnlyThatStripe() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        StripedRabbitHAClient haClient = new StripedRabbitHAClient(addresses, broker, 3, true);
+        try {
+            for (int i = 0; i < 3; i++)
+                haClient.stripe(i).doInRabbit(new CountingOperation());
+            assertEquals(3, broker.connectionsOpened());
+
+            broker.killConnections(addresses[1]);
+            awaitRecovered(haClient.stripe(1));
+
+            assertEquals(4, broker.connectionsOpened());
+            for (int i = 0; i < 3; i++) {
+                HAClientMetrics metrics = haClient.stripe(i).getMetrics();
+                assertEquals(i == 1 ? 1 : 0, metrics.getConnectionLossCount());
+                assertEquals(i == 1 ? 1 : 0, metrics.getRecoveryCount());
+            }
+        } finally {
+            haClient.shutdown();
+        }
+    }
+
+    @Test
+    public void replaysACallbackOnlyOnItsOwnStripe() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        StripedRabbitHAClient haClient = new StripedRabbitHAClient(addresses, broker, 3, true);
+        final AtomicInteger[] replayed = new AtomicInteger[3];
+        for (int i = 0; i < 3; i++) {
+            final AtomicInteger stripeReplayed = replayed[i] = new AtomicInteger();
+            haClient.stripe(i).addListener(new HAClientListener.Adapter() {
+                @Override
+                public void callbacksRecovered(int callbacks, long nanos) {
+                    stripeReplayed.addAndGet(callbacks);
+                }
+            });
+        }
+        try {
+            CountingOperation callback = new CountingOperation();
+            haClient.doInRabbit(callback, true);
+            int owner = -1;
+            for (int i = 0; i < 3; i++) {
+                if (haClient.stripe(i) == haClient.forCurrentThread())
+                    owner = i;
+                else
+                    haClient.stripe(i).doInRabbit(new CountingOperation());
+            }
+
+            broker.killConnections();
+            for (int i = 0; i < 3; i++)
+                awaitRecovered(haClient.stripe(i));
+
+            assertEquals(2, callback.executions.get());
+            for (int i = 0; i < 3; i++)
+                assertEquals(i == owner ? 1 : 0, replayed[i].get());
+        } finally {
+            haClient.shutdown();
+        }
+    }
+
+    private static void awaitRecovered(RabbitHAClient stripe) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stripe.getMetrics().getRecoveryCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, stripe.getMetrics().getRecoveryCount());
+    }
+
+    private static class CountingOperation implements RabbitHAClient.RabbitOperation {
+        final AtomicInteger executions = new AtomicInteger();
+
+        @Override
+        public void execute(Connection connection) throws IOException {
+            executions.incrementAndGet();
+        }
+
+        @Override
+        public String operationId() {
+            return "COUNTING";
+        }
+    }
+}
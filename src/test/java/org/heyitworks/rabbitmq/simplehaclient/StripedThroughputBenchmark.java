@@ -0,0 +1,49 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * publish throughput of {@link StripedRabbitHAClient} for a growing number of stripes. The stub broker holds a
+ * connection for the duration of each publish, like a single socket would, so one connection caps throughput no
+ * matter how many threads publish.
+ * <p/>
+ * User: maciekr
+ */
+public class StripedThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long publishNanos = Long.getLong("benchmark.publishNanos", 50000);
+        int messages = Integer.getInteger("benchmark.messages", 50000);
+        int threads = Integer.getInteger("benchmark.threads", 16);
+        final byte[] body = new byte[100];
+        Address[] addresses = {new Address("localhost", 5672), new Address("localhost", 5673)};
+
+        for (int stripes : new int[]{1, 2, 4, 8}) {
+            StubConnectionFactory broker = new StubConnectionFactory(0);
+            broker.setPublishNanos(publishNanos);
+            final StripedRabbitHAClient haClient = new StripedRabbitHAClient(addresses, broker, stripes, true);
+            final RabbitHAClient.ChannelOperation publish = new RabbitHAClient.ChannelOperation() {
+                @Override
+                public void execute(Channel channel) throws IOException {
+                    channel.basicPublish("", "benchmark", null, body);
+                }
+
+                @Override
+                public String operationId() {
+                    return "STRIPED-PUBLISHER";
+                }
+            };
+            long elapsed = ChannelPoolBenchmark.run(threads, messages, new Runnable() {
+                @Override
+                public void run() {
+                    haClient.doInRabbit(publish);
+                }
+            });
+            ChannelPoolBenchmark.report(stripes + " stripes", elapsed, messages);
+            haClient.shutdown();
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.*;
+import com.rabbitmq.client.impl.AMQContentHeader;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * in-process broker stand-in for benchmarks: connections and channels are dynamic proxies which simulate a broker
+ * round trip (by parking) for synchronous methods such as channel.open and channel.close, and count publishes.
+ */
+public class StubConnectionFactory extends ConnectionFactory {
+
+    private static final int FRAME_MAX = 131072;
+    private static final int FRAME_OVERHEAD = 8;
+
+    private final long roundTripNanos;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final List<Published> recorded = new CopyOnWriteArrayList<Published>();
+    private volatile boolean recordPublishes;
+    private volatile boolean measureWireBytes;
+    private volatile boolean publishBlocked;
+    private final AtomicInteger connectAttempts = new AtomicInteger();
+    private final AtomicInteger connectionsOpened = new AtomicInteger();
+    private final AtomicInteger channelsOpened = new AtomicInteger();
+    private final AtomicLong channelRoundTrips = new AtomicLong();
+    private final AtomicLong asyncRpcs = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private volatile StubChannel consumingChannel;
+    private volatile StubChannel confirmingChannel;
+    private volatile int prefetch;
+    private final List<StubConnection> connections = new CopyOnWriteArrayList<StubConnection>();
+    private final Map<Address, Long> addressLatencies = new ConcurrentHashMap<Address, Long>();
+    private final Set<Address> downAddresses = new CopyOnWriteArraySet<Address>();
+    private volatile boolean brokerDown;
+    private volatile long publishNanos;
+
+    public StubConnectionFactory(long roundTripNanos) {
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    @Override
+    public Connection newConnection(Address[] addrs) throws IOException {
+        return newConnection(null, addrs);
+    }
+
+    @Override
+    public Connection newConnection(ExecutorService executor, Address[] addrs) throws IOException {
+        connectAttempts.incrementAndGet();
+        if (brokerDown || downAddresses.contains(addrs[0]))
+            throw new IOException("Connection refused (stub broker is down)");
+        roundTrip();
+        Long latency = addressLatencies.get(addrs[0]);
+        if (latency != null)
+            LockSupport.parkNanos(latency);
+        StubConnection stub = new StubConnection(addrs[0]);
+        connections.add(stub);
+        connectionsOpened.incrementAndGet();
+        return stub.proxy;
+    }
+
+    /**
+     * there is one stub broker behind every copy, so a client copying its factory still sees what a test does to it
+     */
+    @Override
+    public ConnectionFactory clone() {
+        return this;
+    }
+
+    /**
+     * drops every open connection as if the broker went away, firing non-application shutdown signals.
+     */
+    public void killConnections() {
+        for (StubConnection connection : connections)
+            connection.shutdown(false);
+        connections.clear();
+    }
+
+    /**
+     * drops the open connections to a single address, as if that node went away
+     */
+    public void killConnections(Address address) {
+        for (StubConnection connection : connections)
+            if (connection.address.equals(address)) {
+                connection.shutdown(false);
+                connections.remove(connection);
+            }
+    }
+
+    /**
+     * makes every publish hold its connection for the given time, modelling the single socket (and writer) a
+     * connection has
+     */
+    public void setPublishNanos(long publishNanos) {
+        this.publishNanos = publishNanos;
+    }
+
+    /**
+     * holds every publish until unblocked, as a broker with a memory or disk alarm stops reading from publishing
+     * connections
+     */
+    public void setPublishBlocked(boolean publishBlocked) {
+        this.publishBlocked = publishBlocked;
+    }
+
+    /**
+     * sends channel.flow to every open channel
+     */
+    public void flow(boolean active) throws IOException {
+        for (StubConnection connection : connections)
+            for (StubChannel channel : connection.channels)
+                for (FlowListener listener : channel.flowListeners)
+                    listener.handleFlow(active);
+    }
+
+    public void setBrokerDown(boolean brokerDown) {
+        this.brokerDown = brokerDown;
+    }
+
+    /**
+     * refuses connects to a single address, leaving the others up
+     */
+    public void setAddressDown(Address address, boolean down) {
+        if (down)
+            downAddresses.add(address);
+        else
+            downAddresses.remove(address);
+    }
+
+    /**
+     * adds latency to connects to a single address, as if it was further away
+     */
+    public void setAddressLatency(Address address, long nanos) {
+        addressLatencies.put(address, nanos);
+    }
+
+    public long publishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return publishes which went out on connections to the given address that are still alive
+     */
+    public long publishedCount(Address address) {
+        long count = 0;
+        for (StubConnection connection : connections)
+            if (connection.address.equals(address))
+                count += connection.published.get();
+        return count;
+    }
+
+    /**
+     * sizes the frames of every publish from now on, see {@link #publishedWireBytes()}
+     */
+    public void setMeasureWireBytes(boolean measureWireBytes) {
+        this.measureWireBytes = measureWireBytes;
+    }
+
+    /**
+     * @return bytes the measured publishes would have taken on the wire: method, content header and body frames,
+     * each with its frame header and end marker
+     */
+    public long publishedWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * keeps every message published from now on, see {@link #published()}
+     */
+    public void setRecordPublishes(boolean recordPublishes) {
+        this.recordPublishes = recordPublishes;
+    }
+
+    public List<Published> published() {
+        return new ArrayList<Published>(recorded);
+    }
+
+    public int connectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return connects tried, including the ones refused while the broker (or the address) was down
+     */
+    public int connectAttempts() {
+        return connectAttempts.get();
+    }
+
+    public int channelsOpened() {
+        return channelsOpened.get();
+    }
+
+    /**
+     * @return synchronous channel methods (declarations, qos, consume...) which waited for the stub broker
+     */
+    public long channelRoundTrips() {
+        return channelRoundTrips.get();
+    }
+
+    /**
+     * @return methods sent with asyncRpc, which don't wait for a reply
+     */
+    public long asyncRpcs() {
+        return asyncRpcs.get();
+    }
+
+    /**
+     * delivers a message to the consumer registered last, on the calling thread, as the connection's dispatch thread
+     * would
+     *
+     * @return the delivery tag
+     */
+    public long deliver(String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        return consumingChannel.deliver(routingKey, props, body);
+    }
+
+    /**
+     * @return highest delivery tag up to which every delivery was acked (or rejected) on the channel of the consumer
+     * registered last
+     */
+    public long ackedUpTo() {
+        return consumingChannel.ackedUpTo;
+    }
+
+    /**
+     * @return basicAck calls on all channels
+     */
+    public long acks() {
+        return acks.get();
+    }
+
+    /**
+     * @return prefetch count of the last basicQos on any channel
+     */
+    public int prefetch() {
+        return prefetch;
+    }
+
+    /**
+     * acks publishes on the channel put into confirm mode last, as the broker would once it took responsibility for
+     * them; the channel's confirm listeners are called on the calling thread
+     */
+    public void ack(long deliveryTag, boolean multiple) throws IOException {
+        for (ConfirmListener listener : confirmingChannel.confirmListeners)
+            listener.handleAck(deliveryTag, multiple);
+    }
+
+    /**
+     * nacks publishes on the channel put into confirm mode last, as the broker would if it couldn't take them
+     */
+    public void nack(long deliveryTag, boolean multiple) throws IOException {
+        for (ConfirmListener listener : confirmingChannel.confirmListeners)
+            listener.handleNack(deliveryTag, multiple);
+    }
+
+    /**
+     * @return publish sequence number of the last message published on the channel put into confirm mode last
+     */
+    public long lastPublishSeqNo() {
+        return confirmingChannel.nextPublishSeqNo.get() - 1;
+    }
+
+    /**
+     * @return the channel of the consumer registered last
+     */
+    public Channel consumingChannel() {
+        return consumingChannel.proxy;
+    }
+
+    private static long wireSize(int channel, String exchange, String routingKey, AMQP.BasicProperties props,
+                                 byte[] body) throws IOException {
+        com.rabbitmq.client.impl.Method publish = (com.rabbitmq.client.impl.Method)
+                new AMQP.Basic.Publish.Builder().exchange(exchange).routingKey(routingKey).build();
+        AMQContentHeader header = props != null ? props : new AMQP.BasicProperties();
+        long size = publish.toFrame(channel).getPayload().length + FRAME_OVERHEAD
+                + header.toFrame(channel, body.length).getPayload().length + FRAME_OVERHEAD;
+        int bodyFrames = (body.length + FRAME_MAX - FRAME_OVERHEAD - 1) / (FRAME_MAX - FRAME_OVERHEAD);
+        return size + body.length + (long) bodyFrames * FRAME_OVERHEAD;
+    }
+
+    public static class Published {
+        public final String exchange;
+        public final String routingKey;
+        public final AMQP.BasicProperties props;
+        public final byte[] body;
+
+        Published(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    private void roundTrip() {
+        if (roundTripNanos > 0)
+            LockSupport.parkNanos(roundTripNanos);
+    }
+
+    private class StubConnection implements InvocationHandler {
+        final Connection proxy = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Connection.class}, this);
+        final List<ShutdownListener> listeners = new CopyOnWriteArrayList<ShutdownListener>();
+        final List<StubChannel> channels = new CopyOnWriteArrayList<StubChannel>();
+        final AtomicInteger channelNumbers = new AtomicInteger();
+        final Address address;
+        final AtomicLong published = new AtomicLong();
+        volatile ShutdownSignalException closeReason;
+
+        StubConnection(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("isOpen"))
+                return closeReason == null;
+            if (name.equals("getCloseReason"))
+                return closeReason;
+            if (name.equals("addShutdownListener")) {
+                listeners.add((ShutdownListener) args[0]);
+                return null;
+            }
+            if (name.equals("removeShutdownListener")) {
+                listeners.remove(args[0]);
+                return null;
+            }
+            if (name.equals("createChannel")) {
+                ensureOpen();
+                roundTrip();
+                channelsOpened.incrementAndGet();
+                StubChannel channel = new StubChannel(this, channelNumbers.incrementAndGet());
+                channels.add(channel);
+                return channel.proxy;
+            }
+            if (name.equals("close") || name.equals("abort")) {
+                if (closeReason == null) {
+                    if (name.equals("close"))
+                        roundTrip();
+                    shutdown(true);
+                }
+                return null;
+            }
+            if (name.equals("getHeartbeat") || name.equals("getChannelMax") || name.equals("getFrameMax"))
+                return 0;
+            if (name.equals("getPort"))
+                return address.getPort();
+            if (name.equals("getAddress"))
+                return InetAddress.getByName(address.getHost());
+            if (name.equals("toString"))
+                return "StubConnection(" + address + ")@" + Integer.toHexString(System.identityHashCode(this));
+            if (name.equals("hashCode"))
+                return System.identityHashCode(self);
+            if (name.equals("equals"))
+                return self == args[0];
+            return null;
+        }
+
+        void ensureOpen() {
+            if (closeReason != null)
+                throw new AlreadyClosedException("connection is already closed", closeReason);
+        }
+
+        void shutdown(boolean initiatedByApplication) {
+            if (closeReason != null)
+                return;
+            closeReason = new ShutdownSignalException(true, initiatedByApplication, "stub shutdown", proxy);
+            for (StubChannel channel : channels)
+                channel.shutdown(closeReason);
+            for (ShutdownListener listener : listeners)
+                listener.shutdownCompleted(closeReason);
+        }
+    }
+
+    private class StubChannel implements InvocationHandler {
+        final Channel proxy = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Channel.class}, this);
+        final StubConnection connection;
+        final int number;
+        final List<ShutdownListener> listeners = new CopyOnWriteArrayList<ShutdownListener>();
+        final AtomicLong nextPublishSeqNo = new AtomicLong(1);
+        final List<FlowListener> flowListeners = new CopyOnWriteArrayList<FlowListener>();
+        final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+        volatile boolean confirms;
+        volatile ShutdownSignalException closeReason;
+        volatile Consumer consumer;
+        long lastDeliveryTag;
+        final TreeSet<Long> outstanding = new TreeSet<Long>();
+        volatile long ackedUpTo;
+
+        StubChannel(StubConnection connection, int number) {
+            this.connection = connection;
+            this.number = number;
+        }
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("isOpen"))
+                return closeReason == null;
+            if (name.equals("getCloseReason"))
+                return closeReason;
+            if (name.equals("getConnection"))
+                return connection.proxy;
+            if (name.equals("getChannelNumber"))
+                return number;
+            if (name.equals("addShutdownListener")) {
+                listeners.add((ShutdownListener) args[0]);
+                return null;
+            }
+            if (name.equals("addFlowListener")) {
+                flowListeners.add((FlowListener) args[0]);
+                return null;
+            }
+            if (name.equals("addConfirmListener")) {
+                confirmListeners.add((ConfirmListener) args[0]);
+                return null;
+            }
+            if (name.equals("basicPublish")) {
+                ensureOpen();
+                while (publishBlocked && closeReason == null)
+                    LockSupport.parkNanos(1000000);
+                ensureOpen();
+                if (publishNanos > 0)
+                    synchronized (connection) {
+                        LockSupport.parkNanos(publishNanos);
+                    }
+                published.incrementAndGet();
+                connection.published.incrementAndGet();
+                if (measureWireBytes)
+                    wireBytes.addAndGet(wireSize(number, (String) args[0], (String) args[1],
+                            (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]));
+                if (recordPublishes)
+                    recorded.add(new Published((String) args[0], (String) args[1],
+                            (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]));
+                if (confirms)
+                    nextPublishSeqNo.incrementAndGet();
+                return null;
+            }
+            if (name.equals("getNextPublishSeqNo"))
+                return confirms ? nextPublishSeqNo.get() : 0L;
+            if (name.equals("confirmSelect")) {
+                ensureOpen();
+                roundTrip();
+                confirms = true;
+                confirmingChannel = this;
+                return null;
+            }
+            if (name.equals("close") || name.equals("abort")) {
+                if (closeReason == null) {
+                    if (name.equals("close"))
+                        roundTrip();
+                    shutdown(new ShutdownSignalException(false, true, "stub channel close", proxy));
+                }
+                return null;
+            }
+            if (name.equals("asyncRpc")) {
+                ensureOpen();
+                asyncRpcs.incrementAndGet();
+                return null;
+            }
+            if (name.equals("basicConsume")) {
+                ensureOpen();
+                channelRoundTrips.incrementAndGet();
+                roundTrip();
+                if (args[args.length - 1] instanceof Consumer) {
+                    consumer = (Consumer) args[args.length - 1];
+                    consumingChannel = this;
+                    consumer.handleConsumeOk("stub-consumer");
+                }
+                return "stub-consumer";
+            }
+            if (name.equals("basicAck") || name.equals("basicReject")) {
+                ensureOpen();
+                long tag = (Long) args[0];
+                boolean multiple = name.equals("basicAck") && (Boolean) args[1];
+                synchronized (this) {
+                    if (!outstanding.contains(tag)) {
+                        // the broker closes the channel for a delivery tag it doesn't know or which is already
+                        // settled, also when it ends a multiple ack
+                        shutdown(new ShutdownSignalException(false, false, "PRECONDITION_FAILED - unknown delivery tag " + tag, proxy));
+                    } else {
+                        if (multiple)
+                            outstanding.headSet(tag, true).clear();
+                        else
+                            outstanding.remove(tag);
+                        ackedUpTo = outstanding.isEmpty() ? lastDeliveryTag : outstanding.first() - 1;
+                    }
+                }
+                if (name.equals("basicAck"))
+                    acks.incrementAndGet();
+                ensureOpen();
+                return null;
+            }
+            if (name.equals("basicQos")) {
+                ensureOpen();
+                prefetch = (Integer) args[args.length == 3 ? 1 : 0];
+                channelRoundTrips.incrementAndGet();
+                roundTrip();
+                return null;
+            }
+            if (name.equals("toString"))
+                return "StubChannel(" + number + ")";
+            if (name.equals("hashCode"))
+                return System.identityHashCode(self);
+            if (name.equals("equals"))
+                return self == args[0];
+            ensureOpen();
+            if (method.getReturnType() != void.class && !method.getReturnType().isPrimitive()) {
+                // synchronous AMQP methods (declarations, consume...) cost a round trip
+                channelRoundTrips.incrementAndGet();
+                roundTrip();
+                return method.getReturnType() == String.class ? "stub-" + name : null;
+            }
+            if (method.getReturnType() == boolean.class)
+                return true;
+            if (method.getReturnType() == long.class)
+                return 0L;
+            if (method.getReturnType() == int.class)
+                return 0;
+            return null;
+        }
+
+        void ensureOpen() {
+            if (closeReason != null)
+                throw new AlreadyClosedException("channel is already closed", closeReason);
+        }
+
+        long deliver(String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+            ensureOpen();
+            long tag;
+            synchronized (this) {
+                tag = ++lastDeliveryTag;
+                outstanding.add(tag);
+            }
+            consumer.handleDelivery("stub-consumer", new Envelope(tag, false, "", routingKey), props, body);
+            return tag;
+        }
+
+        void shutdown(ShutdownSignalException reason) {
+            if (closeReason != null)
+                return;
+            closeReason = reason;
+            for (ShutdownListener listener : listeners)
+                listener.shutdownCompleted(reason);
+            if (consumer != null)
+                consumer.handleShutdownSignal("stub-consumer", reason);
+        }
+    }
+}
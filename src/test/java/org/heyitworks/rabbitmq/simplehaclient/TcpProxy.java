@@ -7,6 +7,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TcpProxy {
@@ -16,8 +17,17 @@ public class TcpProxy {
 
     private static ServerSocket serverSocket;
     private static AtomicBoolean up = new AtomicBoolean();
-
-    private static ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static AtomicBoolean refusing = new AtomicBoolean();
+
+    // a daemon, so the proxy doesn't keep the JVM (e.g. a forked benchmark) alive once shut down
+    private static ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TcpProxy");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private static Socket client = null;
     private static Socket server = null;
@@ -41,6 +51,10 @@ public class TcpProxy {
                     server = null;
                     try {
                         client = serverSocket.accept();
+                        if (refusing.get()) {
+                            client.close();
+                            continue;
+                        }
                         final InputStream streamFromClient = client.getInputStream();
                         final OutputStream streamToClient = client.getOutputStream();
                         try {
@@ -104,6 +118,19 @@ public class TcpProxy {
             client.close();
     }
 
+    /**
+     * simulates a broker outage: the current client connection is dropped and new ones are closed straight away
+     * until {@link #restoreBroker()} is called
+     */
+    public static synchronized void killBroker() throws IOException {
+        refusing.set(true);
+        killClientConnection();
+    }
+
+    public static synchronized void restoreBroker() {
+        refusing.set(false);
+    }
+
     public static synchronized void shutdownProxy() throws IOException {
         up.set(false);
         if (serverSocket != null)
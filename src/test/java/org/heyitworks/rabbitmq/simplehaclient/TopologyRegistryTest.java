@@ -0,0 +1,127 @@
+package org.heyitworks.rabbitmq.simplehaclient;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TopologyRegistryTest {
+
+    private static final Map<String, Object> NO_ARGS = null;
+
+    @Test
+    public void declaresEachEntityOnce() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        Channel channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+        TopologyRegistry topology = new TopologyRegistry();
+
+        declare(topology, channel, "orders");
+        assertEquals(3, broker.channelRoundTrips());
+        declare(topology, channel, "orders");
+        assertEquals(3, broker.channelRoundTrips());
+
+        topology.queueDeclare(channel, "orders", true, false, false, Collections.<String, Object>singletonMap("x-max-length", 10));
+        assertEquals(4, broker.channelRoundTrips());
+        assertEquals(3, topology.size());
+    }
+
+    @Test
+    public void redeclaresPipelinedAfterConnectionLoss() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        Channel channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+        TopologyRegistry topology = new TopologyRegistry();
+        declare(topology, channel, "orders");
+        declare(topology, channel, "invoices");
+        long roundTrips = broker.channelRoundTrips();
+
+        topology.connectionLost();
+        assertEquals(5, topology.redeclare(channel));
+
+        assertEquals(5, broker.asyncRpcs());
+        assertEquals("only the fence waits for the broker", roundTrips + 1, broker.channelRoundTrips());
+        declare(topology, channel, "orders");
+        assertEquals(roundTrips + 1, broker.channelRoundTrips());
+    }
+
+    @Test
+    public void declaresAgainWhileNotRedeclared() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        Channel channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+        TopologyRegistry topology = new TopologyRegistry();
+        declare(topology, channel, "orders");
+
+        topology.connectionLost();
+        declare(topology, channel, "orders");
+
+        assertEquals(6, broker.channelRoundTrips());
+        assertEquals(3, topology.size());
+    }
+
+    @Test
+    public void deletingQueueForgetsItsBindings() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        Channel channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+        TopologyRegistry topology = new TopologyRegistry();
+        declare(topology, channel, "orders");
+        declare(topology, channel, "invoices");
+
+        topology.queueDelete(channel, "orders");
+
+        assertEquals(3, topology.size());
+        for (String declaration : topology.getDeclarations())
+            assertFalse(declaration, declaration.contains("orders"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsServerNamedQueues() throws IOException {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        Channel channel = broker.newConnection(new Address[]{new Address("localhost")}).createChannel();
+        new TopologyRegistry().queueDeclare(channel, "", false, true, true, NO_ARGS);
+    }
+
+    @Test
+    public void recoveryRedeclaresBeforeReplayingCallbacks() throws Exception {
+        StubConnectionFactory broker = new StubConnectionFactory(0);
+        final RabbitHAClient haClient = new RabbitHAClient(new Address[]{new Address("localhost")}, broker);
+        final int queues = 50;
+        haClient.doInRabbit(new RabbitHAClient.RabbitOperation() {
+            @Override
+            public void execute(Connection connection) throws IOException {
+                Channel channel = connection.createChannel();
+                for (int i = 0; i < queues; i++) {
+                    declare(haClient.getTopology(), channel, "queue-" + i);
+                    channel.basicConsume("queue-" + i, null);
+                }
+            }
+
+            @Override
+            public String operationId() {
+                return "CONSUMERS";
+            }
+        }, true);
+        long roundTrips = broker.channelRoundTrips();
+        assertEquals(1 + queues * 3, roundTrips);
+
+        broker.killConnections();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (haClient.getMetrics().getRecoveryCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(1, haClient.getMetrics().getRecoveryCount());
+        assertEquals(1 + queues * 2, broker.asyncRpcs());
+        assertEquals("consumes and the fence", roundTrips + queues + 1, broker.channelRoundTrips());
+        haClient.shutdown();
+    }
+
+    private static void declare(TopologyRegistry topology, Channel channel, String queue) throws IOException {
+        topology.exchangeDeclare(channel, "events", "topic", true, false, NO_ARGS);
+        topology.queueDeclare(channel, queue, true, false, false, NO_ARGS);
+        topology.queueBind(channel, queue, "events", queue + ".#", NO_ARGS);
+    }
+}